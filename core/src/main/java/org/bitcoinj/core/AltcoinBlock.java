@@ -19,18 +19,23 @@ package org.bitcoinj.core;
 
 import org.libdohj.core.AltcoinNetworkParameters;
 import org.libdohj.core.AuxPoWNetworkParameters;
+import org.libdohj.core.ParallelMerkleBuilder;
+import org.libdohj.core.PayloadBufferPool;
+import org.libdohj.core.ScryptEngine;
+import org.libdohj.core.ScryptHashCache;
+import org.libdohj.core.UInt256;
 
 import javax.annotation.Nullable;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigInteger;
-import java.security.GeneralSecurityException;
 import java.util.BitSet;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import static org.bitcoinj.core.Utils.reverseBytes;
-import static org.libdohj.core.Utils.scryptDigest;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * <p>A block is a group of transactions, and is one of the fundamental data structures of the Bitcoin system.
@@ -45,6 +50,24 @@ import static org.libdohj.core.Utils.scryptDigest;
 public class AltcoinBlock extends org.bitcoinj.core.Block {
     private static final int BYTE_BITS = 8;
 
+    /** Per-thread scratch space for writing out headers to be hashed. */
+    private static final ThreadLocal<byte[]> HEADER_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[HEADER_SIZE];
+        }
+    };
+
+    /**
+     * Set while {@link #parseHeader(NetworkParameters, byte[], int, MessageSerializer)}
+     * constructs a block. Parsing happens within the superclass constructor,
+     * before any field of the block could be set.
+     */
+    private static final ThreadLocal<Boolean> HEADER_ONLY_PARSE = new ThreadLocal<>();
+
+    /** Maximum target of each network, converted once rather than per header. */
+    private static final Map<NetworkParameters, UInt256> MAX_TARGETS = new ConcurrentHashMap<>();
+
     private boolean auxpowParsed = false;
     private boolean auxpowBytesValid = false;
 
@@ -52,18 +75,32 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
     @Nullable private AuxPoW auxpow;
 
     /**
-     * Whether the chain this block belongs to support AuxPoW, used to avoid
-     * repeated instanceof checks. Initialised in parseTransactions()
+     * Whether the AuxPoW header has been checked and found valid. Kept by
+     * compact headers, which drop the AuxPoW header itself.
      */
-    private boolean auxpowChain = false;
+    private boolean auxpowVerified = false;
 
     private Sha256Hash scryptHash;
 
+    /*
+     * Parts of the version number, decoded once when the block is parsed or
+     * constructed. These have no initialisers, as parsing happens within the
+     * superclass constructor, before initialisers would run.
+     */
+    private long baseVersion;
+    private long chainId;
+    private int versionFlags;
+    private boolean auxpowVersion;
+
+    /** Pooled buffer holding the retained payload, if any. */
+    @Nullable private PayloadBufferPool.PooledBuffer pooledPayload;
+
     /** Special case constructor, used for the genesis node, cloneAsHeader and unit tests.
      * @param params NetworkParameters object.
      */
     public AltcoinBlock(final NetworkParameters params, final long version) {
         super(params, version);
+        decodeVersion();
     }
 
     /** Special case constructor, used for the genesis node, cloneAsHeader and unit tests.
@@ -87,6 +124,43 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
         super(params, payloadBytes, offset, serializer, length);
     }
 
+    /**
+     * Construct a block object from the Bitcoin wire format held in a pooled
+     * buffer, taking over the caller's reference to the buffer. The buffer
+     * goes back to its pool when the block is finally {@link #release()}d.
+     * @param params NetworkParameters object.
+     * @param payload the pooled buffer holding the block, from its start.
+     * @param serializer the serializer to use for this message.
+     * @throws ProtocolException
+     */
+    public AltcoinBlock(final NetworkParameters params, final PayloadBufferPool.PooledBuffer payload,
+            final MessageSerializer serializer) throws ProtocolException {
+        this(params, payload.array(), 0, serializer, payload.length());
+        this.pooledPayload = payload;
+    }
+
+    /**
+     * Parse only the header (and any AuxPoW header) of a block in the Bitcoin
+     * wire format, for a header embedded in a larger message such as a
+     * {@code merkleblock}, or one followed by transactions the caller reads
+     * separately. Nothing after the header is read, and the block has no
+     * transactions.
+     * @param params NetworkParameters object.
+     * @param payloadBytes the array holding the header.
+     * @param offset the offset of the header within the array.
+     * @param serializer the serializer to use for this message.
+     * @throws ProtocolException
+     */
+    public static AltcoinBlock parseHeader(final NetworkParameters params, final byte[] payloadBytes,
+            final int offset, final MessageSerializer serializer) throws ProtocolException {
+        HEADER_ONLY_PARSE.set(Boolean.TRUE);
+        try {
+            return new AltcoinBlock(params, payloadBytes, offset, serializer, UNKNOWN_LENGTH);
+        } finally {
+            HEADER_ONLY_PARSE.remove();
+        }
+    }
+
     public AltcoinBlock(NetworkParameters params, byte[] payloadBytes, int offset,
         Message parent, MessageSerializer serializer, int length)
         throws ProtocolException {
@@ -107,15 +181,52 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
     public AltcoinBlock(NetworkParameters params, long version, Sha256Hash prevBlockHash, Sha256Hash merkleRoot, long time,
                  long difficultyTarget, long nonce, List<Transaction> transactions) {
         super(params, version, prevBlockHash, merkleRoot, time, difficultyTarget, nonce, transactions);
+        decodeVersion();
     }
 
+    /**
+     * Calculate the Scrypt hash of the 80 byte block header. Any AuxPoW header
+     * is not part of the hashed data. Where the block was parsed in
+     * parse-retain mode the header is hashed directly from the retained wire
+     * bytes, otherwise it is written out to a per-thread buffer first.
+     */
     private Sha256Hash calculateScryptHash() {
-        try {
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
-            writeHeader(bos);
-            return Sha256Hash.wrap(reverseBytes(scryptDigest(bos.toByteArray())));
-        } catch (IOException | GeneralSecurityException e) {
-            throw new RuntimeException(e); // Cannot happen.
+        final byte[] digest = new byte[ScryptEngine.DIGEST_LENGTH];
+        if (headerBytesValid && payload != null && payload.length >= offset + HEADER_SIZE) {
+            ScryptEngine.scrypt(payload, offset, HEADER_SIZE, digest, 0);
+        } else {
+            final byte[] header = HEADER_BUFFER.get();
+            writeHeaderBytes(header);
+            ScryptEngine.scrypt(header, 0, HEADER_SIZE, digest, 0);
+        }
+        reverseInPlace(digest);
+        return Sha256Hash.wrap(digest);
+    }
+
+    /**
+     * Write the 80 byte Bitcoin-format header (without any AuxPoW header) of
+     * this block into the start of the given array.
+     */
+    private void writeHeaderBytes(final byte[] out) {
+        Utils.uint32ToByteArrayLE(getRawVersion(), out, 0);
+        writeReversed(getPrevBlockHash().getBytes(), out, 4);
+        writeReversed(getMerkleRoot().getBytes(), out, 4 + Sha256Hash.LENGTH);
+        Utils.uint32ToByteArrayLE(getTimeSeconds(), out, 4 + Sha256Hash.LENGTH * 2);
+        Utils.uint32ToByteArrayLE(getDifficultyTarget(), out, 8 + Sha256Hash.LENGTH * 2);
+        Utils.uint32ToByteArrayLE(getNonce(), out, 12 + Sha256Hash.LENGTH * 2);
+    }
+
+    private static void writeReversed(final byte[] bytes, final byte[] out, final int offset) {
+        for (int byteIdx = 0; byteIdx < bytes.length; byteIdx++) {
+            out[offset + byteIdx] = bytes[bytes.length - 1 - byteIdx];
+        }
+    }
+
+    private static void reverseInPlace(final byte[] bytes) {
+        for (int left = 0, right = bytes.length - 1; left < right; left++, right--) {
+            final byte temp = bytes[left];
+            bytes[left] = bytes[right];
+            bytes[right] = temp;
         }
     }
 
@@ -125,15 +236,107 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
 
     public void setAuxPoW(AuxPoW auxpow) {
         this.auxpow = auxpow;
+        this.auxpowVerified = false;
+    }
+
+    /**
+     * Whether this block's payload is held in a pooled buffer.
+     */
+    public boolean isPooled() {
+        return pooledPayload != null;
+    }
+
+    /**
+     * Add a reference to this block's pooled payload, for example when the
+     * block is also held in a relay queue or cache. Does nothing if the
+     * payload is not pooled.
+     *
+     * @throws IllegalStateException if the payload has been released.
+     */
+    public AltcoinBlock retain() {
+        if (pooledPayload != null) {
+            pooledPayload.retain();
+        }
+        return this;
+    }
+
+    /**
+     * Drop a reference to this block's pooled payload, returning the buffer
+     * to its pool if this was the last one. Before the buffer goes back, the
+     * block, its transactions and its AuxPoW header are detached from it, so
+     * they (and any of them handed out earlier) remain usable, and are
+     * serialized from their fields from then on. Detaching modifies them, so
+     * it is not safe while another thread is using the block or anything
+     * parsed from it: code which uses them on another thread must hold its
+     * own reference, from {@link #retain()}, until it has finished. Does
+     * nothing if the payload is not pooled.
+     *
+     * @return true if the buffer was returned to its pool.
+     * @throws IllegalStateException if the payload has already been released.
+     */
+    public boolean release() {
+        return pooledPayload != null && pooledPayload.release(new Runnable() {
+            @Override
+            public void run() {
+                detachPayload();
+            }
+        });
+    }
+
+    /**
+     * Stop this block and everything parsed from it referencing its payload
+     * array.
+     */
+    private void detachPayload() {
+        if (auxpow != null) {
+            auxpow.detachPayload();
+        }
+        if (transactions != null) {
+            for (Transaction tx : transactions) {
+                detachPayload(tx);
+            }
+        }
+        // Every header field has been parsed, so only the cached bytes go;
+        // the hash and merkle root are kept rather than recalculated
+        headerBytesValid = false;
+        transactionBytesValid = false;
+        payload = null;
+    }
+
+    /**
+     * Stop a transaction, its inputs and its outputs referencing the array
+     * they were parsed from. The transaction is unparented meanwhile, so
+     * dropping its cached bytes does not invalidate its parent.
+     */
+    static void detachPayload(final Transaction tx) {
+        final Message parent = tx.parent;
+        tx.setParent(null);
+        for (TransactionInput input : tx.getInputs()) {
+            input.getOutpoint().unCache();
+            input.unCache();
+        }
+        for (TransactionOutput output : tx.getOutputs()) {
+            output.unCache();
+        }
+        tx.unCache();
+        tx.setParent(parent);
     }
 
     /**
      * Returns the Scrypt hash of the block (which for a valid, solved block should be
-     * below the target). Big endian.
+     * below the target). Big endian. Checks the process-wide {@link ScryptHashCache}
+     * before calculating the hash.
      */
     public Sha256Hash getScryptHash() {
-        if (scryptHash == null)
-            scryptHash = calculateScryptHash();
+        if (scryptHash == null) {
+            final ScryptHashCache cache = ScryptHashCache.getDefault();
+            final Sha256Hash hash = getHash();
+            scryptHash = cache.get(hash);
+            if (scryptHash == null) {
+                scryptHash = calculateScryptHash();
+                cache.put(hash, scryptHash);
+            }
+        }
         return scryptHash;
     }
 
@@ -144,6 +347,48 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
         return getScryptHash().toString();
     }
 
+    /**
+     * Returns the difficulty target as a fixed width value, checked in the same
+     * way as {@link #getDifficultyTargetAsInteger()}.
+     *
+     * @throws VerificationException if the target is zero, negative or above
+     * the network's maximum.
+     */
+    public UInt256 getDifficultyTargetAsUInt256() throws VerificationException {
+        final long difficultyTarget = getDifficultyTarget();
+        if (!UInt256.isValidCompactBits(difficultyTarget)) {
+            throw new VerificationException("Difficulty target is bad: " + Long.toHexString(difficultyTarget));
+        }
+        final UInt256 target = UInt256.fromCompactBits(difficultyTarget);
+        if (target.isZero() || target.compareTo(getMaxTarget(params)) > 0) {
+            throw new VerificationException("Difficulty target is bad: " + target);
+        }
+        return target;
+    }
+
+    /**
+     * Returns the work represented by this block, as a fixed width value.
+     *
+     * @throws VerificationException if the difficulty target is invalid.
+     */
+    public UInt256 getWorkAsUInt256() throws VerificationException {
+        return getDifficultyTargetAsUInt256().getWorkForTarget();
+    }
+
+    @Override
+    public BigInteger getWork() throws VerificationException {
+        return getWorkAsUInt256().toBigInteger();
+    }
+
+    private static UInt256 getMaxTarget(final NetworkParameters params) {
+        UInt256 maxTarget = MAX_TARGETS.get(params);
+        if (maxTarget == null) {
+            maxTarget = UInt256.fromBigInteger(params.getMaxTarget());
+            MAX_TARGETS.put(params, maxTarget);
+        }
+        return maxTarget;
+    }
+
     @Override
     public Coin getBlockInflation(int height) {
         final AltcoinNetworkParameters altParams = (AltcoinNetworkParameters) params;
@@ -161,20 +406,20 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
      * Return chain ID from block version of an AuxPoW-enabled chain.
      */
     public long getChainID() {
-        return getChainID(this.getRawVersion());
+        return chainId;
     }
 
     /**
      * Return flags from block version of an AuxPoW-enabled chain.
      * 
      * @return flags as a bitset. 
+     * @see #getVersionFlagBits()
      */
     public BitSet getVersionFlags() {
         final BitSet bitset = new BitSet(BYTE_BITS);
-        final int bits = (int) (this.getRawVersion() & 0xff00) >> 8;
 
         for (int bit = 0; bit < BYTE_BITS; bit++) {
-            if ((bits & (1 << bit)) > 0) {
+            if ((versionFlags & (1 << bit)) > 0) {
                 bitset.set(bit);
             }
         }
@@ -182,6 +427,23 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
         return bitset;
     }
 
+    /**
+     * Return flags from block version of an AuxPoW-enabled chain, as a bit
+     * mask where bit 0 is the lowest flag bit. Unlike
+     * {@link #getVersionFlags()} this does not allocate.
+     */
+    public int getVersionFlagBits() {
+        return versionFlags;
+    }
+
+    /**
+     * Whether the version number marks this as a merge mined block, which
+     * carries an AuxPoW header. Always false on chains without AuxPoW.
+     */
+    public boolean isAuxPoWVersion() {
+        return auxpowVersion;
+    }
+
     /**
      * Return block version without applying any filtering (i.e. for AuxPoW blocks
      * which structure version differently to pack in additional data).
@@ -200,14 +462,25 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
 
     @Override
     public long getVersion() {
-        // TODO: Can we cache the individual parts on parse?
+        return baseVersion;
+    }
+
+    /**
+     * Split the raw version number into its parts.
+     */
+    private void decodeVersion() {
+        final long rawVersion = getRawVersion();
         if (this.params instanceof AltcoinNetworkParameters) {
             // AuxPoW networks use the higher block version bits for flags and
             // chain ID.
-            return getBaseVersion(super.getVersion());
+            this.baseVersion = getBaseVersion(rawVersion);
         } else {
-            return super.getVersion();
+            this.baseVersion = rawVersion;
         }
+        this.chainId = getChainID(rawVersion);
+        this.versionFlags = (int) (rawVersion & 0xff00) >> 8;
+        this.auxpowVersion = this.params instanceof AuxPoWNetworkParameters
+            && ((AuxPoWNetworkParameters) this.params).isAuxPoWBlockVersion(rawVersion);
     }
 
     protected void parseAuxPoW() throws ProtocolException {
@@ -215,72 +488,137 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
             return;
 
         this.auxpow = null;
-        if (this.auxpowChain) {
-            final AuxPoWNetworkParameters auxpowParams = (AuxPoWNetworkParameters)this.params;
-            if (auxpowParams.isAuxPoWBlockVersion(this.getRawVersion())
-                && payload.length >= 160) { // We have at least 2 headers in an Aux block. Workaround for StoredBlocks
-                this.auxpow = new AuxPoW(params, payload, cursor, this, serializer);
-            }
+        if (this.auxpowVersion
+            && payload.length >= 160) { // We have at least 2 headers in an Aux block. Workaround for StoredBlocks
+            this.auxpow = new AuxPoW(params, payload, cursor, this, serializer);
         }
 
         this.auxpowParsed = true;
         this.auxpowBytesValid = serializer.isParseRetainMode();
     }
 
+    /**
+     * Parse any AuxPoW header, then the transactions, unless the block is
+     * being parsed by {@link #parseHeader(NetworkParameters, byte[], int, MessageSerializer)}.
+     */
     @Override
     protected void parseTransactions(final int offset) {
-        this.auxpowChain = params instanceof AuxPoWNetworkParameters;
+        // Cleared before the AuxPoW header is parsed, so it only applies to this block
+        final boolean headerOnly = HEADER_ONLY_PARSE.get() != null;
+        HEADER_ONLY_PARSE.remove();
+        decodeVersion();
         parseAuxPoW();
-        if (null != this.auxpow) {
-            super.parseTransactions(offset + auxpow.getMessageSize());
-            optimalEncodingMessageSize += auxpow.getMessageSize();
-        } else {
-            super.parseTransactions(offset);
+        final int auxpowSize = null != this.auxpow ? auxpow.getMessageSize() : 0;
+        final int transactionsOffset = offset + auxpowSize;
+        if (headerOnly) {
+            cursor = transactionsOffset;
+            optimalEncodingMessageSize = HEADER_SIZE + auxpowSize;
+            transactionBytesValid = false;
+            return;
         }
+        super.parseTransactions(transactionsOffset);
+        optimalEncodingMessageSize += auxpowSize;
     }
 
     @Override
     void writeHeader(OutputStream stream) throws IOException {
         super.writeHeader(stream);
-        if (null != this.auxpow) {
+        if (auxpowVersion && null != this.auxpow) {
             this.auxpow.bitcoinSerialize(stream);
         }
     }
 
-    /** Returns a copy of the block, but without any transactions. */
+    /**
+     * Returns a copy of the block, but without any transactions. If this
+     * block's payload is pooled the copy gets its own AuxPoW header, as the
+     * copy usually outlives the pooled buffer (for example in a block store).
+     */
     @Override
     public Block cloneAsHeader() {
         AltcoinBlock block = new AltcoinBlock(params, getRawVersion());
         super.copyBitcoinHeaderTo(block);
-        block.auxpow = auxpow;
+        if (pooledPayload != null && auxpow != null) {
+            block.auxpow = new AuxPoW(params, auxpow.bitcoinSerialize(), block, serializer);
+        } else {
+            block.auxpow = auxpow;
+        }
+        block.auxpowVerified = auxpowVerified;
+        return block;
+    }
+
+    /**
+     * Returns a copy of the block without any transactions and, if its AuxPoW
+     * header has been verified, without the AuxPoW header either; the copy
+     * only records that it was verified. Once verified the parent coinbase,
+     * branches and parent header are never needed again for chain
+     * validation, and they are typically many times the size of the 80 byte
+     * header. If the AuxPoW header has not been verified this is the same as
+     * {@link #cloneAsHeader()}.
+     */
+    public AltcoinBlock cloneAsCompactHeader() {
+        if (!auxpowVerified) {
+            return (AltcoinBlock) cloneAsHeader();
+        }
+        AltcoinBlock block = new AltcoinBlock(params, getRawVersion());
+        super.copyBitcoinHeaderTo(block);
+        block.auxpowVerified = true;
         return block;
     }
 
+    /**
+     * Whether this block's AuxPoW header has been checked and found valid.
+     * A compact header which has dropped its AuxPoW header after
+     * verification still reports true.
+     */
+    public boolean isAuxPoWVerified() {
+        return auxpowVerified;
+    }
+
+    /**
+     * Whether this is a compact header: its version says it is merge mined,
+     * but it has no AuxPoW header. Such a header serializes as just the 80
+     * byte header, so is only valid in storage, never on the wire.
+     */
+    public boolean isCompactHeader() {
+        return auxpowVersion && auxpow == null;
+    }
+
+    /**
+     * Record that this compact header's AuxPoW header was verified before it
+     * was dropped, for block stores reading back a header written from
+     * {@link #cloneAsCompactHeader()} along with its verified flag.
+     *
+     * @throws IllegalStateException if this is not a compact header.
+     */
+    public void markAuxPoWVerified() {
+        checkState(isCompactHeader(), "Only compact headers can be marked as verified");
+        auxpowVerified = true;
+    }
+
     /** Returns true if the hash of the block is OK (lower than difficulty target). */
-   /* protected boolean checkProofOfWork(boolean throwException) throws VerificationException {
+    @Override
+    protected boolean checkProofOfWork(boolean throwException) throws VerificationException {
         if (params instanceof AltcoinNetworkParameters) {
-            BigInteger target = getDifficultyTargetAsInteger();
+            final UInt256 target = getDifficultyTargetAsUInt256();
 
-            if (params instanceof AuxPoWNetworkParameters) {
-                final AuxPoWNetworkParameters auxParams = (AuxPoWNetworkParameters)this.params;
-                if (auxParams.isAuxPoWBlockVersion(getRawVersion()) && null != auxpow) {
-                    return auxpow.checkProofOfWork(this.getHash(), target, throwException);
+            if (auxpowVersion) {
+                if (null != auxpow) {
+                    auxpowVerified = auxpow.checkProofOfWork(this.getHash(), target, throwException);
+                    return auxpowVerified;
+                }
+                if (auxpowVerified) {
+                    // Compact header; the AuxPoW header was checked before it was dropped
+                    return true;
                 }
             }
 
             final AltcoinNetworkParameters altParams = (AltcoinNetworkParameters)this.params;
-            final BigInteger hashVal = altParams.getBlockDifficulty(this);
-            if (hashVal.compareTo(target) > 0) {
+            final UInt256 hashVal = altParams.getBlockDifficultyAsUInt256(this);
+            if (!hashVal.isAtOrBelow(target)) {
                 // Proof of work check failed!
                 if (throwException)
-                   throw new Exception();
-                
-                     
-
- System.out.println("Hash is higher than target:");
-
-                    //throw new VerificationException("Hash is higher than target: " + org.libdohj.core.Utils.formatAsHash(hashVal) + " vs "
-                      //      + target.toString(16));
+                    throw new VerificationException("Hash is higher than target: " + hashVal + " vs "
+                            + target);
                 else
                     return false;
             }
@@ -289,9 +627,7 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
             return super.checkProofOfWork(throwException);
         }
     }
-*/
-    
-    
+
     /**
      * Checks the block data to ensure it follows the rules laid out in the network parameters. Specifically,
      * throws an exception if the proof of work is invalid, or if the timestamp is too far from what it should be.
@@ -304,4 +640,25 @@ public class AltcoinBlock extends org.bitcoinj.core.Block {
     public void verifyHeader() throws VerificationException {
         super.verifyHeader();
     }
+
+    /**
+     * Checks the block contents. Large blocks have their transaction IDs
+     * calculated in parallel first, by the default
+     * {@link ParallelMerkleBuilder}; the IDs are cached, so the merkle root
+     * check in the superclass only has to reduce the tree.
+     *
+     * @throws VerificationException
+     */
+    @Override
+    public void verifyTransactions(final int height, final EnumSet<VerifyFlag> flags) throws VerificationException {
+        final List<Transaction> transactions = getTransactions();
+        if (transactions != null && !transactions.isEmpty()) {
+            final ParallelMerkleBuilder builder = ParallelMerkleBuilder.getDefault();
+            if (transactions.size() >= builder.getParallelThreshold()
+                    || builder.getTimingListener() != null) {
+                builder.cacheTransactionIds(this);
+            }
+        }
+        super.verifyTransactions(height, flags);
+    }
 }
@@ -18,15 +18,17 @@
 
 package org.bitcoinj.core;
 
+import org.libdohj.core.AltcoinSerializer;
+import org.libdohj.core.BlockHeaderView;
+import org.libdohj.core.HeadersScanner;
 import org.libdohj.core.AuxPoWNetworkParameters;
+import org.libdohj.core.UInt256;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.math.BigInteger;
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 
@@ -55,7 +57,22 @@ public class AuxPoW extends ChildMessage {
     private Sha256Hash hashBlock;
     private MerkleBranch coinbaseBranch;
     private MerkleBranch chainMerkleBranch;
+    /** Parent block header as a full block, built from parentHeader when first requested. */
     private AltcoinBlock parentBlockHeader;
+    private BlockHeaderView parentHeader;
+
+    /**
+     * Wire format bytes of a lazily parsed header, from which the components
+     * above are built on first access. Null if the header was parsed eagerly,
+     * constructed locally or modified since it was parsed.
+     */
+    @Nullable private byte[] lazyBytes;
+    private int lazyOffset;
+    // Offsets of each component within the lazy bytes, relative to lazyOffset
+    private int hashBlockOffset;
+    private int coinbaseBranchOffset;
+    private int chainMerkleBranchOffset;
+    private int parentHeaderOffset;
 
     // Transactions can be encoded in a way that will use more bytes than is optimal
     // (due to VarInts having multiple encodings)
@@ -71,6 +88,7 @@ public class AuxPoW extends ChildMessage {
         coinbaseBranch = new MerkleBranch(params, this);
         chainMerkleBranch = new MerkleBranch(params, this);
         parentBlockHeader = null;
+        parentHeader = null;
     }
 
     /**
@@ -101,27 +119,16 @@ public class AuxPoW extends ChildMessage {
     }
 
     protected static int calcLength(byte[] buf, int offset) {
-        VarInt varint;
-        // jump past transaction
-        int cursor = offset + Transaction.calcLength(buf, offset);
-
-        // jump past header hash
-        cursor += 4;
-
-        // Coin base branch
-        cursor += MerkleBranch.calcLength(buf, offset);
-
-        // Block chain branch
-        cursor += MerkleBranch.calcLength(buf, offset);
-
-        // Block header
-		cursor += Block.HEADER_SIZE;
-
-        return cursor - offset + 4;
+        return HeadersScanner.auxPoWLength(buf, offset, buf.length);
     }
 
     @Override
     protected void parse() throws ProtocolException {
+        if (serializer instanceof AltcoinSerializer && ((AltcoinSerializer) serializer).isLazyAuxPoW()) {
+            parseLazily();
+            return;
+        }
+
         cursor = offset;
         transaction = new Transaction(params, payload, cursor, this, serializer, Message.UNKNOWN_LENGTH, null);
         cursor += transaction.getOptimalEncodingMessageSize();
@@ -138,15 +145,97 @@ public class AuxPoW extends ChildMessage {
         cursor += chainMerkleBranch.getOptimalEncodingMessageSize();
         optimalEncodingMessageSize += chainMerkleBranch.getOptimalEncodingMessageSize();
 
-        // Make a copy of JUST the contained block header, so the block parser doesn't try reading
-        // transactions past the end
-        byte[] blockBytes = Arrays.copyOfRange(payload, cursor, cursor + Block.HEADER_SIZE);
+        // The parent header is only viewed in place; a block object is built
+        // if one is asked for. Without parse-retain the payload is dropped after
+        // parsing, so the view takes a copy of the header rather than pinning
+        // the whole message.
+        parentHeader = BlockHeaderView.parse(payload, cursor);
+        if (!serializer.isParseRetainMode()) {
+            parentHeader = new BlockHeaderView(parentHeader.toByteArray(), 0);
+        }
         cursor += Block.HEADER_SIZE;
-        parentBlockHeader = new AltcoinBlock(params, blockBytes, 0, this, serializer, Block.HEADER_SIZE);
 
         length = cursor - offset;
     }
 
+    /**
+     * Find where each component of the header starts without parsing any of
+     * them, and keep the bytes (a reference in parse-retain mode, otherwise a
+     * copy of just this header) to build them from when first accessed.
+     */
+    private void parseLazily() throws ProtocolException {
+        final int end = payload.length;
+        int scan = offset + HeadersScanner.transactionLength(payload, offset, end);
+        hashBlockOffset = scan - offset;
+        scan += 32;
+        coinbaseBranchOffset = scan - offset;
+        scan += HeadersScanner.merkleBranchLength(payload, scan, end);
+        chainMerkleBranchOffset = scan - offset;
+        scan += HeadersScanner.merkleBranchLength(payload, scan, end);
+        parentHeaderOffset = scan - offset;
+        scan += Block.HEADER_SIZE;
+        if (scan > end) {
+            throw new ProtocolException("AuxPoW header extends past end of message");
+        }
+
+        length = scan - offset;
+        optimalEncodingMessageSize = length;
+        if (serializer.isParseRetainMode()) {
+            lazyBytes = payload;
+            lazyOffset = offset;
+        } else {
+            lazyBytes = Arrays.copyOfRange(payload, offset, scan);
+            lazyOffset = 0;
+        }
+    }
+
+    /**
+     * Build any components of a lazily parsed header which have not yet been
+     * accessed, and drop the wire bytes so the components are serialized
+     * individually. Called before any component is replaced.
+     */
+    private void materialize() {
+        if (lazyBytes != null) {
+            getCoinbase();
+            getHashBlock();
+            getCoinbaseBranch();
+            getChainMerkleBranch();
+            getParentHeader();
+            lazyBytes = null;
+        }
+    }
+
+    /**
+     * Stop this header and its components referencing the array they were
+     * parsed from, for example before a pooled payload is reused. The
+     * components are built if need be, and serialized individually from
+     * then on. The header is unparented meanwhile, so that dropping its
+     * cached bytes does not invalidate the block's hash.
+     */
+    void detachPayload() {
+        final Message block = parent;
+        setParent(null);
+        materialize();
+        AltcoinBlock.detachPayload(transaction);
+        coinbaseBranch.unCache();
+        chainMerkleBranch.unCache();
+        if (parentHeader != null) {
+            parentHeader = new BlockHeaderView(parentHeader.toByteArray(), 0);
+        }
+        unCache();
+        setParent(block);
+    }
+
+    /**
+     * Whether this header was parsed lazily and some of its components have
+     * not yet been built.
+     */
+    public boolean isLazy() {
+        return lazyBytes != null
+            && (transaction == null || hashBlock == null || coinbaseBranch == null
+                || chainMerkleBranch == null || parentHeader == null);
+    }
+
     public int getOptimalEncodingMessageSize() {
         if (optimalEncodingMessageSize != 0)
             return optimalEncodingMessageSize;
@@ -164,18 +253,27 @@ public class AuxPoW extends ChildMessage {
      * @param chain If provided, will be used to estimate lock times (if set). Can be null.
      */
     public String toString(@Nullable AbstractBlockChain chain, @Nullable CharSequence indent) {
-		return transaction.toString(chain, indent);
+		return getCoinbase().toString(chain, indent);
     }
 
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        if (lazyBytes != null) {
+            // Unmodified since parsing, so the wire bytes can be written as-is
+            stream.write(lazyBytes, lazyOffset, length);
+            return;
+        }
         transaction.bitcoinSerialize(stream);
         stream.write(Utils.reverseBytes(hashBlock.getBytes()));
 
         coinbaseBranch.bitcoinSerialize(stream);
         chainMerkleBranch.bitcoinSerialize(stream);
 
-        parentBlockHeader.bitcoinSerializeToStream(stream);
+        if (parentBlockHeader != null) {
+            parentBlockHeader.bitcoinSerializeToStream(stream);
+        } else {
+            parentHeader.write(stream);
+        }
     }
 
     @Override
@@ -183,22 +281,22 @@ public class AuxPoW extends ChildMessage {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         AuxPoW input = (AuxPoW) o;
-        if (!transaction.equals(input.transaction)) return false;
-        if (!hashBlock.equals(input.hashBlock)) return false;
-        if (!coinbaseBranch.equals(input.coinbaseBranch)) return false;
-        if (!chainMerkleBranch.equals(input.chainMerkleBranch)) return false;
-        if (!parentBlockHeader.equals(input.parentBlockHeader)) return false;
+        if (!getCoinbase().equals(input.getCoinbase())) return false;
+        if (!getHashBlock().equals(input.getHashBlock())) return false;
+        if (!getCoinbaseBranch().equals(input.getCoinbaseBranch())) return false;
+        if (!getChainMerkleBranch().equals(input.getChainMerkleBranch())) return false;
+        if (!getParentHeader().equals(input.getParentHeader())) return false;
         return getHash().equals(input.getHash());
     }
 
     @Override
     public int hashCode() {
         int result = 1;
-        result = 31 * result + transaction.hashCode();
-        result = 31 * result + hashBlock.hashCode();
-        result = 31 * result + coinbaseBranch.hashCode();
-        result = 31 * result + chainMerkleBranch.hashCode();
-        result = 31 * result + parentBlockHeader.hashCode();
+        result = 31 * result + getCoinbase().hashCode();
+        result = 31 * result + getHashBlock().hashCode();
+        result = 31 * result + getCoinbaseBranch().hashCode();
+        result = 31 * result + getChainMerkleBranch().hashCode();
+        result = 31 * result + getParentHeader().hashCode();
         return result;
     }
 
@@ -209,15 +307,51 @@ public class AuxPoW extends ChildMessage {
      * blocks at the difficulty of the child blockchain.
      */
     public AltcoinBlock getParentBlockHeader() {
+        if (parentBlockHeader == null && getParentHeader() != null) {
+            parentBlockHeader = parentHeader.toBlock(params, serializer);
+        }
         return parentBlockHeader;
     }
 
+    /**
+     * Get a view of the block header from the parent blockchain, which reads
+     * its fields from the AuxPoW header's bytes rather than parsing them into
+     * a block.
+     *
+     * @return the parent header, or null if none has been set.
+     */
+    @Nullable
+    public BlockHeaderView getParentHeader() {
+        if (parentHeader == null) {
+            if (lazyBytes != null) {
+                parentHeader = new BlockHeaderView(lazyBytes, lazyOffset + parentHeaderOffset);
+            } else if (parentBlockHeader != null) {
+                parentHeader = new BlockHeaderView(parentBlockHeader.bitcoinSerialize(), 0);
+            }
+        }
+        return parentHeader;
+    }
+
+    /**
+     * Get the hash of the parent block, as recorded in the header.
+     */
+    private Sha256Hash getHashBlock() {
+        if (hashBlock == null && lazyBytes != null) {
+            final int start = lazyOffset + hashBlockOffset;
+            hashBlock = Sha256Hash.wrapReversed(Arrays.copyOfRange(lazyBytes, start, start + 32));
+        }
+        return hashBlock;
+    }
+
     /**
      * Get the coinbase transaction from the AuxPoW header. This should contain a
      * reference back to the block hash in its input scripts, to prove that the
      * transaction was created after the block.
      */
     public Transaction getCoinbase() {
+        if (transaction == null && lazyBytes != null) {
+            transaction = new Transaction(params, lazyBytes, lazyOffset, this, serializer, Message.UNKNOWN_LENGTH, null);
+        }
         return transaction;
     }
 
@@ -225,6 +359,9 @@ public class AuxPoW extends ChildMessage {
      * Get the Merkle branch used to connect the AuXPow header with this blockchain.
      */
     public MerkleBranch getChainMerkleBranch() {
+        if (chainMerkleBranch == null && lazyBytes != null) {
+            chainMerkleBranch = new MerkleBranch(params, this, lazyBytes, lazyOffset + chainMerkleBranchOffset, serializer);
+        }
         return chainMerkleBranch;
     }
 
@@ -232,114 +369,173 @@ public class AuxPoW extends ChildMessage {
      * Get the Merkle branch used to connect the coinbase transaction with this blockchain.
      */
     public MerkleBranch getCoinbaseBranch() {
+        if (coinbaseBranch == null && lazyBytes != null) {
+            coinbaseBranch = new MerkleBranch(params, this, lazyBytes, lazyOffset + coinbaseBranchOffset, serializer);
+        }
         return coinbaseBranch;
     }
 
+    /**
+     * Outcome of checking an AuxPoW header, so that callers on the header
+     * verification path can reject a header without the cost of constructing
+     * an exception.
+     */
+    public enum CheckResult {
+        VALID(null),
+        NOT_AUXPOW_NETWORK("Network parameters are not an instance of AuxPoWNetworkParameters, AuxPoW support is not available."),
+        // I don't like the message, but it correlates with what's in the reference client.
+        NOT_A_GENERATE("AuxPow is not a generate"),
+        PARENT_HAS_OUR_CHAIN_ID("Aux POW parent has our chain ID"),
+        CHAIN_MERKLE_BRANCH_TOO_LONG("Aux POW chain merkle branch too long"),
+        MERKLE_ROOT_INCORRECT("Aux POW merkle root incorrect"),
+        COINBASE_HAS_NO_INPUTS("Coinbase transaction has no inputs"),
+        MISSING_CHAIN_MERKLE_ROOT("Aux POW missing chain merkle root in parent coinbase"),
+        MULTIPLE_MERGED_MINING_HEADERS("Multiple merged mining headers in coinbase"),
+        HEADER_NOT_BEFORE_ROOT("Merged mining header is not just before chain merkle root"),
+        CHAIN_MERKLE_ROOT_TOO_LATE("Aux POW chain merkle root must start in the first 20 bytes of the parent coinbase"),
+        MISSING_SIZE_AND_NONCE("Aux POW missing chain merkle tree size and nonce in parent coinbase"),
+        BRANCH_SIZE_MISMATCH("Aux POW merkle branch size does not match parent coinbase"),
+        WRONG_CHAIN_INDEX("Aux POW wrong index in chain merkle branch"),
+        HASH_ABOVE_TARGET("Hash is higher than target");
+
+        @Nullable private final String message;
+
+        CheckResult(@Nullable final String message) {
+            this.message = message;
+        }
+
+        /**
+         * Get a description of why the check failed, or null if it passed.
+         */
+        @Nullable
+        public String getMessage() {
+            return message;
+        }
+
+        public boolean isValid() {
+            return this == VALID;
+        }
+    }
+
     /**
      * Check the proof of work for this AuxPoW header meets the target
      * difficulty.
      *
      * @param hashAuxBlock hash of the block the AuxPoW header is attached to.
      * @param target the difficulty target after decoding from compact bits.
+     * @param throwException whether to throw an exception if the check fails.
+     * @return true if the proof of work is valid, false otherwise (if no
+     * exception is thrown).
+     * @throws VerificationException if the check fails and throwException is
+     * set.
+     */
+    protected boolean checkProofOfWork(final Sha256Hash hashAuxBlock, final UInt256 target,
+            final boolean throwException) throws VerificationException {
+        final CheckResult result = check(hashAuxBlock, target);
+        if (result.isValid()) {
+            return true;
+        }
+        if (throwException) {
+            throw new VerificationException(result.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Check the proof of work for this AuxPoW header meets the target
+     * difficulty, following the reference client's
+     * {@code CAuxPow::check()} and then checking the parent block's hash
+     * against the target.
+     *
+     * @param hashAuxBlock hash of the block the AuxPoW header is attached to.
+     * @param target the difficulty target after decoding from compact bits.
+     * @return {@link CheckResult#VALID} or the reason the check failed.
      */
-	/*
-    protected boolean checkProofOfWork(Sha256Hash hashAuxBlock,
-        BigInteger target, boolean throwException) throws VerificationException {
+    public CheckResult check(final Sha256Hash hashAuxBlock, final UInt256 target) {
         if (!(params instanceof AuxPoWNetworkParameters)) {
-            if (throwException) {
-                // Should be impossible
-                throw new VerificationException("Network parameters are not an instance of AuxPoWNetworkParameters, AuxPoW support is not available.");
-            }
-            return false;
+            // Should be impossible
+            return CheckResult.NOT_AUXPOW_NETWORK;
         }
         final AuxPoWNetworkParameters altcoinParams = (AuxPoWNetworkParameters) params;
-        
+
         if (0 != this.getCoinbaseBranch().getIndex()) {
-            if (throwException) {
-                // I don't like the message, but it correlates with what's in the reference client.
-                throw new VerificationException("AuxPow is not a generate");
-            }
-            return false;
+            return CheckResult.NOT_A_GENERATE;
         }
 
         if (!altcoinParams.isTestNet()
-            && parentBlockHeader.getChainID() == altcoinParams.getChainID()) {
-            if (throwException) {
-                throw new VerificationException("Aux POW parent has our chain ID");
-            }
-            return false;
+            && getParentHeader().getChainID() == altcoinParams.getChainID()) {
+            return CheckResult.PARENT_HAS_OUR_CHAIN_ID;
         }
 
-        if (this.getChainMerkleBranch().size() > 30) {
-            if (throwException) {
-                throw new VerificationException("Aux POW chain merkle branch too long");
-            }
-            return false;
+        final int merkleHeight = this.getChainMerkleBranch().size();
+        if (merkleHeight > 30) {
+            return CheckResult.CHAIN_MERKLE_BRANCH_TOO_LONG;
         }
 
-        Sha256Hash nRootHash = getChainMerkleBranch().calculateMerkleRoot(hashAuxBlock);
-        final byte[] vchRootHash = nRootHash.getBytes();
-
         // Check that the coinbase transaction is in the merkle tree of the
         // parent block header
-        if (!getCoinbaseBranch().calculateMerkleRoot(getCoinbase().getHash()).equals(parentBlockHeader.getMerkleRoot())) {
-            if (throwException) {
-                throw new VerificationException("Aux POW merkle root incorrect");
-            }
-            return false;
+        if (!getCoinbaseBranch().isMerkleRoot(getCoinbase().getHash(), getParentHeader().getMerkleRoot())) {
+            return CheckResult.MERKLE_ROOT_INCORRECT;
         }
 
         if (this.getCoinbase().getInputs().isEmpty()) {
-            throw new VerificationException("Coinbase transaction has no inputs");
+            return CheckResult.COINBASE_HAS_NO_INPUTS;
         }
 
         // Check that the chain merkle root is in the coinbase
+        final byte[] vchRootHash = getChainMerkleBranch().calculateMerkleRoot(hashAuxBlock).getBytes();
         final byte[] script = this.getCoinbase().getInput(0).getScriptBytes();
 
-        // Check that the same work is not submitted twice to our chain, by
-        // confirming that the child block hash is in the coinbase merkle tree
+        // Find the first merged mining header and the first chain merkle root in
+        // a single pass, only comparing in full where the leading byte matches.
+        // A second merged mining header means the same work could be submitted
+        // twice to our chain.
+        final byte headerFirst = MERGED_MINING_HEADER[0];
+        final byte rootFirst = vchRootHash[0];
+        final int headerEnd = script.length - MERGED_MINING_HEADER.length;
+        final int rootEnd = script.length - vchRootHash.length;
         int pcHead = -1;
         int pc = -1;
+        boolean multipleHeaders = false;
 
-        for (int scriptIdx = 0; scriptIdx < script.length; scriptIdx++) {
-            if (arrayMatch(script, scriptIdx, MERGED_MINING_HEADER)) {
-                // Enforce only one chain merkle root by checking that a single instance of the merged
-                // mining header exists just before.
+        for (int scriptIdx = 0; scriptIdx <= headerEnd; scriptIdx++) {
+            final byte b = script[scriptIdx];
+            if (b == headerFirst && regionMatches(script, scriptIdx, MERGED_MINING_HEADER)) {
                 if (pcHead >= 0) {
-                    if (throwException) {
-                        throw new VerificationException("Multiple merged mining headers in coinbase");
+                    multipleHeaders = true;
+                    if (pc >= 0) {
+                        break;
                     }
-                    return false;
+                } else {
+                    pcHead = scriptIdx;
                 }
-                pcHead = scriptIdx;
-            } else if (arrayMatch(script, scriptIdx, vchRootHash)) {
+            }
+            if (pc < 0 && b == rootFirst && scriptIdx <= rootEnd
+                    && regionMatches(script, scriptIdx, vchRootHash)) {
                 pc = scriptIdx;
+                if (multipleHeaders) {
+                    break;
+                }
             }
         }
 
         if (pc == -1) {
-            if (throwException) {
-                throw new VerificationException("Aux POW missing chain merkle root in parent coinbase");
-            }
-            return false;
+            return CheckResult.MISSING_CHAIN_MERKLE_ROOT;
         }
 
         if (pcHead != -1) {
+            if (multipleHeaders) {
+                return CheckResult.MULTIPLE_MERGED_MINING_HEADERS;
+            }
             if (pcHead + MERGED_MINING_HEADER.length != pc) {
-                if (throwException) {
-                    throw new VerificationException("Merged mining header is not just before chain merkle root");
-                }
-                return false;
+                return CheckResult.HEADER_NOT_BEFORE_ROOT;
             }
         } else {
             // For backward compatibility.
             // Enforce only one chain merkle root by checking that it starts early in the coinbase.
             // 8-12 bytes are enough to encode extraNonce and nBits.
             if (pc > MAX_INDEX_PC_BACKWARDS_COMPATIBILITY) {
-                if (throwException) {
-                    throw new VerificationException("Aux POW chain merkle root must start in the first 20 bytes of the parent coinbase");
-                }
-                return false;
+                return CheckResult.CHAIN_MERKLE_ROOT_TOO_LATE;
             }
         }
 
@@ -347,46 +543,24 @@ public class AuxPoW extends ChildMessage {
         // a nonce and our chain ID and comparing to the index.
         pc += vchRootHash.length;
         if ((script.length - pc) < 8) {
-            if (throwException) {
-                throw new VerificationException("Aux POW missing chain merkle tree size and nonce in parent coinbase");
-            }
-            return false;
+            return CheckResult.MISSING_SIZE_AND_NONCE;
         }
 
-        byte[] sizeBytes = Utils.reverseBytes(Arrays.copyOfRange(script, pc, pc + 4));
-        int branchSize = ByteBuffer.wrap(sizeBytes).getInt();
-        if (branchSize != (1 << getChainMerkleBranch().size())) {
-            if (throwException) {
-                throw new VerificationException("Aux POW merkle branch size does not match parent coinbase");
-            }
-            return false;
+        final int branchSize = (int) Utils.readUint32(script, pc);
+        if (branchSize != (1 << merkleHeight)) {
+            return CheckResult.BRANCH_SIZE_MISMATCH;
         }
 
-        long nonce = getNonceFromScript(script, pc);
-
-        if (getChainMerkleBranch().getIndex() != getExpectedIndex(nonce, ((AuxPoWNetworkParameters) params).getChainID(), getChainMerkleBranch().size())) {
-            if (throwException) {
-                throw new VerificationException("Aux POW wrong index in chain merkle branch for chain ID "
-                    + ((AuxPoWNetworkParameters) params).getChainID() + ". Was "
-                    + getChainMerkleBranch().getIndex() + ", expected "
-                    + getExpectedIndex(nonce, ((AuxPoWNetworkParameters) params).getChainID(), getChainMerkleBranch().size()));
-            }
-            return false;
+        final long nonce = getNonceFromScript(script, pc);
+        if (getChainMerkleBranch().getIndex() != getExpectedIndex(nonce, altcoinParams.getChainID(), merkleHeight)) {
+            return CheckResult.WRONG_CHAIN_INDEX;
         }
 
-        final BigInteger hashVal = altcoinParams.getBlockDifficulty(getParentBlockHeader());
-    //    if (hashVal.compareTo(target) > 0) {
-            // Proof of work check failed!
-      //      if (throwException) {
-        //        throw new VerificationException("Hash is higher than target: " + org.libdohj.core.Utils.formatAsHash(hashVal) + " vs "
-          //              + target.toString(16));
-          //  }
-          //  return false;
-   //     }
-
-    //    return true;
+        if (!altcoinParams.getParentBlockDifficultyAsUInt256(getParentHeader()).isAtOrBelow(target)) {
+            return CheckResult.HASH_ABOVE_TARGET;
+        }
+        return CheckResult.VALID;
     }
-*/
     /**
      * Get the nonce value from the coinbase transaction script.
      *
@@ -398,10 +572,8 @@ public class AuxPoW extends ChildMessage {
      */
     protected static long getNonceFromScript(final byte[] script, int pc) {
         // Note that the nonce value is packed as platform order (typically
-        // little-endian) so we have to convert to big-endian for Java
-        final byte[] nonceBytes = Utils.reverseBytes(Arrays.copyOfRange(script, pc + 4, pc + 8));
-
-        return ByteBuffer.wrap(nonceBytes).getInt() & 0xffffffffl;
+        // little-endian)
+        return Utils.readUint32(script, pc + 4);
     }
 
     /**
@@ -432,7 +604,7 @@ public class AuxPoW extends ChildMessage {
     }
 
     public Transaction getTransaction() {
-        return transaction;
+        return getCoinbase();
     }
 
     /**
@@ -453,11 +625,27 @@ public class AuxPoW extends ChildMessage {
         return matchIdx == subArray.length;
     }
 
+    /**
+     * Test whether an array is at a specific offset within a longer array.
+     * Unlike {@link #arrayMatch(byte[], int, byte[])}, the caller must ensure
+     * the shorter array fits within the longer one from the offset, and has
+     * already compared the first byte.
+     */
+    private static boolean regionMatches(final byte[] script, final int offset, final byte[] subArray) {
+        for (int matchIdx = 1; matchIdx < subArray.length; matchIdx++) {
+            if (script[offset + matchIdx] != subArray[matchIdx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Set the merkle branch used to connect the coinbase transaction to the
      * parent block header.
      */
     public void setCoinbaseBranch(final MerkleBranch merkleBranch) {
+        materialize();
         this.coinbaseBranch = merkleBranch;
     }
 
@@ -465,6 +653,8 @@ public class AuxPoW extends ChildMessage {
      * Set the parent chain block header.
      */
     public void setParentBlockHeader(final AltcoinBlock header) {
+        materialize();
         this.parentBlockHeader = header;
+        this.parentHeader = null;
     }
 }
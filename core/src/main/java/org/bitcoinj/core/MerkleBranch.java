@@ -17,11 +17,15 @@
 
 package org.bitcoinj.core;
 
+import org.libdohj.core.HeadersScanner;
+
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -37,6 +41,22 @@ import java.util.List;
 public class MerkleBranch extends ChildMessage {
     private static final long serialVersionUID = 2;
 
+    private static final byte[] EMPTY = new byte[0];
+
+    /** Per-thread digest and buffer for the two hashes being combined at each level. */
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return Sha256Hash.newDigest();
+        }
+    };
+    private static final ThreadLocal<byte[]> CONCAT_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[Sha256Hash.LENGTH * 2];
+        }
+    };
+
     // Merkle branches can be encoded in a way that will use more bytes than is optimal
     // (due to VarInts having multiple encodings)
     // MAX_BLOCK_SIZE must be compared to the optimal encoding, not the actual encoding, so when parsing, we keep track
@@ -44,14 +64,15 @@ public class MerkleBranch extends ChildMessage {
     // can properly keep track of optimal encoded size
     private transient int optimalEncodingMessageSize;
 
-    private List<Sha256Hash> hashes;
+    /** Branch hashes, concatenated in little endian (wire) order. */
+    private byte[] hashBytes;
     private long index;
 
     public MerkleBranch(NetworkParameters params, @Nullable ChildMessage parent) {
         super(params);
         setParent(parent);
 
-        this.hashes = new ArrayList<Sha256Hash>();
+        this.hashBytes = EMPTY;
         this.index = 0;
     }
 
@@ -82,14 +103,33 @@ public class MerkleBranch extends ChildMessage {
         super(params);
         setParent(parent);
 
-        this.hashes = hashes;
+        setHashes(hashes);
         this.index = branchSideMask;
     }
 
-    public static int calcLength(byte[] buf, int offset) {
-        VarInt varint = new VarInt(buf, offset);
+    /**
+     * Create a branch from hashes already concatenated in little endian
+     * (wire) order. The array is not copied, and must not be modified
+     * afterwards.
+     *
+     * @param hashBytes the branch hashes, from the one applied to the leaf
+     * upwards.
+     * @param branchSideMask the side mask, which for a transaction merkle
+     * branch is the index of the transaction in the block.
+     */
+    public static MerkleBranch fromHashBytes(final NetworkParameters params, @Nullable final ChildMessage parent,
+            final byte[] hashBytes, final long branchSideMask) {
+        if (hashBytes.length % Sha256Hash.LENGTH != 0) {
+            throw new IllegalArgumentException("Hash bytes are not a whole number of hashes");
+        }
+        final MerkleBranch branch = new MerkleBranch(params, parent);
+        branch.hashBytes = hashBytes;
+        branch.setIndex(branchSideMask);
+        return branch;
+    }
 
-        return ((int) varint.value) * 4 + 4;
+    public static int calcLength(byte[] buf, int offset) {
+        return HeadersScanner.merkleBranchLength(buf, offset, buf.length);
     }
 
     @Override
@@ -98,10 +138,10 @@ public class MerkleBranch extends ChildMessage {
 
         final int hashCount = (int) readVarInt();
         optimalEncodingMessageSize += VarInt.sizeOf(hashCount);
-        hashes = new ArrayList<Sha256Hash>(hashCount);
-        for (int hashIdx = 0; hashIdx < hashCount; hashIdx++) {
-            hashes.add(readHash());
+        if (hashCount < 0 || hashCount > (payload.length - cursor) / Sha256Hash.LENGTH) {
+            throw new ProtocolException("Merkle branch extends past end of message");
         }
+        hashBytes = readBytes(Sha256Hash.LENGTH * hashCount);
         optimalEncodingMessageSize += 32 * hashCount;
         setIndex(readUint32());
         optimalEncodingMessageSize += 4;
@@ -110,10 +150,8 @@ public class MerkleBranch extends ChildMessage {
 
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
-        stream.write(new VarInt(hashes.size()).encode());
-        for (Sha256Hash hash: hashes) {
-                stream.write(Utils.reverseBytes(hash.getBytes()));
-        }
+        stream.write(new VarInt(size()).encode());
+        stream.write(hashBytes);
         Utils.uint32ToByteStreamLE(index, stream);
     }
 
@@ -122,33 +160,86 @@ public class MerkleBranch extends ChildMessage {
      * Used to verify that the given leaf and root are part of the same tree.
      */
     public Sha256Hash calculateMerkleRoot(final Sha256Hash leaf) {
-        byte[] target = leaf.getReversedBytes();
+        final byte[] root = new byte[Sha256Hash.LENGTH];
+        calculateMerkleRoot(leaf, root, 0);
+        return Sha256Hash.wrapReversed(root);
+    }
+
+    /**
+     * Test whether applying this branch to the given leaf hash produces the
+     * expected root, without creating a hash object for the calculated root.
+     */
+    public boolean isMerkleRoot(final Sha256Hash leaf, final Sha256Hash expectedRoot) {
+        // The root is left at the start of the concatenation buffer
+        final byte[] root = CONCAT_BUFFER.get();
+        calculateMerkleRoot(leaf, root, 0);
+        final byte[] expected = expectedRoot.getBytes();
+        for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+            if (root[Sha256Hash.LENGTH - 1 - byteIdx] != expected[byteIdx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculate the merkle branch root based on the supplied hashes and the
+     * given leaf hash, writing it in little endian (wire) order into the given
+     * array.
+     */
+    public void calculateMerkleRoot(final Sha256Hash leaf, final byte[] out, final int outOffset) {
+        final MessageDigest digest = DIGEST.get();
+        final byte[] buffer = CONCAT_BUFFER.get();
+        final byte[] leafBytes = leaf.getBytes();
         long mask = index;
-        MessageDigest digest = Sha256Hash.newDigest();
 
-        for (Sha256Hash hash: hashes) {
-            digest.reset();
-            if ((mask & 1) == 0) { // 0 means it goes on the right
-                digest.update(target);
-                digest.update(hash.getReversedBytes());
-            } else {
-                digest.update(hash.getReversedBytes());
-                digest.update(target);
+        // The running hash is kept in whichever half of the buffer it is to
+        // be applied on next
+        for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+            buffer[byteIdx] = leafBytes[Sha256Hash.LENGTH - 1 - byteIdx];
+        }
+        try {
+            final int hashCount = size();
+            for (int hashIdx = 0; hashIdx < hashCount; hashIdx++) {
+                final int hashOffset = hashIdx * Sha256Hash.LENGTH;
+                if ((mask & 1) == 0) { // 0 means it goes on the right
+                    System.arraycopy(hashBytes, hashOffset, buffer, Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+                } else {
+                    System.arraycopy(buffer, 0, buffer, Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+                    System.arraycopy(hashBytes, hashOffset, buffer, 0, Sha256Hash.LENGTH);
+                }
+                // Double-digest the values
+                digest.reset();
+                digest.update(buffer, 0, Sha256Hash.LENGTH * 2);
+                digest.digest(buffer, 0, Sha256Hash.LENGTH);
+                digest.update(buffer, 0, Sha256Hash.LENGTH);
+                digest.digest(buffer, 0, Sha256Hash.LENGTH);
+                mask >>= 1;
             }
-            // Double-digest the values
-            target = digest.digest();
-            digest.reset();
-            target = digest.digest(target);
-            mask >>= 1;
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Cannot happen.
         }
-        return Sha256Hash.wrapReversed(target);
+        System.arraycopy(buffer, 0, out, outOffset, Sha256Hash.LENGTH);
     }
 
     /**
      * Get the hashes which make up this branch.
      */
     public List<Sha256Hash> getHashes() {
-        return Collections.unmodifiableList(this.hashes);
+        final int hashCount = size();
+        final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(hashCount);
+        for (int hashIdx = 0; hashIdx < hashCount; hashIdx++) {
+            hashes.add(getBranchHash(hashIdx));
+        }
+        return Collections.unmodifiableList(hashes);
+    }
+
+    /**
+     * Get one hash from this branch, where 0 is the hash applied to the leaf.
+     */
+    public Sha256Hash getBranchHash(final int hashIdx) {
+        final int hashOffset = hashIdx * Sha256Hash.LENGTH;
+        return Sha256Hash.wrapReversed(Arrays.copyOfRange(hashBytes, hashOffset, hashOffset + Sha256Hash.LENGTH));
     }
 
     /**
@@ -164,7 +255,13 @@ public class MerkleBranch extends ChildMessage {
      * @param hashes the hashes to set
      */
     public void setHashes(List<Sha256Hash> hashes) {
-        this.hashes = hashes;
+        final byte[] newHashBytes = new byte[hashes.size() * Sha256Hash.LENGTH];
+        int hashOffset = 0;
+        for (Sha256Hash hash: hashes) {
+            System.arraycopy(hash.getReversedBytes(), 0, newHashBytes, hashOffset, Sha256Hash.LENGTH);
+            hashOffset += Sha256Hash.LENGTH;
+        }
+        this.hashBytes = newHashBytes;
     }
 
     /**
@@ -179,7 +276,7 @@ public class MerkleBranch extends ChildMessage {
      * Get the number of hashes in this branch.
      */
     public int size() {
-        return hashes.size();
+        return hashBytes.length / Sha256Hash.LENGTH;
     }
 
     public int getOptimalEncodingMessageSize() {
@@ -206,7 +303,7 @@ public class MerkleBranch extends ChildMessage {
 
         MerkleBranch input = (MerkleBranch) o;
 
-        if (!hashes.equals(input.hashes)) return false;
+        if (!Arrays.equals(hashBytes, input.hashBytes)) return false;
         if (index != input.index) return false;
 
         return true;
@@ -215,7 +312,7 @@ public class MerkleBranch extends ChildMessage {
     @Override
     public int hashCode() {
         int result = 1;
-        result = 31 * result + hashes.hashCode();
+        result = 31 * result + Arrays.hashCode(hashBytes);
         result = 31 * result + (int) index;
         return result;
     }
@@ -33,6 +33,16 @@ public interface AltcoinNetworkParameters {
      */
     BigInteger getBlockDifficulty(Block block);
 
+    /**
+     * Get the difficulty target the given block, as a fixed width value. Networks
+     * on the header verification path should override this to avoid creating a
+     * {@link BigInteger} per header; the default converts the result of
+     * {@link #getBlockDifficulty(Block)}.
+     */
+    default UInt256 getBlockDifficultyAsUInt256(Block block) {
+        return UInt256.fromBigInteger(getBlockDifficulty(block));
+    }
+
     public boolean isTestNet();
 
     /**
@@ -3,13 +3,101 @@ package org.libdohj.core;
 import org.bitcoinj.core.*;
 import org.bitcoinj.core.Utils;
 
+import javax.annotation.Nullable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
 /**
  * @author jrn
  */
 public class AltcoinSerializer extends BitcoinSerializer {
+    private final boolean lazyAuxPoW;
+    @Nullable private final PayloadBufferPool payloadPool;
 
     public AltcoinSerializer(NetworkParameters params, boolean parseRetain) {
+        this(params, parseRetain, false);
+    }
+
+    /**
+     * @param params network parameters.
+     * @param parseRetain retain the backing byte array of parsed messages.
+     * @param lazyAuxPoW only record where the parts of an AuxPoW header are
+     * when parsing, and build the coinbase transaction, merkle branches and
+     * parent block header when they are first accessed. Headers which are
+     * only stored or relayed then never pay for parsing them.
+     */
+    public AltcoinSerializer(NetworkParameters params, boolean parseRetain, boolean lazyAuxPoW) {
+        this(params, parseRetain, lazyAuxPoW, null);
+    }
+
+    /**
+     * @param params network parameters.
+     * @param parseRetain retain the backing byte array of parsed messages.
+     * @param lazyAuxPoW parse AuxPoW headers lazily.
+     * @param payloadPool in parse-retain mode, read block payloads into
+     * buffers from this pool, which go back to it when the block is
+     * {@link AltcoinBlock#release() released}, for example by a
+     * {@link PooledBlockReleaser}. Null to allocate payloads normally.
+     */
+    public AltcoinSerializer(NetworkParameters params, boolean parseRetain, boolean lazyAuxPoW,
+                             @Nullable PayloadBufferPool payloadPool) {
         super(params, parseRetain);
+        this.lazyAuxPoW = lazyAuxPoW;
+        this.payloadPool = payloadPool;
+    }
+
+    /**
+     * Whether AuxPoW headers are parsed lazily.
+     */
+    public boolean isLazyAuxPoW() {
+        return lazyAuxPoW;
+    }
+
+    /**
+     * Get the pool block payloads are read into, if any.
+     */
+    @Nullable
+    public PayloadBufferPool getPayloadPool() {
+        return payloadPool;
+    }
+
+    /**
+     * Whether retained block payloads are held in pooled buffers.
+     */
+    private boolean isPooling() {
+        return payloadPool != null && isParseRetainMode();
+    }
+
+    /**
+     * Deserialize a message payload. Where payloads are pooled, blocks are
+     * read straight into a pooled buffer instead of a new array.
+     */
+    @Override
+    public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in)
+            throws ProtocolException, BufferUnderflowException {
+        if (!isPooling() || !"block".equals(header.command)) {
+            return super.deserializePayload(header, in);
+        }
+        final PayloadBufferPool.PooledBuffer payload = payloadPool.acquire(header.size);
+        try {
+            in.get(payload.array(), 0, header.size);
+            final byte[] hash = Sha256Hash.hashTwice(payload.array(), 0, header.size);
+            for (int byteIdx = 0; byteIdx < header.checksum.length; byteIdx++) {
+                if (hash[byteIdx] != header.checksum[byteIdx]) {
+                    throw new ProtocolException("Checksum failed to verify, actual "
+                        + Utils.HEX.encode(hash) + " vs " + Utils.HEX.encode(header.checksum));
+                }
+            }
+            final AltcoinBlock block = new AltcoinBlock(getParameters(), payload, this);
+            // The pooled array may be longer than the payload, so the parser cannot catch this
+            if (block.getMessageSize() > header.size) {
+                throw new ProtocolException("Block extends past end of message");
+            }
+            return block;
+        } catch (RuntimeException e) {
+            payload.release();
+            throw e;
+        }
     }
 
     @Override
@@ -17,33 +105,145 @@ public class AltcoinSerializer extends BitcoinSerializer {
         return new AltcoinBlock(getParameters(), payloadBytes, offset, this, length);
     }
 
+    /**
+     * Parse a {@code merkleblock} message. The block header, any AuxPoW
+     * header and the partial merkle tree are all parsed in place from the
+     * payload, rather than from copies of it.
+     */
     @Override
     public FilteredBlock makeFilteredBlock(byte[] payloadBytes) throws ProtocolException {
-        long blockVersion = Utils.readUint32(payloadBytes, 0);
-        int headerSize = Block.HEADER_SIZE;
-
-        byte[] headerBytes = new byte[Block.HEADER_SIZE + 1];
-        System.arraycopy(payloadBytes, 0, headerBytes, 0, headerSize);
-        headerBytes[80] = 0; // Need to provide 0 transactions so the block header can be constructed
+        return makeFilteredBlock(payloadBytes, 0, payloadBytes.length);
+    }
 
+    private FilteredBlock makeFilteredBlock(final byte[] payloadBytes, final int offset, final int end)
+            throws ProtocolException {
+        if (end - offset < Block.HEADER_SIZE) {
+            throw new ProtocolException("Block header extends past end of message");
+        }
+        int headerLength = Block.HEADER_SIZE;
         if (this.getParameters() instanceof AuxPoWNetworkParameters) {
             final AuxPoWNetworkParameters auxPoWParams = (AuxPoWNetworkParameters) this.getParameters();
-            if (auxPoWParams.isAuxPoWBlockVersion(blockVersion)) {
-                final AltcoinBlock header = (AltcoinBlock) makeBlock(headerBytes, 0, Message.UNKNOWN_LENGTH);
-                final AuxPoW auxpow = new AuxPoW(this.getParameters(), payloadBytes, Block.HEADER_SIZE, null, this);
-                header.setAuxPoW(auxpow);
-
-                int pmtOffset = headerSize + auxpow.getMessageSize();
-                int pmtLength = payloadBytes.length - pmtOffset;
-                byte[] pmtBytes = new byte[pmtLength];
-                System.arraycopy(payloadBytes, pmtOffset, pmtBytes, 0, pmtLength);
-                PartialMerkleTree pmt = new PartialMerkleTree(this.getParameters(), pmtBytes, 0);
-
-                return new FilteredBlock(this.getParameters(), header, pmt);
+            if (auxPoWParams.isAuxPoWBlockVersion(Utils.readUint32(payloadBytes, offset))) {
+                headerLength += HeadersScanner.auxPoWLength(payloadBytes, offset + Block.HEADER_SIZE, end);
             }
         }
 
-        // We are either not in AuxPoW mode, or the block is not an AuxPoW block.
-        return super.makeFilteredBlock(payloadBytes);
+        final AltcoinBlock header = AltcoinBlock.parseHeader(this.getParameters(), payloadBytes, offset, this);
+        final PartialMerkleTree pmt = new PartialMerkleTree(this.getParameters(), payloadBytes, offset + headerLength);
+        return new FilteredBlock(this.getParameters(), header, pmt);
+    }
+
+    /**
+     * Parse a block from the remaining bytes of a buffer, advancing its
+     * position past the block. Heap buffers are parsed in place from their
+     * backing array. Direct buffers, including memory-mapped files, are
+     * copied once in bulk, so their limit should be set to the end of the
+     * block rather than the end of the file. Where payloads are pooled, the
+     * copy is made into a pooled buffer.
+     *
+     * @throws ProtocolException if the block is malformed or extends past the
+     * buffer's limit.
+     */
+    public Block makeBlock(final ByteBuffer buffer) throws ProtocolException {
+        if (!buffer.hasArray() && isPooling()) {
+            // Copy into a pooled buffer rather than a new array
+            final PayloadBufferPool.PooledBuffer payload = payloadPool.acquire(buffer.remaining());
+            try {
+                buffer.duplicate().get(payload.array(), 0, payload.length());
+                final AltcoinBlock block = new AltcoinBlock(getParameters(), payload, this);
+                if (block.getMessageSize() > payload.length()) {
+                    throw new ProtocolException("Message extends past end of buffer");
+                }
+                buffer.position(buffer.position() + block.getMessageSize());
+                return block;
+            } catch (RuntimeException e) {
+                payload.release();
+                throw e;
+            }
+        }
+        final Region region = new Region(buffer);
+        final Block block = new AltcoinBlock(getParameters(), region.bytes, region.offset, this, region.length());
+        region.consume(buffer, block.getMessageSize());
+        return block;
+    }
+
+    /**
+     * Parse a {@code merkleblock} message from the remaining bytes of a
+     * buffer, advancing its position past the message.
+     *
+     * @see #makeBlock(ByteBuffer)
+     */
+    public FilteredBlock makeFilteredBlock(final ByteBuffer buffer) throws ProtocolException {
+        final Region region = new Region(buffer);
+        final FilteredBlock filteredBlock = makeFilteredBlock(region.bytes, region.offset, region.end);
+        region.consume(buffer, filteredBlock.getBlockHeader().getMessageSize()
+            + filteredBlock.getPartialMerkleTree().getMessageSize());
+        return filteredBlock;
+    }
+
+    /**
+     * Parse an AuxPoW header from the remaining bytes of a buffer, advancing
+     * its position past the header. Lazy parsing applies as for AuxPoW
+     * headers within blocks.
+     *
+     * @see #makeBlock(ByteBuffer)
+     */
+    public AuxPoW makeAuxPoW(final ByteBuffer buffer) throws ProtocolException {
+        final Region region = new Region(buffer);
+        final AuxPoW auxpow = new AuxPoW(getParameters(), region.bytes, region.offset, null, this);
+        region.consume(buffer, auxpow.getMessageSize());
+        return auxpow;
+    }
+
+    /**
+     * Parse a merkle branch from the remaining bytes of a buffer, advancing
+     * its position past the branch.
+     *
+     * @see #makeBlock(ByteBuffer)
+     */
+    public MerkleBranch makeMerkleBranch(final ByteBuffer buffer) throws ProtocolException {
+        final Region region = new Region(buffer);
+        final MerkleBranch branch = new MerkleBranch(getParameters(), null, region.bytes, region.offset, this);
+        region.consume(buffer, branch.getMessageSize());
+        return branch;
+    }
+
+    /**
+     * The remaining bytes of a buffer as a range of an array: the backing
+     * array for heap buffers, or a copy for direct and read-only buffers.
+     */
+    private static class Region {
+        private final byte[] bytes;
+        private final int offset;
+        private final int end;
+
+        private Region(final ByteBuffer buffer) {
+            if (buffer.hasArray()) {
+                bytes = buffer.array();
+                offset = buffer.arrayOffset() + buffer.position();
+            } else {
+                bytes = new byte[buffer.remaining()];
+                buffer.duplicate().get(bytes);
+                offset = 0;
+            }
+            end = offset + buffer.remaining();
+        }
+
+        private int length() {
+            return end - offset;
+        }
+
+        /**
+         * Advance the buffer past a message parsed from this region.
+         *
+         * @throws ProtocolException if the message was read from beyond the
+         * buffer's limit.
+         */
+        private void consume(final ByteBuffer buffer, final int messageSize) throws ProtocolException {
+            if (messageSize > length()) {
+                throw new ProtocolException("Message extends past end of buffer");
+            }
+            buffer.position(buffer.position() + messageSize);
+        }
     }
 }
@@ -24,4 +24,14 @@ public interface AuxPoWNetworkParameters extends AltcoinNetworkParameters {
     boolean isAuxPoWBlockVersion(long version);
 
     int getChainID();
+
+    /**
+     * Get the proof of work hash of the parent block header of an AuxPoW
+     * header, for comparing against the target difficulty. The parent chains
+     * merge mined with these networks use Scrypt, so by default this is the
+     * Scrypt hash of the header.
+     */
+    default UInt256 getParentBlockDifficultyAsUInt256(BlockHeaderView header) {
+        return UInt256.fromHash(header.getScryptHash());
+    }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.MessageSerializer;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Read-only view of an 80 byte block header held within a larger array,
+ * such as the parent block header inside an AuxPoW header. Fields are read
+ * directly from the array when requested, and the SHA256d and Scrypt hashes
+ * are calculated on first use, so the merged mining path can check a parent
+ * header without copying it or building a {@link Block}.
+ *
+ * <p>The view does not copy the array, so the bytes it covers must not be
+ * modified while it is in use.</p>
+ */
+public class BlockHeaderView {
+    private static final int PREV_HASH_OFFSET = 4;
+    private static final int MERKLE_ROOT_OFFSET = PREV_HASH_OFFSET + Sha256Hash.LENGTH;
+    private static final int TIME_OFFSET = MERKLE_ROOT_OFFSET + Sha256Hash.LENGTH;
+    private static final int BITS_OFFSET = TIME_OFFSET + 4;
+    private static final int NONCE_OFFSET = BITS_OFFSET + 4;
+
+    private final byte[] bytes;
+    private final int offset;
+
+    @Nullable private Sha256Hash hash;
+    @Nullable private Sha256Hash scryptHash;
+
+    /**
+     * Create a view of the header starting at the given offset.
+     *
+     * @throws IllegalArgumentException if the array does not hold a full
+     * header from the offset.
+     */
+    public BlockHeaderView(final byte[] bytes, final int offset) {
+        checkArgument(offset >= 0 && bytes.length - offset >= Block.HEADER_SIZE,
+            "Block header extends past end of array");
+        this.bytes = bytes;
+        this.offset = offset;
+    }
+
+    /**
+     * Create a view of the header starting at the given offset within a
+     * message being parsed.
+     *
+     * @throws ProtocolException if the array does not hold a full header from
+     * the offset.
+     */
+    public static BlockHeaderView parse(final byte[] bytes, final int offset) throws ProtocolException {
+        if (offset < 0 || bytes.length - offset < Block.HEADER_SIZE) {
+            throw new ProtocolException("Block header extends past end of message");
+        }
+        return new BlockHeaderView(bytes, offset);
+    }
+
+    /**
+     * Get the version without any filtering, including AuxPoW chain ID and
+     * flags.
+     */
+    public long getRawVersion() {
+        return Utils.readUint32(bytes, offset);
+    }
+
+    /**
+     * Get the chain ID (upper 16 bits) from an AuxPoW version number.
+     */
+    public long getChainID() {
+        return AltcoinBlock.getChainID(getRawVersion());
+    }
+
+    public Sha256Hash getPrevBlockHash() {
+        return readHash(PREV_HASH_OFFSET);
+    }
+
+    public Sha256Hash getMerkleRoot() {
+        return readHash(MERKLE_ROOT_OFFSET);
+    }
+
+    /**
+     * Test whether the merkle root of this header is the given hash, without
+     * creating a hash object for the header's own root.
+     */
+    public boolean isMerkleRoot(final Sha256Hash merkleRoot) {
+        final byte[] expected = merkleRoot.getBytes();
+        final int start = offset + MERKLE_ROOT_OFFSET;
+        for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+            // Hashes are held reversed on the wire
+            if (bytes[start + Sha256Hash.LENGTH - 1 - byteIdx] != expected[byteIdx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getTimeSeconds() {
+        return Utils.readUint32(bytes, offset + TIME_OFFSET);
+    }
+
+    public long getDifficultyTarget() {
+        return Utils.readUint32(bytes, offset + BITS_OFFSET);
+    }
+
+    public long getNonce() {
+        return Utils.readUint32(bytes, offset + NONCE_OFFSET);
+    }
+
+    /**
+     * Get the SHA256d hash of the header, calculating it on first use.
+     */
+    public Sha256Hash getHash() {
+        if (hash == null) {
+            hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bytes, offset, Block.HEADER_SIZE));
+        }
+        return hash;
+    }
+
+    /**
+     * Get the Scrypt hash of the header, big endian, calculating it on first
+     * use. Checks the process-wide {@link ScryptHashCache} before calculating
+     * the hash.
+     */
+    public Sha256Hash getScryptHash() {
+        if (scryptHash == null) {
+            final ScryptHashCache cache = ScryptHashCache.getDefault();
+            final Sha256Hash blockHash = getHash();
+            scryptHash = cache.get(blockHash);
+            if (scryptHash == null) {
+                final byte[] digest = new byte[ScryptEngine.DIGEST_LENGTH];
+                ScryptEngine.scrypt(bytes, offset, Block.HEADER_SIZE, digest, 0);
+                scryptHash = Sha256Hash.wrapReversed(digest);
+                cache.put(blockHash, scryptHash);
+            }
+        }
+        return scryptHash;
+    }
+
+    /**
+     * Write the 80 header bytes to the given stream.
+     */
+    public void write(final OutputStream stream) throws IOException {
+        stream.write(bytes, offset, Block.HEADER_SIZE);
+    }
+
+    /**
+     * Get a copy of the 80 header bytes.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(bytes, offset, offset + Block.HEADER_SIZE);
+    }
+
+    /**
+     * Build a full block object from this header, for callers which need one.
+     */
+    public AltcoinBlock toBlock(final NetworkParameters params, final MessageSerializer serializer)
+            throws ProtocolException {
+        // The block parser needs the header alone, or it tries to read transactions past its end
+        return new AltcoinBlock(params, toByteArray(), 0, serializer, Block.HEADER_SIZE);
+    }
+
+    private Sha256Hash readHash(final int fieldOffset) {
+        final byte[] hashBytes = new byte[Sha256Hash.LENGTH];
+        final int start = offset + fieldOffset;
+        for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+            hashBytes[byteIdx] = bytes[start + Sha256Hash.LENGTH - 1 - byteIdx];
+        }
+        return Sha256Hash.wrap(hashBytes);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return getHash().equals(((BlockHeaderView) o).getHash());
+    }
+
+    @Override
+    public int hashCode() {
+        return getHash().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "Block header " + getHash();
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Ring buffer of the time, difficulty target and hash of the most recent
+ * blocks of a chain, indexed by height, so difficulty calculations can look
+ * back through recent blocks without a block store lookup per block.
+ *
+ * <p>A history belongs to a single chain, and is passed to difficulty
+ * calculations on that chain by its owner. Blocks are added as they become
+ * the chain head, for example by a {@link DifficultyHistoryUpdater}
+ * listening to the block chain; nothing else should add them, as side chain
+ * blocks would displace the best chain.
+ * A block which follows the current tip
+ * (or any block still held, after a short reorganisation) replaces
+ * everything above its parent; anything else, such as a reorganisation
+ * deeper than the buffer, restarts the buffer from that block. Callers which
+ * need a block older than the buffer holds fall back to the block store.</p>
+ *
+ * <p>Each block held also records its nearest ancestor (or itself) which was
+ * not mined at minimum difficulty, so the testnet rule which reuses the last
+ * "real" difficulty target is answered without walking back through long
+ * runs of minimum difficulty blocks.</p>
+ *
+ * <p>Methods are synchronized; callers which need several lookups to be
+ * consistent with one another should also synchronize on the history.</p>
+ */
+public class DifficultyHistory {
+    /** Default number of blocks held. */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final int mask;
+    private final long minDifficultyTarget;
+    private final long[] times;
+    private final long[] difficultyTargets;
+    private final byte[] hashes;
+    /**
+     * Height of the nearest block at or before each block which was not mined
+     * at minimum difficulty. Where no such block has been seen since the run
+     * of minimum difficulty blocks began, holds the complement of the height
+     * the run was first seen at instead.
+     */
+    private final int[] anchorHeights;
+    /** Difficulty target of the block at the matching anchor height. */
+    private final long[] anchorTargets;
+
+    /** Height of the most recent block held. */
+    private int tipHeight = -1;
+    /** Number of consecutive blocks held, ending at the tip. */
+    private int size;
+
+    /**
+     * @param minDifficultyTarget compact difficulty target of blocks mined at
+     * minimum difficulty.
+     */
+    public DifficultyHistory(final long minDifficultyTarget) {
+        this(DEFAULT_CAPACITY, minDifficultyTarget);
+    }
+
+    /**
+     * @param capacity the number of blocks to hold, which must be a power of
+     * two.
+     * @param minDifficultyTarget compact difficulty target of blocks mined at
+     * minimum difficulty.
+     */
+    public DifficultyHistory(final int capacity, final long minDifficultyTarget) {
+        checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1, "Capacity must be a power of two");
+        this.mask = capacity - 1;
+        this.minDifficultyTarget = minDifficultyTarget;
+        this.times = new long[capacity];
+        this.difficultyTargets = new long[capacity];
+        this.hashes = new byte[capacity * Sha256Hash.LENGTH];
+        this.anchorHeights = new int[capacity];
+        this.anchorTargets = new long[capacity];
+    }
+
+    /**
+     * Record a block connecting to the chain, making it the tip.
+     */
+    public void connect(final StoredBlock block) {
+        final Block header = block.getHeader();
+        connect(block.getHeight(), header.getHash(), header.getPrevBlockHash(),
+            header.getTimeSeconds(), header.getDifficultyTarget());
+    }
+
+    /**
+     * Record a block connecting to the chain, making it the tip.
+     *
+     * @param height height of the block.
+     * @param hash hash of the block.
+     * @param prevBlockHash hash of the block's parent.
+     * @param time block time, in seconds.
+     * @param difficultyTarget compact difficulty target of the block.
+     */
+    public synchronized void connect(final int height, final Sha256Hash hash, final Sha256Hash prevBlockHash,
+                                     final long time, final long difficultyTarget) {
+        if (contains(height) && hashEquals(height, hash)) {
+            // Already held; drop anything above it
+            truncate(height);
+            return;
+        }
+        final int slot = height & mask;
+        if (difficultyTarget != minDifficultyTarget || height == 0) {
+            anchorHeights[slot] = height;
+            anchorTargets[slot] = difficultyTarget;
+        }
+        if (contains(height - 1) && hashEquals(height - 1, prevBlockHash)) {
+            truncate(height - 1);
+            if (difficultyTarget == minDifficultyTarget && height != 0) {
+                // Continues the parent's run, whether or not its anchor is known
+                final int parentSlot = (height - 1) & mask;
+                anchorHeights[slot] = anchorHeights[parentSlot];
+                anchorTargets[slot] = anchorTargets[parentSlot];
+            }
+        } else {
+            tipHeight = height - 1;
+            size = 0;
+            if (difficultyTarget == minDifficultyTarget && height != 0) {
+                anchorHeights[slot] = ~height;
+            }
+        }
+        times[slot] = time;
+        difficultyTargets[slot] = difficultyTarget;
+        System.arraycopy(hash.getBytes(), 0, hashes, slot * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+        tipHeight = height;
+        size = Math.min(size + 1, mask + 1);
+    }
+
+    private void truncate(final int height) {
+        size -= tipHeight - height;
+        tipHeight = height;
+    }
+
+    private boolean hashEquals(final int height, final Sha256Hash hash) {
+        final byte[] expected = hash.getBytes();
+        final int hashOffset = (height & mask) * Sha256Hash.LENGTH;
+        for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+            if (hashes[hashOffset + byteIdx] != expected[byteIdx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the block at the given height is held.
+     */
+    public synchronized boolean contains(final int height) {
+        return size > 0 && height <= tipHeight && height > tipHeight - size;
+    }
+
+    /**
+     * Whether the given block is held. The blocks held always form a chain,
+     * so if it is, so are all of its ancestors back to the oldest block held.
+     */
+    public synchronized boolean contains(final int height, final Sha256Hash hash) {
+        return contains(height) && hashEquals(height, hash);
+    }
+
+    /**
+     * Get the height of the most recent block held, or -1 if empty.
+     */
+    public synchronized int getTipHeight() {
+        return size > 0 ? tipHeight : -1;
+    }
+
+    /**
+     * Get the height of the oldest block held, or -1 if empty.
+     */
+    public synchronized int getOldestHeight() {
+        return size > 0 ? tipHeight - size + 1 : -1;
+    }
+
+    /**
+     * Get the time of the block at the given height.
+     *
+     * @throws IndexOutOfBoundsException if the block is not held.
+     */
+    public synchronized long getTimeSeconds(final int height) {
+        checkHeight(height);
+        return times[height & mask];
+    }
+
+    /**
+     * Get the compact difficulty target of the block at the given height.
+     *
+     * @throws IndexOutOfBoundsException if the block is not held.
+     */
+    public synchronized long getDifficultyTarget(final int height) {
+        checkHeight(height);
+        return difficultyTargets[height & mask];
+    }
+
+    /**
+     * Get the hash of the block at the given height.
+     *
+     * @throws IndexOutOfBoundsException if the block is not held.
+     */
+    public synchronized Sha256Hash getHash(final int height) {
+        checkHeight(height);
+        final byte[] hash = new byte[Sha256Hash.LENGTH];
+        System.arraycopy(hashes, (height & mask) * Sha256Hash.LENGTH, hash, 0, Sha256Hash.LENGTH);
+        return Sha256Hash.wrap(hash);
+    }
+
+    /**
+     * Get the difficulty target of the last block at or before the given
+     * height which was not mined at minimum difficulty, looking back no
+     * further than the last retarget. If every block since the retarget was
+     * mined at minimum difficulty, that is the minimum difficulty target.
+     *
+     * @param retargetInterval number of blocks between retargets.
+     * @return the compact difficulty target, or -1 if the blocks held do not
+     * reach back far enough to tell.
+     * @throws IndexOutOfBoundsException if the block is not held.
+     */
+    public synchronized long getLastNonMinDifficultyTarget(final int height, final int retargetInterval) {
+        checkHeight(height);
+        final int slot = height & mask;
+        final int anchorHeight = anchorHeights[slot];
+        final int lastRetargetHeight = height - height % retargetInterval;
+        if (anchorHeight >= 0) {
+            return anchorHeight >= lastRetargetHeight ? anchorTargets[slot] : minDifficultyTarget;
+        }
+        // Only minimum difficulty blocks seen; enough if they reach the retarget
+        return ~anchorHeight <= lastRetargetHeight ? minDifficultyTarget : -1;
+    }
+
+    /**
+     * Drop every block held.
+     */
+    public synchronized void clear() {
+        tipHeight = -1;
+        size = 0;
+    }
+
+    private void checkHeight(final int height) {
+        if (!contains(height)) {
+            throw new IndexOutOfBoundsException("Block at height " + height + " is not held");
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return size > 0
+            ? "Difficulty history from height " + getOldestHeight() + " to " + tipHeight
+            : "Empty difficulty history";
+    }
+}
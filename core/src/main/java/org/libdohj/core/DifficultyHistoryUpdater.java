@@ -0,0 +1,81 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.core.listeners.ReorganizeListener;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Keeps a {@link DifficultyHistory} following the best chain, connecting each
+ * block as it becomes the chain head, and the new chain's blocks after a
+ * reorganisation. Each chain needs its own updater and history. Add it to
+ * the block chain as both kinds of listener, with a same thread executor, so
+ * the history is up to date before the next block's difficulty is checked,
+ * and pass the history to the difficulty calculation:
+ *
+ * <pre>
+ * DifficultyHistoryUpdater updater = new DifficultyHistoryUpdater(params);
+ * chain.addNewBestBlockListener(Threading.SAME_THREAD, updater);
+ * chain.addReorganizeListener(Threading.SAME_THREAD, updater);
+ * ...
+ * params.checkDifficultyTransitions(storedPrev, block, store, updater.getDifficultyHistory());
+ * </pre>
+ */
+public class DifficultyHistoryUpdater implements NewBestBlockListener, ReorganizeListener {
+    private final DifficultyHistory difficultyHistory;
+
+    /**
+     * Keep a new, empty history of a chain on the given network.
+     */
+    public DifficultyHistoryUpdater(final NetworkParameters params) {
+        this(new DifficultyHistory(Utils.encodeCompactBits(params.getMaxTarget())));
+    }
+
+    public DifficultyHistoryUpdater(final DifficultyHistory difficultyHistory) {
+        this.difficultyHistory = checkNotNull(difficultyHistory);
+    }
+
+    public DifficultyHistory getDifficultyHistory() {
+        return difficultyHistory;
+    }
+
+    @Override
+    public void notifyNewBestBlock(final StoredBlock block) {
+        difficultyHistory.connect(block);
+    }
+
+    /**
+     * Connect the new chain's blocks, oldest first. Blocks above the split
+     * point are dropped by the first of them.
+     */
+    @Override
+    public void reorganize(final StoredBlock splitPoint, final List<StoredBlock> oldBlocks,
+                           final List<StoredBlock> newBlocks) {
+        synchronized (difficultyHistory) {
+            // New blocks are listed from the new chain head down
+            for (int blockIdx = newBlocks.size() - 1; blockIdx >= 0; blockIdx--) {
+                difficultyHistory.connect(newBlocks.get(blockIdx));
+            }
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.AuxPoW;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.HeadersMessage;
+import org.bitcoinj.core.MessageSerializer;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+
+import javax.annotation.Nullable;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * The headers from a {@code headers} message, held as primitive and packed
+ * byte arrays rather than one {@link AltcoinBlock} per header. Version,
+ * time, difficulty target and nonce are held as arrays of unsigned 32 bit
+ * values, and previous block hash, merkle root and block hash as
+ * consecutive 32 byte little endian (wire order) hashes. AuxPoW headers are
+ * not parsed, only located within the payload, which the batch keeps a
+ * reference to.
+ *
+ * <p>Linkage and proof of work are checked across the whole batch with
+ * tight loops over these arrays, and only the headers which are accepted
+ * need be promoted to blocks with {@link #toBlock(int)}. Proof of work is
+ * checked with Scrypt, as for {@link ScryptBatchHasher}.</p>
+ */
+public class HeaderBatch {
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return Sha256Hash.newDigest();
+        }
+    };
+
+    private final NetworkParameters params;
+    private final MessageSerializer serializer;
+    private final byte[] payload;
+    private final int count;
+
+    private final int[] offsets;
+    private final int[] versions;
+    private final int[] times;
+    private final int[] difficultyTargets;
+    private final int[] nonces;
+    private final byte[] prevHashes;
+    private final byte[] merkleRoots;
+    private final byte[] hashes;
+    /** Offset of each AuxPoW header in the payload, or -1 if there is none. */
+    private final int[] auxpowOffsets;
+    private final int[] auxpowLengths;
+
+    private HeaderBatch(final NetworkParameters params, final MessageSerializer serializer,
+                        final byte[] payload, final int count) {
+        this.params = params;
+        this.serializer = serializer;
+        this.payload = payload;
+        this.count = count;
+        this.offsets = new int[count];
+        this.versions = new int[count];
+        this.times = new int[count];
+        this.difficultyTargets = new int[count];
+        this.nonces = new int[count];
+        this.prevHashes = new byte[count * Sha256Hash.LENGTH];
+        this.merkleRoots = new byte[count * Sha256Hash.LENGTH];
+        this.hashes = new byte[count * Sha256Hash.LENGTH];
+        this.auxpowOffsets = new int[count];
+        this.auxpowLengths = new int[count];
+    }
+
+    /**
+     * Decode the payload of a {@code headers} message. The batch references
+     * the payload rather than copying it, so it must not be modified while
+     * the batch is in use.
+     *
+     * @param serializer the serializer used to promote headers to blocks.
+     * @throws ProtocolException if the payload is malformed or truncated.
+     */
+    public static HeaderBatch decode(final NetworkParameters params, final MessageSerializer serializer,
+                                     final byte[] payload) throws ProtocolException {
+        final long headerCount = HeadersScanner.readVarInt(payload, 0, payload.length);
+        if (headerCount > HeadersMessage.MAX_HEADERS) {
+            throw new ProtocolException("Too many headers: got " + headerCount
+                + " which is larger than " + HeadersMessage.MAX_HEADERS);
+        }
+        final HeaderBatch batch = new HeaderBatch(params, serializer, payload, (int) headerCount);
+        final AuxPoWNetworkParameters auxpowParams = params instanceof AuxPoWNetworkParameters
+            ? (AuxPoWNetworkParameters) params : null;
+        final MessageDigest digest = DIGEST.get();
+
+        int cursor = HeadersScanner.varIntSize(payload, 0, payload.length);
+        for (int headerIdx = 0; headerIdx < batch.count; headerIdx++) {
+            if (payload.length - cursor < Block.HEADER_SIZE) {
+                throw new ProtocolException("Block header extends past end of message");
+            }
+            batch.offsets[headerIdx] = cursor;
+            batch.versions[headerIdx] = (int) Utils.readUint32(payload, cursor);
+            System.arraycopy(payload, cursor + 4, batch.prevHashes, headerIdx * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+            System.arraycopy(payload, cursor + 36, batch.merkleRoots, headerIdx * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+            batch.times[headerIdx] = (int) Utils.readUint32(payload, cursor + 68);
+            batch.difficultyTargets[headerIdx] = (int) Utils.readUint32(payload, cursor + 72);
+            batch.nonces[headerIdx] = (int) Utils.readUint32(payload, cursor + 76);
+            hashTwice(digest, payload, cursor, batch.hashes, headerIdx * Sha256Hash.LENGTH);
+            cursor += Block.HEADER_SIZE;
+
+            if (auxpowParams != null && auxpowParams.isAuxPoWBlockVersion(batch.getVersion(headerIdx))) {
+                final int auxpowLength = HeadersScanner.auxPoWLength(payload, cursor, payload.length);
+                batch.auxpowOffsets[headerIdx] = cursor;
+                batch.auxpowLengths[headerIdx] = auxpowLength;
+                cursor += auxpowLength;
+            } else {
+                batch.auxpowOffsets[headerIdx] = -1;
+            }
+
+            // Each header is followed by a transaction count, which must be zero
+            if (cursor >= payload.length) {
+                throw new ProtocolException("Header extends past end of message");
+            }
+            if (payload[cursor] != 0) {
+                throw new ProtocolException("Block header does not end with a null byte");
+            }
+            cursor++;
+        }
+        return batch;
+    }
+
+    private static void hashTwice(final MessageDigest digest, final byte[] input, final int offset,
+                                  final byte[] out, final int outOffset) {
+        try {
+            digest.reset();
+            digest.update(input, offset, Block.HEADER_SIZE);
+            digest.digest(out, outOffset, Sha256Hash.LENGTH);
+            digest.update(out, outOffset, Sha256Hash.LENGTH);
+            digest.digest(out, outOffset, Sha256Hash.LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /**
+     * Get the number of headers in the batch.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Get the version without any filtering, including AuxPoW chain ID and
+     * flags.
+     */
+    public long getVersion(final int headerIdx) {
+        return versions[headerIdx] & 0xffffffffL;
+    }
+
+    public long getTimeSeconds(final int headerIdx) {
+        return times[headerIdx] & 0xffffffffL;
+    }
+
+    public long getDifficultyTarget(final int headerIdx) {
+        return difficultyTargets[headerIdx] & 0xffffffffL;
+    }
+
+    public long getNonce(final int headerIdx) {
+        return nonces[headerIdx] & 0xffffffffL;
+    }
+
+    public Sha256Hash getPrevBlockHash(final int headerIdx) {
+        return readHash(prevHashes, headerIdx);
+    }
+
+    public Sha256Hash getMerkleRoot(final int headerIdx) {
+        return readHash(merkleRoots, headerIdx);
+    }
+
+    /**
+     * Get the SHA256d hash of the header, calculated when it was decoded.
+     */
+    public Sha256Hash getHash(final int headerIdx) {
+        return readHash(hashes, headerIdx);
+    }
+
+    /**
+     * Whether the given header is followed by an AuxPoW header.
+     */
+    public boolean hasAuxPoW(final int headerIdx) {
+        return auxpowOffsets[headerIdx] >= 0;
+    }
+
+    /**
+     * Get the offset of the header's AuxPoW header in the payload, or -1 if
+     * it has none.
+     */
+    public int getAuxPoWOffset(final int headerIdx) {
+        return auxpowOffsets[headerIdx];
+    }
+
+    /**
+     * Get the length of the header's AuxPoW header, or zero if it has none.
+     */
+    public int getAuxPoWLength(final int headerIdx) {
+        return auxpowLengths[headerIdx];
+    }
+
+    /**
+     * Get the offset of the header in the payload.
+     */
+    public int getOffset(final int headerIdx) {
+        return offsets[headerIdx];
+    }
+
+    /**
+     * Find the first header which does not follow on from the one before it,
+     * where the first header must follow the given block.
+     *
+     * @param previous hash of the block the batch should follow, or null to
+     * only check the headers within the batch link to each other.
+     * @return the index of the first unlinked header, or -1 if they all link.
+     */
+    public int findUnlinked(@Nullable final Sha256Hash previous) {
+        if (count == 0) {
+            return -1;
+        }
+        if (previous != null) {
+            final byte[] expected = previous.getBytes();
+            for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+                if (prevHashes[byteIdx] != expected[Sha256Hash.LENGTH - 1 - byteIdx]) {
+                    return 0;
+                }
+            }
+        }
+        // Each header's previous hash must equal the hash of the header before
+        for (int headerIdx = 1; headerIdx < count; headerIdx++) {
+            final int prevOffset = headerIdx * Sha256Hash.LENGTH;
+            final int hashOffset = prevOffset - Sha256Hash.LENGTH;
+            for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+                if (prevHashes[prevOffset + byteIdx] != hashes[hashOffset + byteIdx]) {
+                    return headerIdx;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the first header whose proof of work is invalid. The Scrypt
+     * hashes of every header (or of the parent block header, for AuxPoW
+     * headers) are calculated together with the given hasher, then each is
+     * compared against its header's target. AuxPoW headers are then parsed
+     * and checked in full, reusing the parent hashes via the process-wide
+     * {@link ScryptHashCache}.
+     *
+     * @return the index of the first invalid header, or -1 if they are all
+     * valid.
+     */
+    public int findInvalidProofOfWork(final ScryptBatchHasher hasher) {
+        final int[] powOffsets = new int[count];
+        for (int headerIdx = 0; headerIdx < count; headerIdx++) {
+            powOffsets[headerIdx] = hasAuxPoW(headerIdx)
+                ? auxpowOffsets[headerIdx] + auxpowLengths[headerIdx] - Block.HEADER_SIZE
+                : offsets[headerIdx];
+        }
+        final byte[] digests = new byte[count * ScryptEngine.DIGEST_LENGTH];
+        hasher.hashHeaders(payload, powOffsets, count, digests);
+
+        final UInt256 maxTarget = UInt256.fromBigInteger(params.getMaxTarget());
+        for (int headerIdx = 0; headerIdx < count; headerIdx++) {
+            final long bits = getDifficultyTarget(headerIdx);
+            if (!UInt256.isValidCompactBits(bits)) {
+                return headerIdx;
+            }
+            final UInt256 target = UInt256.fromCompactBits(bits);
+            if (target.isZero() || !target.isAtOrBelow(maxTarget)) {
+                return headerIdx;
+            }
+            final int digestOffset = headerIdx * ScryptEngine.DIGEST_LENGTH;
+            if (!UInt256.fromLittleEndianBytes(digests, digestOffset).isAtOrBelow(target)) {
+                return headerIdx;
+            }
+            if (hasAuxPoW(headerIdx) && !checkAuxPoW(headerIdx, powOffsets[headerIdx], digests, digestOffset, target)) {
+                return headerIdx;
+            }
+        }
+        return -1;
+    }
+
+    private boolean checkAuxPoW(final int headerIdx, final int parentOffset, final byte[] digests,
+                                final int digestOffset, final UInt256 target) {
+        final BlockHeaderView parent = new BlockHeaderView(payload, parentOffset);
+        final byte[] scryptHash = new byte[ScryptEngine.DIGEST_LENGTH];
+        for (int byteIdx = 0; byteIdx < scryptHash.length; byteIdx++) {
+            scryptHash[byteIdx] = digests[digestOffset + scryptHash.length - 1 - byteIdx];
+        }
+        ScryptHashCache.getDefault().put(parent.getHash(), Sha256Hash.wrap(scryptHash));
+        try {
+            final AuxPoW auxpow = new AuxPoW(params, payload, auxpowOffsets[headerIdx], null, serializer);
+            return auxpow.check(getHash(headerIdx), target).isValid();
+        } catch (ProtocolException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Promote a header to a block object, including its AuxPoW header. The
+     * block is parsed from the batch's payload.
+     */
+    public AltcoinBlock toBlock(final int headerIdx) throws ProtocolException {
+        return AltcoinBlock.parseHeader(params, payload, offsets[headerIdx], serializer);
+    }
+
+    private static Sha256Hash readHash(final byte[] packed, final int headerIdx) {
+        final int start = headerIdx * Sha256Hash.LENGTH;
+        final byte[] hashBytes = Arrays.copyOfRange(packed, start, start + Sha256Hash.LENGTH);
+        return Sha256Hash.wrapReversed(hashBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "Header batch of " + count + " headers";
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.HeadersMessage;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+
+/**
+ * Finds the extent of each block header in a {@code headers} message,
+ * including any AuxPoW header, without parsing any of them. This lets
+ * headers be indexed, hashed or forwarded straight from the wire bytes, with
+ * only the ones actually verified being parsed.
+ *
+ * <p>The static methods measure individual wire structures in the same way,
+ * and do not allocate. All of them check the structure fits within the array
+ * and throw {@link ProtocolException} if it does not.</p>
+ *
+ * <p>A scanner reuses its result arrays between calls, and is not thread
+ * safe.</p>
+ */
+public class HeadersScanner {
+    private final AuxPoWNetworkParameters params;
+
+    private int count;
+    private int[] offsets = new int[0];
+    private int[] lengths = new int[0];
+
+    public HeadersScanner(final AuxPoWNetworkParameters params) {
+        this.params = params;
+    }
+
+    /**
+     * Find the headers in the payload of a {@code headers} message.
+     *
+     * @param payload the message payload.
+     * @return the number of headers found.
+     * @throws ProtocolException if the payload is malformed or truncated.
+     */
+    public int scan(final byte[] payload) throws ProtocolException {
+        return scan(payload, 0, payload.length);
+    }
+
+    /**
+     * Find the headers in the payload of a {@code headers} message held
+     * within a larger array.
+     *
+     * @param buf array containing the payload.
+     * @param offset start of the payload within the array.
+     * @param end end of the payload (exclusive) within the array.
+     * @return the number of headers found.
+     * @throws ProtocolException if the payload is malformed or truncated.
+     */
+    public int scan(final byte[] buf, final int offset, final int end) throws ProtocolException {
+        count = 0;
+        final long headerCount = readVarInt(buf, offset, end);
+        if (headerCount > HeadersMessage.MAX_HEADERS) {
+            throw new ProtocolException("Too many headers: got " + headerCount
+                + " which is larger than " + HeadersMessage.MAX_HEADERS);
+        }
+        ensureCapacity((int) headerCount);
+
+        int cursor = offset + varIntSize(buf, offset, end);
+        for (int headerIdx = 0; headerIdx < headerCount; headerIdx++) {
+            final int headerEnd = blockHeaderEnd(buf, cursor, end);
+            offsets[headerIdx] = cursor;
+            lengths[headerIdx] = headerEnd - cursor;
+
+            // Each header is followed by a transaction count, which must be zero
+            if (headerEnd >= end) {
+                throw new ProtocolException("Header extends past end of message");
+            }
+            if (buf[headerEnd] != 0) {
+                throw new ProtocolException("Block header does not end with a null byte");
+            }
+            cursor = headerEnd + 1;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Find the end of a block header (including any AuxPoW header) starting at
+     * the given offset.
+     */
+    private int blockHeaderEnd(final byte[] buf, final int offset, final int end) throws ProtocolException {
+        checkAvailable(offset, Block.HEADER_SIZE, end);
+        final long version = org.bitcoinj.core.Utils.readUint32(buf, offset);
+        final int headerEnd = offset + Block.HEADER_SIZE;
+        if (params.isAuxPoWBlockVersion(version)) {
+            return headerEnd + auxPoWLength(buf, headerEnd, end);
+        }
+        return headerEnd;
+    }
+
+    /**
+     * Get the number of headers found by the last scan.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Get the offset of the given header within the scanned array.
+     */
+    public int getOffset(final int headerIdx) {
+        checkIndex(headerIdx);
+        return offsets[headerIdx];
+    }
+
+    /**
+     * Get the length of the given header, including any AuxPoW header but not
+     * the transaction count which follows it.
+     */
+    public int getLength(final int headerIdx) {
+        checkIndex(headerIdx);
+        return lengths[headerIdx];
+    }
+
+    /**
+     * Whether the given header is followed by an AuxPoW header.
+     */
+    public boolean hasAuxPoW(final int headerIdx) {
+        return getLength(headerIdx) > Block.HEADER_SIZE;
+    }
+
+    /**
+     * Get the array of header offsets, for example to pass to
+     * {@link ScryptBatchHasher#hashHeaders(byte[], int[], int)}. Only the
+     * first {@link #getCount()} entries are valid, and the array is reused by
+     * the next scan.
+     */
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    private void checkIndex(final int headerIdx) {
+        if (headerIdx < 0 || headerIdx >= count) {
+            throw new IndexOutOfBoundsException("Header " + headerIdx + " of " + count);
+        }
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (offsets.length < capacity) {
+            offsets = new int[capacity];
+            lengths = new int[capacity];
+        }
+    }
+
+    /**
+     * Measure an AuxPoW header: parent coinbase transaction, parent block
+     * hash, coinbase and chain merkle branches and parent block header.
+     *
+     * @param buf array containing the header.
+     * @param offset start of the AuxPoW header.
+     * @param end end of the valid data (exclusive) within the array.
+     * @return the length of the AuxPoW header in bytes.
+     * @throws ProtocolException if the header extends past the end.
+     */
+    public static int auxPoWLength(final byte[] buf, final int offset, final int end) throws ProtocolException {
+        int cursor = offset + transactionLength(buf, offset, end);
+        cursor = checkAvailable(cursor, Sha256Hash.LENGTH, end);
+        cursor += merkleBranchLength(buf, cursor, end);
+        cursor += merkleBranchLength(buf, cursor, end);
+        cursor = checkAvailable(cursor, Block.HEADER_SIZE, end);
+        return cursor - offset;
+    }
+
+    /**
+     * Measure a merkle branch: hash count, hashes and side mask.
+     *
+     * @return the length of the merkle branch in bytes.
+     * @throws ProtocolException if the branch extends past the end.
+     */
+    public static int merkleBranchLength(final byte[] buf, final int offset, final int end) throws ProtocolException {
+        final long hashCount = readVarInt(buf, offset, end);
+        final int cursor = offset + varIntSize(buf, offset, end);
+        return checkAvailable(cursor, hashCount * Sha256Hash.LENGTH + 4, end) - offset;
+    }
+
+    /**
+     * Measure a transaction, with or without witness data.
+     *
+     * @return the length of the transaction in bytes.
+     * @throws ProtocolException if the transaction extends past the end.
+     */
+    public static int transactionLength(final byte[] buf, final int offset, final int end) throws ProtocolException {
+        // version
+        int cursor = checkAvailable(offset, 4, end);
+        long inputCount = readVarInt(buf, cursor, end);
+        cursor += varIntSize(buf, cursor, end);
+        boolean witness = false;
+        if (inputCount == 0) {
+            // Either no inputs and no outputs, or the segwit marker followed
+            // by a non-zero flag byte
+            checkAvailable(cursor, 1, end);
+            if (buf[cursor] != 0) {
+                witness = true;
+                cursor++;
+                inputCount = readVarInt(buf, cursor, end);
+                cursor += varIntSize(buf, cursor, end);
+            }
+        }
+        for (long inputIdx = 0; inputIdx < inputCount; inputIdx++) {
+            // outpoint
+            cursor = checkAvailable(cursor, 36, end);
+            cursor = skipByteArray(buf, cursor, end);
+            // sequence
+            cursor = checkAvailable(cursor, 4, end);
+        }
+        final long outputCount = readVarInt(buf, cursor, end);
+        cursor += varIntSize(buf, cursor, end);
+        for (long outputIdx = 0; outputIdx < outputCount; outputIdx++) {
+            // value
+            cursor = checkAvailable(cursor, 8, end);
+            cursor = skipByteArray(buf, cursor, end);
+        }
+        if (witness) {
+            for (long inputIdx = 0; inputIdx < inputCount; inputIdx++) {
+                final long itemCount = readVarInt(buf, cursor, end);
+                cursor += varIntSize(buf, cursor, end);
+                for (long itemIdx = 0; itemIdx < itemCount; itemIdx++) {
+                    cursor = skipByteArray(buf, cursor, end);
+                }
+            }
+        }
+        // lock time
+        cursor = checkAvailable(cursor, 4, end);
+        return cursor - offset;
+    }
+
+    /**
+     * Skip a length-prefixed byte array, returning the offset after it.
+     */
+    private static int skipByteArray(final byte[] buf, final int offset, final int end) throws ProtocolException {
+        final long length = readVarInt(buf, offset, end);
+        return checkAvailable(offset + varIntSize(buf, offset, end), length, end);
+    }
+
+    /**
+     * Get the encoded size of the variable length integer at the given offset.
+     */
+    public static int varIntSize(final byte[] buf, final int offset, final int end) throws ProtocolException {
+        checkAvailable(offset, 1, end);
+        switch (buf[offset] & 0xff) {
+            case 0xfd:
+                return 3;
+            case 0xfe:
+                return 5;
+            case 0xff:
+                return 9;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Read the variable length integer at the given offset.
+     *
+     * @throws ProtocolException if the integer extends past the end, or is
+     * too large to be a count or length.
+     */
+    public static long readVarInt(final byte[] buf, final int offset, final int end) throws ProtocolException {
+        final int size = varIntSize(buf, offset, end);
+        checkAvailable(offset, size, end);
+        final long value;
+        switch (size) {
+            case 1:
+                return buf[offset] & 0xff;
+            case 3:
+                return (buf[offset + 1] & 0xff) | ((buf[offset + 2] & 0xff) << 8);
+            case 5:
+                return org.bitcoinj.core.Utils.readUint32(buf, offset + 1);
+            default:
+                value = org.bitcoinj.core.Utils.readInt64(buf, offset + 1);
+                if (value < 0 || value > Integer.MAX_VALUE) {
+                    throw new ProtocolException("Variable length integer out of range: " + Long.toUnsignedString(value));
+                }
+                return value;
+        }
+    }
+
+    /**
+     * Check that the given number of bytes are available from the offset,
+     * returning the offset after them.
+     */
+    private static int checkAvailable(final int offset, final long length, final int end) throws ProtocolException {
+        if (length < 0 || offset + length > end) {
+            throw new ProtocolException("Structure extends past end of message");
+        }
+        return (int) (offset + length);
+    }
+}
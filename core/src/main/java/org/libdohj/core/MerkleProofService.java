@@ -0,0 +1,245 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.MerkleBranch;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.VerificationException;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Answers transaction inclusion proofs for stored blocks. The full merkle
+ * tree of a block is built once, held as a flat array of hashes in a cache
+ * bounded by total size, and each proof is then read out of it in
+ * O(log n) without hashing anything.
+ *
+ * <p>Proofs are returned as {@link MerkleBranch}es whose side mask is the
+ * index of the transaction in the block, so
+ * {@link MerkleBranch#calculateMerkleRoot(Sha256Hash)} applied to the
+ * transaction ID gives the block's merkle root.</p>
+ */
+public class MerkleProofService {
+    /** Default maximum total size, in bytes, of the cached trees. */
+    public static final long DEFAULT_MAX_CACHE_BYTES = 64L * 1024 * 1024;
+
+    private final ParallelMerkleBuilder builder;
+    private final Cache<Sha256Hash, MerkleTree> cache;
+
+    /**
+     * Create a service using the default merkle builder and cache size.
+     */
+    public MerkleProofService() {
+        this(ParallelMerkleBuilder.getDefault(), DEFAULT_MAX_CACHE_BYTES);
+    }
+
+    /**
+     * @param builder the builder used to calculate trees.
+     * @param maxCacheBytes the maximum total size of the cached trees, in
+     * bytes.
+     */
+    public MerkleProofService(final ParallelMerkleBuilder builder, final long maxCacheBytes) {
+        this.builder = checkNotNull(builder);
+        this.cache = CacheBuilder.newBuilder()
+            .maximumWeight(maxCacheBytes)
+            .weigher(new Weigher<Sha256Hash, MerkleTree>() {
+                @Override
+                public int weigh(final Sha256Hash blockHash, final MerkleTree tree) {
+                    return tree.getSizeInBytes();
+                }
+            })
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * Get the merkle tree of the given block, building and caching it if it
+     * is not already cached.
+     *
+     * @throws IllegalArgumentException if the block has no transactions.
+     * @throws VerificationException if the transactions do not match the
+     * merkle root in the block header.
+     */
+    public MerkleTree getTree(final Block block) throws VerificationException {
+        final Sha256Hash blockHash = block.getHash();
+        MerkleTree tree = cache.getIfPresent(blockHash);
+        if (tree == null) {
+            final List<Transaction> transactions = block.getTransactions();
+            checkArgument(transactions != null && !transactions.isEmpty(), "Block has no transactions");
+            tree = new MerkleTree(builder.buildTree(transactions), transactions.size());
+            if (!tree.getRoot().equals(block.getMerkleRoot())) {
+                throw new VerificationException("Merkle hashes do not match: " +
+                        tree.getRoot() + " vs " + block.getMerkleRoot());
+            }
+            cache.put(blockHash, tree);
+        }
+        return tree;
+    }
+
+    /**
+     * Get the cached merkle tree of the block with the given hash, if there
+     * is one.
+     */
+    @Nullable
+    public MerkleTree getCachedTree(final Sha256Hash blockHash) {
+        return cache.getIfPresent(blockHash);
+    }
+
+    /**
+     * Get the proof that the transaction at the given index is included in
+     * the block.
+     *
+     * @throws IndexOutOfBoundsException if the block has no such transaction.
+     */
+    public MerkleBranch getProof(final Block block, final int txIndex) throws VerificationException {
+        return getTree(block).getBranch(block.getParams(), txIndex);
+    }
+
+    /**
+     * Get proofs for several transactions in the same block, building the
+     * tree at most once.
+     *
+     * @return the proofs, in the same order as the indexes.
+     * @throws IndexOutOfBoundsException if the block is missing any of the
+     * transactions.
+     */
+    public List<MerkleBranch> getProofs(final Block block, final int[] txIndexes) throws VerificationException {
+        final MerkleTree tree = getTree(block);
+        final List<MerkleBranch> proofs = new ArrayList<MerkleBranch>(txIndexes.length);
+        for (int txIndex: txIndexes) {
+            proofs.add(tree.getBranch(block.getParams(), txIndex));
+        }
+        return proofs;
+    }
+
+    /**
+     * Drop the cached tree of the block with the given hash, for example
+     * after the block is reorganised out of the chain.
+     */
+    public void invalidate(final Sha256Hash blockHash) {
+        cache.invalidate(blockHash);
+    }
+
+    /**
+     * Get hit and miss counts for the tree cache.
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * The full merkle tree of a block. Every level, from the transaction IDs
+     * up to the root, is concatenated into one array of little endian
+     * hashes.
+     */
+    public static final class MerkleTree {
+        private final byte[] hashes;
+        private final int leafCount;
+
+        private MerkleTree(final byte[] hashes, final int leafCount) {
+            this.hashes = hashes;
+            this.leafCount = leafCount;
+        }
+
+        /**
+         * Get the number of leaves (transactions) in the tree.
+         */
+        public int getLeafCount() {
+            return leafCount;
+        }
+
+        /**
+         * Get the number of levels in the tree, including the leaves and the
+         * root.
+         */
+        public int getDepth() {
+            int depth = 1;
+            for (int levelSize = leafCount; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+                depth++;
+            }
+            return depth;
+        }
+
+        /**
+         * Get the size of the tree's hashes in bytes.
+         */
+        public int getSizeInBytes() {
+            return hashes.length;
+        }
+
+        public Sha256Hash getRoot() {
+            return readHash(hashes.length - Sha256Hash.LENGTH);
+        }
+
+        /**
+         * Get the ID of the transaction at the given index.
+         */
+        public Sha256Hash getTxId(final int txIndex) {
+            checkLeaf(txIndex);
+            return readHash(txIndex * Sha256Hash.LENGTH);
+        }
+
+        /**
+         * Get the branch from the transaction at the given index to the
+         * root.
+         *
+         * @throws IndexOutOfBoundsException if there is no such transaction.
+         */
+        public MerkleBranch getBranch(final NetworkParameters params, final int txIndex) {
+            checkLeaf(txIndex);
+            final byte[] branchBytes = new byte[(getDepth() - 1) * Sha256Hash.LENGTH];
+            int branchOffset = 0;
+            int levelOffset = 0;
+            int nodeIdx = txIndex;
+            for (int levelSize = leafCount; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+                // The last node of an odd-sized level is paired with itself
+                final int siblingIdx = Math.min(nodeIdx ^ 1, levelSize - 1);
+                System.arraycopy(hashes, levelOffset + siblingIdx * Sha256Hash.LENGTH,
+                    branchBytes, branchOffset, Sha256Hash.LENGTH);
+                branchOffset += Sha256Hash.LENGTH;
+                levelOffset += levelSize * Sha256Hash.LENGTH;
+                nodeIdx >>= 1;
+            }
+            return MerkleBranch.fromHashBytes(params, null, branchBytes, txIndex);
+        }
+
+        private void checkLeaf(final int txIndex) {
+            if (txIndex < 0 || txIndex >= leafCount) {
+                throw new IndexOutOfBoundsException("Transaction " + txIndex + " of " + leafCount);
+            }
+        }
+
+        private Sha256Hash readHash(final int hashOffset) {
+            final byte[] hashBytes = new byte[Sha256Hash.LENGTH];
+            for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+                hashBytes[byteIdx] = hashes[hashOffset + Sha256Hash.LENGTH - 1 - byteIdx];
+            }
+            return Sha256Hash.wrap(hashBytes);
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+
+import javax.annotation.Nullable;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Calculates the transaction merkle root of a block, spreading the work
+ * across a fork/join pool for large blocks. Transaction IDs are hashed in
+ * parallel chunks, then each level of the tree is reduced in parallel while
+ * it is at least the parallel threshold wide. Blocks below the threshold are
+ * handled entirely on the calling thread.
+ *
+ * <p>The tree is built the same way as {@link Block}, with the last hash of
+ * an odd-sized level paired with itself.</p>
+ */
+public class ParallelMerkleBuilder {
+    /** Default number of transactions (or tree nodes) below which work is done serially. */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 512;
+
+    /** Smallest number of hashes a single task will calculate. */
+    private static final int MIN_CHUNK = 64;
+
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return Sha256Hash.newDigest();
+        }
+    };
+
+    private static volatile ParallelMerkleBuilder defaultBuilder = new ParallelMerkleBuilder();
+
+    /**
+     * Receives the time taken to calculate each block's merkle root.
+     */
+    public interface TimingListener {
+        /**
+         * Called after a block's merkle root has been calculated.
+         *
+         * @param blockHash hash of the block.
+         * @param transactionCount number of transactions in the block.
+         * @param parallel whether the calculation was spread across the pool.
+         * @param txidNanos time spent calculating transaction IDs.
+         * @param treeNanos time spent reducing the tree to its root.
+         */
+        void onMerkleRootCalculated(Sha256Hash blockHash, int transactionCount, boolean parallel,
+                                    long txidNanos, long treeNanos);
+
+        /**
+         * Called after a block's transaction IDs have been calculated and
+         * cached ahead of its merkle root being checked elsewhere.
+         *
+         * @param blockHash hash of the block.
+         * @param transactionCount number of transactions in the block.
+         * @param parallel whether the calculation was spread across the pool.
+         * @param txidNanos time spent calculating transaction IDs.
+         */
+        void onTransactionIdsCalculated(Sha256Hash blockHash, int transactionCount, boolean parallel,
+                                        long txidNanos);
+    }
+
+    private final ForkJoinPool pool;
+    private final int parallelThreshold;
+    @Nullable private volatile TimingListener timingListener;
+
+    /**
+     * Create a builder using the common fork/join pool and the default
+     * threshold.
+     */
+    public ParallelMerkleBuilder() {
+        this(ForkJoinPool.commonPool(), DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * @param pool the pool to execute hashing tasks on.
+     * @param parallelThreshold the number of transactions (or tree nodes in
+     * a level) below which work is done on the calling thread.
+     */
+    public ParallelMerkleBuilder(final ForkJoinPool pool, final int parallelThreshold) {
+        checkArgument(parallelThreshold > 1, "Parallel threshold must be greater than one");
+        this.pool = checkNotNull(pool);
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Get the process-wide builder used by {@link org.bitcoinj.core.AltcoinBlock}.
+     */
+    public static ParallelMerkleBuilder getDefault() {
+        return defaultBuilder;
+    }
+
+    /**
+     * Replace the process-wide builder, for example to change its pool or
+     * threshold, or attach a timing listener.
+     */
+    public static void setDefault(final ParallelMerkleBuilder builder) {
+        defaultBuilder = checkNotNull(builder);
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    @Nullable
+    public TimingListener getTimingListener() {
+        return timingListener;
+    }
+
+    /**
+     * Set the listener to report per-block timing to, or null for none.
+     */
+    public void setTimingListener(@Nullable final TimingListener listener) {
+        this.timingListener = listener;
+    }
+
+    /**
+     * Calculate the merkle root of the given block's transactions, reporting
+     * the time taken to any timing listener.
+     *
+     * @throws IllegalArgumentException if the block has no transactions.
+     */
+    public Sha256Hash calculateMerkleRoot(final Block block) {
+        final List<Transaction> transactions = block.getTransactions();
+        checkArgument(transactions != null && !transactions.isEmpty(), "Block has no transactions");
+
+        final long start = System.nanoTime();
+        final byte[] txids = hashTransactions(transactions);
+        final long hashed = System.nanoTime();
+        final Sha256Hash root = reduce(txids, transactions.size());
+        final TimingListener listener = timingListener;
+        if (listener != null) {
+            final long end = System.nanoTime();
+            listener.onMerkleRootCalculated(block.getHash(), transactions.size(),
+                transactions.size() >= parallelThreshold, hashed - start, end - hashed);
+        }
+        return root;
+    }
+
+    /**
+     * Calculate and cache the ID of each of the given block's transactions,
+     * without reducing the tree, reporting the time taken to any timing
+     * listener. Used where the merkle root is then checked serially, so the
+     * tree is only reduced once.
+     *
+     * @throws IllegalArgumentException if the block has no transactions.
+     */
+    public void cacheTransactionIds(final Block block) {
+        final List<Transaction> transactions = block.getTransactions();
+        checkArgument(transactions != null && !transactions.isEmpty(), "Block has no transactions");
+
+        final long start = System.nanoTime();
+        hashTransactions(transactions);
+        final TimingListener listener = timingListener;
+        if (listener != null) {
+            listener.onTransactionIdsCalculated(block.getHash(), transactions.size(),
+                transactions.size() >= parallelThreshold, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Calculate the merkle root of the given transactions.
+     *
+     * @throws IllegalArgumentException if there are no transactions.
+     */
+    public Sha256Hash calculateMerkleRoot(final List<Transaction> transactions) {
+        checkArgument(!transactions.isEmpty(), "No transactions");
+        return reduce(hashTransactions(transactions), transactions.size());
+    }
+
+    /**
+     * Calculate the ID of each transaction, returned concatenated in little
+     * endian (wire) order. Transactions cache their ID, so later calls to
+     * {@link Transaction#getTxId()} do not recalculate it.
+     */
+    public byte[] hashTransactions(final List<Transaction> transactions) {
+        final int count = transactions.size();
+        final byte[] txids = new byte[count * Sha256Hash.LENGTH];
+        final TxidTask task = new TxidTask(transactions, txids, 0, count, chunkSize(count));
+        if (count < parallelThreshold) {
+            task.compute();
+        } else {
+            pool.invoke(task);
+        }
+        return txids;
+    }
+
+    /**
+     * Reduce a level of hashes, in little endian order, to the merkle root.
+     *
+     * @param leaves the hashes of the bottom level of the tree. This array is
+     * used as scratch space and is overwritten.
+     * @param count the number of hashes in the level.
+     */
+    public Sha256Hash reduce(final byte[] leaves, final int count) {
+        checkArgument(count > 0, "No hashes to reduce");
+        checkArgument(leaves.length >= count * Sha256Hash.LENGTH, "Too few hashes in array");
+
+        byte[] level = leaves;
+        byte[] next = count > 1 ? new byte[((count + 1) / 2) * Sha256Hash.LENGTH] : null;
+        int levelSize = count;
+        while (levelSize > 1) {
+            final int nextSize = (levelSize + 1) / 2;
+            reduceLevel(level, 0, levelSize, next, 0);
+            // Swap buffers; the original array is large enough for any later level
+            final byte[] previous = level;
+            level = next;
+            next = previous;
+            levelSize = nextSize;
+        }
+
+        final byte[] root = new byte[Sha256Hash.LENGTH];
+        System.arraycopy(level, 0, root, 0, Sha256Hash.LENGTH);
+        return Sha256Hash.wrapReversed(root);
+    }
+
+    /**
+     * Get the number of hashes in a full merkle tree with the given number of
+     * leaves, counting every level including the leaves and the root.
+     */
+    public static int treeSize(final int leafCount) {
+        checkArgument(leafCount > 0, "No leaves");
+        int total = leafCount;
+        for (int levelSize = leafCount; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            total += (levelSize + 1) / 2;
+        }
+        return total;
+    }
+
+    /**
+     * Build every level of the merkle tree for the given transactions,
+     * concatenated in a single array from the leaves (transaction IDs) up to
+     * the root, with each hash in little endian order.
+     *
+     * @throws IllegalArgumentException if there are no transactions.
+     * @see #treeSize(int)
+     */
+    public byte[] buildTree(final List<Transaction> transactions) {
+        checkArgument(!transactions.isEmpty(), "No transactions");
+        final int leafCount = transactions.size();
+        final byte[] tree = new byte[treeSize(leafCount) * Sha256Hash.LENGTH];
+        System.arraycopy(hashTransactions(transactions), 0, tree, 0, leafCount * Sha256Hash.LENGTH);
+
+        int levelOffset = 0;
+        for (int levelSize = leafCount; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            final int nextOffset = levelOffset + levelSize * Sha256Hash.LENGTH;
+            reduceLevel(tree, levelOffset, levelSize, tree, nextOffset);
+            levelOffset = nextOffset;
+        }
+        return tree;
+    }
+
+    /**
+     * Calculate the level above the given one, on the calling thread if it
+     * is below the parallel threshold or across the pool otherwise.
+     */
+    private void reduceLevel(final byte[] level, final int levelOffset, final int levelSize,
+            final byte[] next, final int nextOffset) {
+        final int nextSize = (levelSize + 1) / 2;
+        final LevelTask task = new LevelTask(level, levelOffset, levelSize, next, nextOffset,
+            0, nextSize, chunkSize(nextSize));
+        if (nextSize < parallelThreshold) {
+            task.compute();
+        } else {
+            pool.invoke(task);
+        }
+    }
+
+    private int chunkSize(final int count) {
+        // Aim for a few tasks per worker so stragglers even out
+        return Math.max(MIN_CHUNK, count / (pool.getParallelism() * 4));
+    }
+
+    private static class TxidTask extends RecursiveAction {
+        private final List<Transaction> transactions;
+        private final byte[] out;
+        private final int start;
+        private final int end;
+        private final int chunk;
+
+        private TxidTask(final List<Transaction> transactions, final byte[] out, final int start,
+                final int end, final int chunk) {
+            this.transactions = transactions;
+            this.out = out;
+            this.start = start;
+            this.end = end;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= chunk) {
+                for (int txIdx = start; txIdx < end; txIdx++) {
+                    final byte[] txid = transactions.get(txIdx).getTxId().getBytes();
+                    final int outOffset = txIdx * Sha256Hash.LENGTH;
+                    for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+                        out[outOffset + byteIdx] = txid[Sha256Hash.LENGTH - 1 - byteIdx];
+                    }
+                }
+                return;
+            }
+            final int mid = (start + end) >>> 1;
+            invokeAll(new TxidTask(transactions, out, start, mid, chunk),
+                new TxidTask(transactions, out, mid, end, chunk));
+        }
+    }
+
+    /**
+     * Calculates a range of the next level of the tree from the current one.
+     */
+    private static class LevelTask extends RecursiveAction {
+        private final byte[] level;
+        private final int levelOffset;
+        private final int levelSize;
+        private final byte[] next;
+        private final int nextOffset;
+        private final int start;
+        private final int end;
+        private final int chunk;
+
+        private LevelTask(final byte[] level, final int levelOffset, final int levelSize, final byte[] next,
+                final int nextOffset, final int start, final int end, final int chunk) {
+            this.level = level;
+            this.levelOffset = levelOffset;
+            this.levelSize = levelSize;
+            this.next = next;
+            this.nextOffset = nextOffset;
+            this.start = start;
+            this.end = end;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= chunk) {
+                final MessageDigest digest = DIGEST.get();
+                try {
+                    for (int nodeIdx = start; nodeIdx < end; nodeIdx++) {
+                        final int left = nodeIdx * 2;
+                        final int right = Math.min(left + 1, levelSize - 1);
+                        final int outOffset = nextOffset + nodeIdx * Sha256Hash.LENGTH;
+                        digest.reset();
+                        digest.update(level, levelOffset + left * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+                        digest.update(level, levelOffset + right * Sha256Hash.LENGTH, Sha256Hash.LENGTH);
+                        digest.digest(next, outOffset, Sha256Hash.LENGTH);
+                        digest.update(next, outOffset, Sha256Hash.LENGTH);
+                        digest.digest(next, outOffset, Sha256Hash.LENGTH);
+                    }
+                } catch (DigestException e) {
+                    throw new RuntimeException(e);  // Cannot happen.
+                }
+                return;
+            }
+            final int mid = (start + end) >>> 1;
+            invokeAll(new LevelTask(level, levelOffset, levelSize, next, nextOffset, start, mid, chunk),
+                new LevelTask(level, levelOffset, levelSize, next, nextOffset, mid, end, chunk));
+        }
+    }
+}
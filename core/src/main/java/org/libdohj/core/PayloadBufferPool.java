@@ -0,0 +1,265 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Pool of byte arrays for message payloads retained by parsed blocks. Arrays
+ * are grouped into power of two size classes, so a payload is held in the
+ * smallest class which fits it, and returned to that class when the last
+ * reference to it is released. Recycling the arrays avoids large payloads
+ * being promoted to the old generation and then dropped under heavy relay.
+ *
+ * <p>Payloads larger than the largest size class are allocated normally and
+ * left to the garbage collector. The pool holds at most a configured number
+ * of bytes of idle arrays, and drops any released beyond that.</p>
+ */
+public class PayloadBufferPool {
+    /** Size of the smallest size class. */
+    public static final int MIN_BUFFER_SIZE = 1 << 10;
+    /** Size of the largest size class. */
+    public static final int MAX_BUFFER_SIZE = 1 << 22;
+    /** Default maximum number of bytes held in idle arrays. */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE) - MIN_SHIFT + 1;
+
+    private static volatile PayloadBufferPool defaultPool = new PayloadBufferPool(DEFAULT_MAX_POOLED_BYTES);
+
+    private final List<Queue<byte[]>> sizeClasses;
+    private final long maxPooledBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesInUse = new AtomicLong();
+    private final AtomicLong bytesPooled = new AtomicLong();
+
+    /**
+     * @param maxPooledBytes the maximum number of bytes to hold in idle
+     * arrays.
+     */
+    public PayloadBufferPool(final long maxPooledBytes) {
+        checkArgument(maxPooledBytes >= 0, "Maximum pooled bytes must not be negative");
+        this.maxPooledBytes = maxPooledBytes;
+        this.sizeClasses = new ArrayList<Queue<byte[]>>(SIZE_CLASSES);
+        for (int classIdx = 0; classIdx < SIZE_CLASSES; classIdx++) {
+            sizeClasses.add(new ConcurrentLinkedQueue<byte[]>());
+        }
+    }
+
+    /**
+     * Get the process-wide pool.
+     */
+    public static PayloadBufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Replace the process-wide pool, for example to change its size.
+     */
+    public static void setDefault(final PayloadBufferPool pool) {
+        defaultPool = checkNotNull(pool);
+    }
+
+    /**
+     * Get a buffer of at least the given length, with a reference count of
+     * one. The array may be longer than requested, and its contents are
+     * undefined.
+     */
+    public PooledBuffer acquire(final int length) {
+        checkArgument(length >= 0, "Length must not be negative");
+        final int classIdx = sizeClass(length);
+        byte[] array = null;
+        if (classIdx < SIZE_CLASSES) {
+            array = sizeClasses.get(classIdx).poll();
+        }
+        if (array != null) {
+            hits.incrementAndGet();
+            bytesPooled.addAndGet(-array.length);
+        } else {
+            misses.incrementAndGet();
+            array = new byte[classIdx < SIZE_CLASSES ? MIN_BUFFER_SIZE << classIdx : length];
+        }
+        bytesInUse.addAndGet(array.length);
+        return new PooledBuffer(this, array, length);
+    }
+
+    /**
+     * Return an array whose last reference has been released.
+     */
+    private void recycle(final byte[] array) {
+        bytesInUse.addAndGet(-array.length);
+        final int classIdx = sizeClass(array.length);
+        if (classIdx >= SIZE_CLASSES || (MIN_BUFFER_SIZE << classIdx) != array.length) {
+            // Not one of ours, or too large to pool
+            return;
+        }
+        if (bytesPooled.addAndGet(array.length) > maxPooledBytes) {
+            bytesPooled.addAndGet(-array.length);
+            return;
+        }
+        sizeClasses.get(classIdx).offer(array);
+    }
+
+    /**
+     * Get the index of the smallest size class which holds the given length.
+     */
+    private static int sizeClass(final int length) {
+        if (length <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return (Integer.SIZE - Integer.numberOfLeadingZeros(length - 1)) - MIN_SHIFT;
+    }
+
+    /**
+     * Get the number of buffers acquired by reusing a pooled array.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of buffers acquired by allocating a new array.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Get the total size of arrays acquired and not yet released.
+     */
+    public long getBytesInUse() {
+        return bytesInUse.get();
+    }
+
+    /**
+     * Get the total size of idle arrays held by the pool.
+     */
+    public long getBytesPooled() {
+        return bytesPooled.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Payload buffer pool: " + hits.get() + " hits, " + misses.get() + " misses, "
+            + bytesInUse.get() + " bytes in use, " + bytesPooled.get() + " bytes pooled";
+    }
+
+    /**
+     * A reference counted array from a {@link PayloadBufferPool}. The array
+     * goes back to the pool when the count drops to zero, after which it
+     * must not be accessed through any earlier reference.
+     */
+    public static final class PooledBuffer {
+        private final PayloadBufferPool pool;
+        private final byte[] array;
+        private final int length;
+        private final AtomicInteger refCount = new AtomicInteger(1);
+
+        private PooledBuffer(final PayloadBufferPool pool, final byte[] array, final int length) {
+            this.pool = pool;
+            this.array = array;
+            this.length = length;
+        }
+
+        /**
+         * Get the backing array, which may be longer than {@link #length()}.
+         *
+         * @throws IllegalStateException if the buffer has been released.
+         */
+        public byte[] array() {
+            if (refCount.get() <= 0) {
+                throw new IllegalStateException("Buffer has been released");
+            }
+            return array;
+        }
+
+        /**
+         * Get the number of bytes requested when the buffer was acquired.
+         */
+        public int length() {
+            return length;
+        }
+
+        public int refCount() {
+            return refCount.get();
+        }
+
+        /**
+         * Add a reference to the buffer.
+         *
+         * @throws IllegalStateException if the buffer has been released.
+         */
+        public PooledBuffer retain() {
+            int count;
+            do {
+                count = refCount.get();
+                if (count <= 0) {
+                    throw new IllegalStateException("Buffer has been released");
+                }
+            } while (!refCount.compareAndSet(count, count + 1));
+            return this;
+        }
+
+        /**
+         * Drop a reference to the buffer, returning it to the pool if this
+         * was the last one.
+         *
+         * @return true if the buffer was returned to the pool.
+         * @throws IllegalStateException if the buffer has already been
+         * released.
+         */
+        public boolean release() {
+            return release(null);
+        }
+
+        /**
+         * Drop a reference to the buffer. If this was the last one, first
+         * run the given task, which should stop anything still referencing
+         * the array from doing so, and then return the array to the pool.
+         *
+         * @return true if the buffer was returned to the pool.
+         * @throws IllegalStateException if the buffer has already been
+         * released.
+         */
+        public boolean release(@Nullable final Runnable beforeRecycle) {
+            final int count = refCount.decrementAndGet();
+            if (count < 0) {
+                refCount.incrementAndGet();
+                throw new IllegalStateException("Buffer has already been released");
+            }
+            if (count == 0) {
+                if (beforeRecycle != null) {
+                    beforeRecycle.run();
+                }
+                pool.recycle(array);
+                return true;
+            }
+            return false;
+        }
+    }
+}
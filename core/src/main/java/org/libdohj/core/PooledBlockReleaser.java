@@ -0,0 +1,91 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.listeners.BlocksDownloadedEventListener;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Releases the pooled payload of each block downloaded from a peer, so the
+ * buffer goes back to the {@link PayloadBufferPool} the
+ * {@link AltcoinSerializer} read it into. The block chain has processed the
+ * block before download listeners are called.
+ *
+ * <p>Releasing a block detaches it, and everything parsed from it, from the
+ * buffer (see {@link AltcoinBlock#release()}), which is not safe while
+ * another thread is using them. So the block is only released once every
+ * listener which uses it has finished: listeners given to the releaser are
+ * called first, in order, on the releaser's own thread, and the block is
+ * released after they return. Register the releaser in their place:</p>
+ *
+ * <pre>
+ * peerGroup.addBlocksDownloadedEventListener(new PooledBlockReleaser(Arrays.asList(listener)));
+ * </pre>
+ *
+ * <p>Listeners registered separately, and any code which keeps the block or
+ * its transactions after its listener returns, must
+ * {@link AltcoinBlock#retain()} the block and release it once they have
+ * finished with it. Blocks which arrive as orphans are not passed to
+ * download listeners, so their buffers are left to the garbage
+ * collector.</p>
+ */
+public class PooledBlockReleaser implements BlocksDownloadedEventListener {
+    private final List<BlocksDownloadedEventListener> listeners;
+
+    /**
+     * Release each block straight away, for when no other download listener
+     * uses blocks. This can run on the peer's own thread:
+     *
+     * <pre>
+     * peerGroup.addBlocksDownloadedEventListener(Threading.SAME_THREAD, new PooledBlockReleaser());
+     * </pre>
+     */
+    public PooledBlockReleaser() {
+        this(Collections.<BlocksDownloadedEventListener>emptyList());
+    }
+
+    /**
+     * Pass each block to the given listeners, in order, and then release it.
+     */
+    public PooledBlockReleaser(final List<? extends BlocksDownloadedEventListener> listeners) {
+        this.listeners = Collections.unmodifiableList(new ArrayList<BlocksDownloadedEventListener>(
+            checkNotNull(listeners)));
+    }
+
+    @Override
+    public void onBlocksDownloaded(final Peer peer, final Block block, @Nullable final FilteredBlock filteredBlock,
+                                   final int blocksLeft) {
+        try {
+            for (BlocksDownloadedEventListener listener : listeners) {
+                listener.onBlocksDownloaded(peer, block, filteredBlock, blocksLeft);
+            }
+        } finally {
+            if (block instanceof AltcoinBlock) {
+                ((AltcoinBlock) block).release();
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Calculates the Scrypt proof of work hashes of many block headers at once,
+ * spreading the work across a fork/join pool. Intended for processing
+ * {@code headers} messages during initial chain sync, where hashing headers
+ * one at a time on the network thread leaves every other core idle.
+ */
+public class ScryptBatchHasher {
+    /** Batches smaller than this are hashed on the calling thread. */
+    private static final int MIN_PARALLEL_BATCH = 8;
+
+    private final ForkJoinPool pool;
+    private final int minChunk;
+
+    /**
+     * Create a hasher using the common fork/join pool.
+     */
+    public ScryptBatchHasher() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a hasher using the given pool.
+     *
+     * @param pool the pool to execute hashing tasks on.
+     */
+    public ScryptBatchHasher(final ForkJoinPool pool) {
+        this(pool, 4);
+    }
+
+    /**
+     * Create a hasher using the given pool.
+     *
+     * @param pool the pool to execute hashing tasks on.
+     * @param minChunk the smallest number of headers a single task will hash.
+     */
+    public ScryptBatchHasher(final ForkJoinPool pool, final int minChunk) {
+        checkArgument(minChunk > 0, "Minimum chunk size must be positive");
+        this.pool = pool;
+        this.minChunk = minChunk;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Calculate the Scrypt hash of each of the given blocks, caching it within
+     * the block so later calls to {@link AltcoinBlock#getScryptHash()} (and
+     * therefore difficulty checks) do not need to recalculate it. Returns once
+     * all blocks have been hashed.
+     */
+    public void hashBlocks(final List<? extends AltcoinBlock> blocks) {
+        if (blocks.size() < MIN_PARALLEL_BATCH) {
+            for (AltcoinBlock block: blocks) {
+                block.getScryptHash();
+            }
+            return;
+        }
+        pool.invoke(new BlockHashTask(blocks, 0, blocks.size(), chunkSize(blocks.size())));
+    }
+
+    /**
+     * Calculate the Scrypt hash of a set of 80 byte block headers held within
+     * a single array, such as the payload of a {@code headers} message.
+     *
+     * @param payload array containing the headers.
+     * @param offsets offset of the start of each header within the payload.
+     * @param count number of headers to hash from the offsets array.
+     * @return the hashes, in the same order as the offsets, in big endian
+     * form.
+     */
+    public Sha256Hash[] hashHeaders(final byte[] payload, final int[] offsets, final int count) {
+        final byte[] digests = new byte[count * ScryptEngine.DIGEST_LENGTH];
+        hashHeaders(payload, offsets, count, digests);
+
+        final Sha256Hash[] hashes = new Sha256Hash[count];
+        for (int headerIdx = 0; headerIdx < count; headerIdx++) {
+            final int digestOffset = headerIdx * ScryptEngine.DIGEST_LENGTH;
+            final byte[] hash = new byte[ScryptEngine.DIGEST_LENGTH];
+            for (int byteIdx = 0; byteIdx < hash.length; byteIdx++) {
+                hash[byteIdx] = digests[digestOffset + hash.length - 1 - byteIdx];
+            }
+            hashes[headerIdx] = Sha256Hash.wrap(hash);
+        }
+        return hashes;
+    }
+
+    /**
+     * Calculate the Scrypt hash of a set of 80 byte block headers held within
+     * a single array, writing the small endian digests consecutively into the
+     * given output array.
+     *
+     * @param payload array containing the headers.
+     * @param offsets offset of the start of each header within the payload.
+     * @param count number of headers to hash from the offsets array.
+     * @param out array of at least {@code count * 32} bytes to write the
+     * digests to.
+     */
+    public void hashHeaders(final byte[] payload, final int[] offsets, final int count, final byte[] out) {
+        checkArgument(count <= offsets.length, "Count exceeds number of offsets");
+        checkArgument(out.length >= count * ScryptEngine.DIGEST_LENGTH, "Output array is too small");
+        final HeaderHashTask task = new HeaderHashTask(payload, offsets, out, 0, count, chunkSize(count));
+        if (count < MIN_PARALLEL_BATCH) {
+            task.compute();
+        } else {
+            pool.invoke(task);
+        }
+    }
+
+    private int chunkSize(final int count) {
+        // Aim for a few tasks per worker so stragglers even out
+        return Math.max(minChunk, count / (pool.getParallelism() * 4));
+    }
+
+    private static class BlockHashTask extends RecursiveAction {
+        private final List<? extends AltcoinBlock> blocks;
+        private final int start;
+        private final int end;
+        private final int chunk;
+
+        private BlockHashTask(final List<? extends AltcoinBlock> blocks, final int start, final int end,
+                final int chunk) {
+            this.blocks = blocks;
+            this.start = start;
+            this.end = end;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= chunk) {
+                for (int blockIdx = start; blockIdx < end; blockIdx++) {
+                    blocks.get(blockIdx).getScryptHash();
+                }
+                return;
+            }
+            final int mid = (start + end) >>> 1;
+            invokeAll(new BlockHashTask(blocks, start, mid, chunk),
+                new BlockHashTask(blocks, mid, end, chunk));
+        }
+    }
+
+    private static class HeaderHashTask extends RecursiveAction {
+        private final byte[] payload;
+        private final int[] offsets;
+        private final byte[] out;
+        private final int start;
+        private final int end;
+        private final int chunk;
+
+        private HeaderHashTask(final byte[] payload, final int[] offsets, final byte[] out,
+                final int start, final int end, final int chunk) {
+            this.payload = payload;
+            this.offsets = offsets;
+            this.out = out;
+            this.start = start;
+            this.end = end;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= chunk) {
+                for (int headerIdx = start; headerIdx < end; headerIdx++) {
+                    ScryptEngine.scrypt(payload, offsets[headerIdx], Block.HEADER_SIZE,
+                        out, headerIdx * ScryptEngine.DIGEST_LENGTH);
+                }
+                return;
+            }
+            final int mid = (start + end) >>> 1;
+            invokeAll(new HeaderHashTask(payload, offsets, out, start, mid, chunk),
+                new HeaderHashTask(payload, offsets, out, mid, end, chunk));
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import java.util.Arrays;
+
+/**
+ * Scrypt implementation specialised for the proof of work parameters used by
+ * Litecoin derived chains (N = 1024, r = 1, p = 1, 32 byte output, with the
+ * input used as both password and salt).
+ *
+ * <p>Each thread owns one engine holding the 128KiB scratchpad, the PBKDF2
+ * buffers and the SHA-256 state, so hashing a header allocates nothing once
+ * the thread has warmed up. Output is identical to
+ * {@code SCrypt.scrypt(input, input, 1024, 1, 1, 32)}.</p>
+ */
+public final class ScryptEngine {
+    /** Length of the digest produced, in bytes. */
+    public static final int DIGEST_LENGTH = 32;
+
+    private static final int N = 1024;
+    /** Length of the scrypt block (128 * r bytes), in 32 bit words. */
+    private static final int BLOCK_WORDS = 32;
+    private static final int SHA256_BLOCK_LENGTH = 64;
+
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private static final int[] H0 = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static final ThreadLocal<ScryptEngine> ENGINES = new ThreadLocal<ScryptEngine>() {
+        @Override
+        protected ScryptEngine initialValue() {
+            return new ScryptEngine();
+        }
+    };
+
+    // SHA-256 working state
+    private final int[] state = new int[8];
+    private final int[] w = new int[64];
+    private final byte[] shaBuffer = new byte[SHA256_BLOCK_LENGTH];
+    private int shaBufferLength;
+    private long shaTotalLength;
+
+    // HMAC state after absorbing the inner and outer padded keys
+    private final int[] innerState = new int[8];
+    private final int[] outerState = new int[8];
+    private final byte[] pad = new byte[SHA256_BLOCK_LENGTH];
+    private final byte[] digest = new byte[DIGEST_LENGTH];
+    private final byte[] counter = new byte[4];
+
+    // Scrypt working state
+    private final byte[] b = new byte[BLOCK_WORDS * 4];
+    private final int[] x = new int[BLOCK_WORDS];
+    private final int[] v = new int[N * BLOCK_WORDS];
+
+    private ScryptEngine() {
+    }
+
+    /**
+     * Calculates the Scrypt hash of the given bytes, using the calling thread's
+     * engine. The resulting hash is in small endian form.
+     */
+    public static byte[] scrypt(final byte[] input) {
+        return scrypt(input, 0, input.length);
+    }
+
+    /**
+     * Calculates the Scrypt hash of the given byte range, using the calling
+     * thread's engine. The resulting hash is in small endian form.
+     */
+    public static byte[] scrypt(final byte[] input, final int offset, final int length) {
+        final byte[] out = new byte[DIGEST_LENGTH];
+        scrypt(input, offset, length, out, 0);
+        return out;
+    }
+
+    /**
+     * Calculates the Scrypt hash of the given byte range into the given output
+     * array, using the calling thread's engine. Performs no allocation once the
+     * thread's engine exists.
+     *
+     * @param input array containing the data to hash.
+     * @param offset offset of the data within the input array.
+     * @param length length of the data.
+     * @param out array to write the 32 byte, small endian, hash to.
+     * @param outOffset offset within the output array to write to.
+     */
+    public static void scrypt(final byte[] input, final int offset, final int length,
+            final byte[] out, final int outOffset) {
+        ENGINES.get().digest(input, offset, length, out, outOffset);
+    }
+
+    private void digest(final byte[] input, final int offset, final int length,
+            final byte[] out, final int outOffset) {
+        hmacInit(input, offset, length);
+
+        // B = PBKDF2-HMAC-SHA256(P, S, 1, 128)
+        for (int block = 0; block < 4; block++) {
+            hmacStart();
+            shaUpdate(input, offset, length);
+            counter[0] = 0;
+            counter[1] = 0;
+            counter[2] = 0;
+            counter[3] = (byte) (block + 1);
+            shaUpdate(counter, 0, 4);
+            hmacFinish(b, block * DIGEST_LENGTH);
+        }
+
+        for (int i = 0; i < BLOCK_WORDS; i++) {
+            x[i] = readIntLE(b, i * 4);
+        }
+        romix();
+        for (int i = 0; i < BLOCK_WORDS; i++) {
+            writeIntLE(x[i], b, i * 4);
+        }
+
+        // Output = PBKDF2-HMAC-SHA256(P, B, 1, 32)
+        hmacStart();
+        shaUpdate(b, 0, b.length);
+        counter[3] = 1;
+        shaUpdate(counter, 0, 4);
+        hmacFinish(out, outOffset);
+    }
+
+    private void romix() {
+        for (int i = 0; i < N; i++) {
+            System.arraycopy(x, 0, v, i * BLOCK_WORDS, BLOCK_WORDS);
+            salsa208(x, 0, 16);
+            salsa208(x, 16, 0);
+        }
+        for (int i = 0; i < N; i++) {
+            final int j = (x[16] & (N - 1)) * BLOCK_WORDS;
+            for (int k = 0; k < BLOCK_WORDS; k++) {
+                x[k] ^= v[j + k];
+            }
+            salsa208(x, 0, 16);
+            salsa208(x, 16, 0);
+        }
+    }
+
+    /**
+     * XOR the 16 word block at {@code xorOffset} into the block at
+     * {@code offset}, then apply the Salsa20/8 core to it in place.
+     */
+    private static void salsa208(final int[] b, final int offset, final int xorOffset) {
+        int x00 = (b[offset] ^= b[xorOffset]);
+        int x01 = (b[offset + 1] ^= b[xorOffset + 1]);
+        int x02 = (b[offset + 2] ^= b[xorOffset + 2]);
+        int x03 = (b[offset + 3] ^= b[xorOffset + 3]);
+        int x04 = (b[offset + 4] ^= b[xorOffset + 4]);
+        int x05 = (b[offset + 5] ^= b[xorOffset + 5]);
+        int x06 = (b[offset + 6] ^= b[xorOffset + 6]);
+        int x07 = (b[offset + 7] ^= b[xorOffset + 7]);
+        int x08 = (b[offset + 8] ^= b[xorOffset + 8]);
+        int x09 = (b[offset + 9] ^= b[xorOffset + 9]);
+        int x10 = (b[offset + 10] ^= b[xorOffset + 10]);
+        int x11 = (b[offset + 11] ^= b[xorOffset + 11]);
+        int x12 = (b[offset + 12] ^= b[xorOffset + 12]);
+        int x13 = (b[offset + 13] ^= b[xorOffset + 13]);
+        int x14 = (b[offset + 14] ^= b[xorOffset + 14]);
+        int x15 = (b[offset + 15] ^= b[xorOffset + 15]);
+
+        for (int i = 0; i < 8; i += 2) {
+            // Operate on columns
+            x04 ^= Integer.rotateLeft(x00 + x12, 7);
+            x08 ^= Integer.rotateLeft(x04 + x00, 9);
+            x12 ^= Integer.rotateLeft(x08 + x04, 13);
+            x00 ^= Integer.rotateLeft(x12 + x08, 18);
+            x09 ^= Integer.rotateLeft(x05 + x01, 7);
+            x13 ^= Integer.rotateLeft(x09 + x05, 9);
+            x01 ^= Integer.rotateLeft(x13 + x09, 13);
+            x05 ^= Integer.rotateLeft(x01 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x06, 7);
+            x02 ^= Integer.rotateLeft(x14 + x10, 9);
+            x06 ^= Integer.rotateLeft(x02 + x14, 13);
+            x10 ^= Integer.rotateLeft(x06 + x02, 18);
+            x03 ^= Integer.rotateLeft(x15 + x11, 7);
+            x07 ^= Integer.rotateLeft(x03 + x15, 9);
+            x11 ^= Integer.rotateLeft(x07 + x03, 13);
+            x15 ^= Integer.rotateLeft(x11 + x07, 18);
+
+            // Operate on rows
+            x01 ^= Integer.rotateLeft(x00 + x03, 7);
+            x02 ^= Integer.rotateLeft(x01 + x00, 9);
+            x03 ^= Integer.rotateLeft(x02 + x01, 13);
+            x00 ^= Integer.rotateLeft(x03 + x02, 18);
+            x06 ^= Integer.rotateLeft(x05 + x04, 7);
+            x07 ^= Integer.rotateLeft(x06 + x05, 9);
+            x04 ^= Integer.rotateLeft(x07 + x06, 13);
+            x05 ^= Integer.rotateLeft(x04 + x07, 18);
+            x11 ^= Integer.rotateLeft(x10 + x09, 7);
+            x08 ^= Integer.rotateLeft(x11 + x10, 9);
+            x09 ^= Integer.rotateLeft(x08 + x11, 13);
+            x10 ^= Integer.rotateLeft(x09 + x08, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+
+        b[offset] += x00;
+        b[offset + 1] += x01;
+        b[offset + 2] += x02;
+        b[offset + 3] += x03;
+        b[offset + 4] += x04;
+        b[offset + 5] += x05;
+        b[offset + 6] += x06;
+        b[offset + 7] += x07;
+        b[offset + 8] += x08;
+        b[offset + 9] += x09;
+        b[offset + 10] += x10;
+        b[offset + 11] += x11;
+        b[offset + 12] += x12;
+        b[offset + 13] += x13;
+        b[offset + 14] += x14;
+        b[offset + 15] += x15;
+    }
+
+    /**
+     * Prepare the HMAC inner and outer states for the given key.
+     */
+    private void hmacInit(final byte[] key, final int offset, final int length) {
+        Arrays.fill(pad, (byte) 0);
+        if (length > SHA256_BLOCK_LENGTH) {
+            shaReset(H0);
+            shaUpdate(key, offset, length);
+            shaFinish(pad, 0);
+        } else {
+            System.arraycopy(key, offset, pad, 0, length);
+        }
+
+        for (int i = 0; i < SHA256_BLOCK_LENGTH; i++) {
+            pad[i] ^= 0x36;
+        }
+        shaReset(H0);
+        shaUpdate(pad, 0, SHA256_BLOCK_LENGTH);
+        System.arraycopy(state, 0, innerState, 0, 8);
+
+        for (int i = 0; i < SHA256_BLOCK_LENGTH; i++) {
+            pad[i] ^= 0x36 ^ 0x5c;
+        }
+        shaReset(H0);
+        shaUpdate(pad, 0, SHA256_BLOCK_LENGTH);
+        System.arraycopy(state, 0, outerState, 0, 8);
+    }
+
+    /**
+     * Start a new HMAC message, resuming from the precomputed inner state.
+     */
+    private void hmacStart() {
+        shaReset(innerState);
+        shaTotalLength = SHA256_BLOCK_LENGTH;
+    }
+
+    private void hmacFinish(final byte[] out, final int outOffset) {
+        shaFinish(digest, 0);
+        shaReset(outerState);
+        shaTotalLength = SHA256_BLOCK_LENGTH;
+        shaUpdate(digest, 0, DIGEST_LENGTH);
+        shaFinish(out, outOffset);
+    }
+
+    private void shaReset(final int[] initialState) {
+        System.arraycopy(initialState, 0, state, 0, 8);
+        shaBufferLength = 0;
+        shaTotalLength = 0;
+    }
+
+    private void shaUpdate(final byte[] data, int offset, int length) {
+        shaTotalLength += length;
+        if (shaBufferLength > 0) {
+            final int fill = Math.min(length, SHA256_BLOCK_LENGTH - shaBufferLength);
+            System.arraycopy(data, offset, shaBuffer, shaBufferLength, fill);
+            shaBufferLength += fill;
+            offset += fill;
+            length -= fill;
+            if (shaBufferLength < SHA256_BLOCK_LENGTH) {
+                return;
+            }
+            shaTransform(shaBuffer, 0);
+            shaBufferLength = 0;
+        }
+        while (length >= SHA256_BLOCK_LENGTH) {
+            shaTransform(data, offset);
+            offset += SHA256_BLOCK_LENGTH;
+            length -= SHA256_BLOCK_LENGTH;
+        }
+        if (length > 0) {
+            System.arraycopy(data, offset, shaBuffer, 0, length);
+            shaBufferLength = length;
+        }
+    }
+
+    private void shaFinish(final byte[] out, final int outOffset) {
+        final long bitLength = shaTotalLength << 3;
+        shaBuffer[shaBufferLength++] = (byte) 0x80;
+        if (shaBufferLength > SHA256_BLOCK_LENGTH - 8) {
+            Arrays.fill(shaBuffer, shaBufferLength, SHA256_BLOCK_LENGTH, (byte) 0);
+            shaTransform(shaBuffer, 0);
+            shaBufferLength = 0;
+        }
+        Arrays.fill(shaBuffer, shaBufferLength, SHA256_BLOCK_LENGTH - 8, (byte) 0);
+        writeIntBE((int) (bitLength >>> 32), shaBuffer, SHA256_BLOCK_LENGTH - 8);
+        writeIntBE((int) bitLength, shaBuffer, SHA256_BLOCK_LENGTH - 4);
+        shaTransform(shaBuffer, 0);
+        shaBufferLength = 0;
+        for (int i = 0; i < 8; i++) {
+            writeIntBE(state[i], out, outOffset + i * 4);
+        }
+    }
+
+    private void shaTransform(final byte[] block, final int offset) {
+        for (int t = 0; t < 16; t++) {
+            w[t] = readIntBE(block, offset + t * 4);
+        }
+        for (int t = 16; t < 64; t++) {
+            final int w15 = w[t - 15];
+            final int w2 = w[t - 2];
+            final int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            final int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+
+        int a = state[0];
+        int b = state[1];
+        int c = state[2];
+        int d = state[3];
+        int e = state[4];
+        int f = state[5];
+        int g = state[6];
+        int h = state[7];
+
+        for (int t = 0; t < 64; t++) {
+            final int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            final int ch = (e & f) ^ (~e & g);
+            final int t1 = h + s1 + ch + K[t] + w[t];
+            final int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            final int maj = (a & b) ^ (a & c) ^ (b & c);
+            final int t2 = s0 + maj;
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
+    }
+
+    private static int readIntBE(final byte[] bytes, final int offset) {
+        return (bytes[offset] << 24)
+            | ((bytes[offset + 1] & 0xff) << 16)
+            | ((bytes[offset + 2] & 0xff) << 8)
+            | (bytes[offset + 3] & 0xff);
+    }
+
+    private static int readIntLE(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xff)
+            | ((bytes[offset + 1] & 0xff) << 8)
+            | ((bytes[offset + 2] & 0xff) << 16)
+            | (bytes[offset + 3] << 24);
+    }
+
+    private static void writeIntBE(final int value, final byte[] out, final int offset) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+
+    private static void writeIntLE(final int value, final byte[] out, final int offset) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >>> 8);
+        out[offset + 2] = (byte) (value >>> 16);
+        out[offset + 3] = (byte) (value >>> 24);
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.store.BlockStoreException;
+import org.libdohj.store.VerifiedPoWIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Bounded, least recently used cache of Scrypt proof of work hashes, keyed by
+ * the SHA256d hash of the block header. Copies of a header (from
+ * {@code cloneAsHeader()}, store reloads, reorgs or the same header announced
+ * by several peers) share one cache entry, so the Scrypt hash is calculated
+ * once rather than once per copy.
+ *
+ * <p>Optionally backed by a {@link VerifiedPoWIndex}, which is consulted on a
+ * miss and persists the hashes of headers whose proof of work has been
+ * verified, so they survive a restart.</p>
+ */
+public class ScryptHashCache {
+    private static final Logger log = LoggerFactory.getLogger(ScryptHashCache.class);
+
+    /** Default maximum number of entries in the process-wide cache. */
+    public static final int DEFAULT_MAX_SIZE = 20000;
+
+    private static volatile ScryptHashCache defaultCache = new ScryptHashCache(DEFAULT_MAX_SIZE);
+
+    private final Cache<Sha256Hash, Sha256Hash> cache;
+    private final int maxSize;
+    @Nullable private volatile VerifiedPoWIndex persistentIndex;
+
+    /**
+     * Create a cache holding at most the given number of entries.
+     */
+    public ScryptHashCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(maxSize)
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * Get the process-wide cache used by {@link org.bitcoinj.core.AltcoinBlock}.
+     */
+    public static ScryptHashCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Replace the process-wide cache, for example to change its size.
+     */
+    public static void setDefault(final ScryptHashCache cache) {
+        defaultCache = checkNotNull(cache);
+    }
+
+    /**
+     * Get the Scrypt hash of the block with the given hash, if it is cached.
+     *
+     * @param blockHash the SHA256d hash of the block header.
+     * @return the Scrypt hash, big endian, or null if not cached.
+     */
+    @Nullable
+    public Sha256Hash get(final Sha256Hash blockHash) {
+        Sha256Hash scryptHash = cache.getIfPresent(blockHash);
+        final VerifiedPoWIndex index = persistentIndex;
+        if (scryptHash == null && index != null) {
+            try {
+                scryptHash = index.get(blockHash);
+            } catch (BlockStoreException e) {
+                log.warn("Could not read verified proof of work for block " + blockHash, e);
+            }
+            if (scryptHash != null) {
+                cache.put(blockHash, scryptHash);
+            }
+        }
+        return scryptHash;
+    }
+
+    /**
+     * Record the Scrypt hash of the block with the given hash.
+     *
+     * @param blockHash the SHA256d hash of the block header.
+     * @param scryptHash the Scrypt hash of the block header, big endian.
+     */
+    public void put(final Sha256Hash blockHash, final Sha256Hash scryptHash) {
+        cache.put(blockHash, scryptHash);
+    }
+
+    /**
+     * Record that the proof of work of the block with the given hash has been
+     * verified, persisting its Scrypt hash to the backing index if there is
+     * one. Failure to write to the index is logged, not thrown, as the index
+     * only saves recalculation.
+     *
+     * @param blockHash the SHA256d hash of the block header.
+     * @param scryptHash the Scrypt hash of the block header, big endian.
+     */
+    public void markVerified(final Sha256Hash blockHash, final Sha256Hash scryptHash) {
+        final VerifiedPoWIndex index = persistentIndex;
+        if (index != null) {
+            try {
+                index.put(blockHash, scryptHash);
+            } catch (BlockStoreException e) {
+                log.warn("Could not record verified proof of work for block " + blockHash, e);
+            }
+        }
+    }
+
+    /**
+     * Get the persistent index backing this cache, if any.
+     */
+    @Nullable
+    public VerifiedPoWIndex getPersistentIndex() {
+        return persistentIndex;
+    }
+
+    /**
+     * Set the persistent index backing this cache, or null to detach it. The
+     * caller remains responsible for flushing and closing the index.
+     */
+    public void setPersistentIndex(@Nullable final VerifiedPoWIndex index) {
+        this.persistentIndex = index;
+    }
+
+    /**
+     * Drop all cached hashes. Statistics are not reset.
+     */
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Get the approximate number of entries in the cache.
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    /**
+     * Get a snapshot of all cache statistics.
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    @Override
+    public String toString() {
+        final CacheStats stats = cache.stats();
+        return "Scrypt hash cache: " + cache.size() + "/" + maxSize + " entries, "
+            + stats.hitCount() + " hits, " + stats.missCount() + " misses, "
+            + stats.evictionCount() + " evictions";
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.MessageSerializer;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Parses blocks incrementally from a channel: the header and any AuxPoW
+ * header first, then each transaction in turn, which is passed to a
+ * {@link Listener} as soon as it has been decoded. Validation and indexing
+ * can then start before the whole block has been read, and no more than the
+ * largest single header or transaction is ever buffered, however large the
+ * block.
+ *
+ * <p>The parser buffers ahead of the block it is reading, so successive
+ * blocks on the same channel must be read through the same parser. When an
+ * item is not yet complete, the parser fills its buffer before measuring the
+ * item again, so it suits files and other channels which do not stall part
+ * way through a block. It is not thread safe.</p>
+ */
+public class StreamingBlockParser {
+    /** Default limit on the size of any one header or transaction. */
+    public static final int DEFAULT_MAX_ITEM_SIZE = 4 * 1024 * 1024;
+
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    /** Version, empty input and output counts, and lock time. */
+    private static final int MIN_TRANSACTION_SIZE = 10;
+    /** The most transactions which could fit in a block. */
+    private static final int MAX_TRANSACTION_COUNT = Block.MAX_BLOCK_SIZE / MIN_TRANSACTION_SIZE;
+
+    /**
+     * Receives the parts of each block as they are parsed.
+     */
+    public interface Listener {
+        /**
+         * Called once the block header, and any AuxPoW header, has been
+         * parsed.
+         *
+         * @param header the block, without transactions.
+         * @param transactionCount the number of transactions to follow.
+         */
+        void onHeader(AltcoinBlock header, int transactionCount);
+
+        /**
+         * Called as each transaction is parsed.
+         *
+         * @param header the block the transaction belongs to.
+         * @param txIndex the index of the transaction within the block.
+         */
+        void onTransaction(AltcoinBlock header, int txIndex, Transaction tx);
+
+        /**
+         * Called after the last transaction of the block.
+         */
+        void onBlockComplete(AltcoinBlock header);
+    }
+
+    private final NetworkParameters params;
+    private final MessageSerializer serializer;
+    private final ReadableByteChannel channel;
+    private final int maxItemSize;
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    /** Start of unconsumed data in the buffer. */
+    private int start;
+    /** End of data read into the buffer. */
+    private int end;
+    private boolean endOfStream;
+    /** Total bytes consumed from the channel. */
+    private long position;
+
+    /**
+     * @param params network parameters.
+     * @param serializer serializer for the headers and transactions. In
+     * parse-retain mode each item is copied out of the read buffer, so it
+     * can retain its own bytes.
+     * @param channel the channel to read from.
+     */
+    public StreamingBlockParser(final NetworkParameters params, final MessageSerializer serializer,
+                                final ReadableByteChannel channel) {
+        this(params, serializer, channel, DEFAULT_MAX_ITEM_SIZE);
+    }
+
+    /**
+     * @param maxItemSize the largest header (including any AuxPoW header) or
+     * transaction accepted, which bounds the memory used per block.
+     */
+    public StreamingBlockParser(final NetworkParameters params, final MessageSerializer serializer,
+                                final ReadableByteChannel channel, final int maxItemSize) {
+        checkArgument(maxItemSize >= Block.HEADER_SIZE, "Maximum item size is smaller than a block header");
+        this.params = checkNotNull(params);
+        this.serializer = checkNotNull(serializer);
+        this.channel = checkNotNull(channel);
+        this.maxItemSize = maxItemSize;
+    }
+
+    public StreamingBlockParser(final NetworkParameters params, final MessageSerializer serializer,
+                                final InputStream stream) {
+        this(params, serializer, Channels.newChannel(stream));
+    }
+
+    /**
+     * Get the number of bytes of the channel consumed by parsed blocks.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Parse the next block from the channel.
+     *
+     * @return the block header, without transactions, or null if the
+     * channel ended before the block started.
+     * @throws EOFException if the channel ends part way through the block.
+     * @throws ProtocolException if the block is malformed, claims more
+     * transactions than could fit in a block, or any header or transaction
+     * in it is larger than the maximum item size.
+     */
+    @Nullable
+    public AltcoinBlock parseBlock(final Listener listener) throws IOException, ProtocolException {
+        if (!ensureAvailable(1)) {
+            return null;
+        }
+        if (!ensureAvailable(Block.HEADER_SIZE)) {
+            throw new EOFException("Channel ended part way through block header");
+        }
+        final long version = Utils.readUint32(buffer, start);
+        int headerLength = Block.HEADER_SIZE;
+        if (params instanceof AuxPoWNetworkParameters
+                && ((AuxPoWNetworkParameters) params).isAuxPoWBlockVersion(version)) {
+            headerLength += measure(true, Block.HEADER_SIZE);
+        }
+        // Header is followed by the transaction count
+        ensureMeasurable(headerLength + 1);
+        final int countSize = HeadersScanner.varIntSize(buffer, start + headerLength, end);
+        ensureMeasurable(headerLength + countSize);
+        final long transactionCount = HeadersScanner.readVarInt(buffer, start + headerLength, end);
+        if (transactionCount > MAX_TRANSACTION_COUNT) {
+            throw new ProtocolException("Block claims " + transactionCount + " transactions, more than fit in a block");
+        }
+
+        final AltcoinBlock header;
+        if (serializer.isParseRetainMode()) {
+            header = AltcoinBlock.parseHeader(params, copyItem(headerLength), 0, serializer);
+        } else {
+            header = AltcoinBlock.parseHeader(params, buffer, start, serializer);
+        }
+        consume(headerLength + countSize);
+        listener.onHeader(header, (int) transactionCount);
+
+        for (int txIndex = 0; txIndex < transactionCount; txIndex++) {
+            final int txLength = measure(false, 0);
+            final Transaction tx;
+            if (serializer.isParseRetainMode()) {
+                tx = serializer.makeTransaction(copyItem(txLength), 0, txLength, null);
+            } else {
+                tx = serializer.makeTransaction(buffer, start, txLength, null);
+            }
+            consume(txLength);
+            listener.onTransaction(header, txIndex, tx);
+        }
+        listener.onBlockComplete(header);
+        return header;
+    }
+
+    /**
+     * Parse the next block from a block file (such as {@code blk00000.dat}),
+     * where each block is preceded by the network's packet magic and its
+     * length. Bytes before the next packet magic, such as the zero padding
+     * at the end of a file, are skipped.
+     *
+     * @return the block header, without transactions, or null if there are
+     * no more blocks in the channel.
+     * @throws ProtocolException if the block is malformed, or its length does
+     * not match the length recorded for it.
+     */
+    @Nullable
+    public AltcoinBlock parseBlockFileEntry(final Listener listener) throws IOException, ProtocolException {
+        final long magic = params.getPacketMagic();
+        int matched = 0;
+        while (matched < 4) {
+            if (!ensureAvailable(1)) {
+                return null;
+            }
+            final int expected = (int) (magic >>> (8 * (3 - matched))) & 0xff;
+            final int actual = buffer[start] & 0xff;
+            consume(1);
+            if (actual == expected) {
+                matched++;
+            } else {
+                matched = actual == (int) (magic >>> 24) ? 1 : 0;
+            }
+        }
+        if (!ensureAvailable(4)) {
+            throw new EOFException("Channel ended part way through block length");
+        }
+        final long blockLength = Utils.readUint32(buffer, start);
+        consume(4);
+
+        final long blockStart = position;
+        final AltcoinBlock header = parseBlock(listener);
+        if (header == null) {
+            throw new EOFException("Channel ended before block");
+        }
+        if (position - blockStart != blockLength) {
+            throw new ProtocolException("Block length " + (position - blockStart)
+                + " does not match recorded length " + blockLength);
+        }
+        return header;
+    }
+
+    /**
+     * Measure the AuxPoW header or transaction at the given offset from the
+     * start of unconsumed data, reading more from the channel until it is
+     * complete. The item is only measured again once the buffer has been
+     * filled, as rescanning it after every read would be quadratic in its
+     * size when reads are small (8 KiB from an input stream).
+     */
+    private int measure(final boolean auxpow, final int relativeOffset) throws IOException, ProtocolException {
+        while (true) {
+            try {
+                final int offset = start + relativeOffset;
+                return auxpow
+                    ? HeadersScanner.auxPoWLength(buffer, offset, end)
+                    : HeadersScanner.transactionLength(buffer, offset, end);
+            } catch (ProtocolException e) {
+                // Either truncated or malformed; only more data tells which
+                if (!fill()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void ensureMeasurable(final int length) throws IOException {
+        if (!ensureAvailable(length)) {
+            throw new EOFException("Channel ended part way through block");
+        }
+    }
+
+    /**
+     * Make sure the given number of unconsumed bytes are buffered.
+     *
+     * @return false if the channel ended first.
+     */
+    private boolean ensureAvailable(final int length) throws IOException {
+        while (end - start < length) {
+            if (!readMore()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read more data from the channel, compacting or growing the buffer as
+     * needed.
+     *
+     * @return false if the channel has ended.
+     * @throws ProtocolException if the unconsumed data already fills the
+     * maximum item size.
+     */
+    private boolean readMore() throws IOException {
+        if (endOfStream) {
+            return false;
+        }
+        if (end == buffer.length) {
+            final int unconsumed = end - start;
+            if (unconsumed >= maxItemSize) {
+                throw new ProtocolException("Block item larger than " + maxItemSize + " bytes");
+            }
+            if (unconsumed > buffer.length / 2) {
+                buffer = Arrays.copyOfRange(buffer, start, start + Math.min(buffer.length * 2, maxItemSize));
+            } else {
+                System.arraycopy(buffer, start, buffer, 0, unconsumed);
+            }
+            start = 0;
+            end = unconsumed;
+        }
+        final int read = channel.read(ByteBuffer.wrap(buffer, end, buffer.length - end));
+        if (read < 0) {
+            endOfStream = true;
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    /**
+     * Read from the channel until the buffer is full, compacting or growing
+     * it first if it already is.
+     *
+     * @return false if the channel ended before anything more was read.
+     */
+    private boolean fill() throws IOException {
+        if (!readMore()) {
+            return false;
+        }
+        int previousEnd;
+        do {
+            previousEnd = end;
+        } while (end < buffer.length && readMore() && end > previousEnd);
+        return true;
+    }
+
+    private byte[] copyItem(final int length) {
+        return Arrays.copyOfRange(buffer, start, start + length);
+    }
+
+    private void consume(final int length) {
+        start += length;
+        position += length;
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.math.BigInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Immutable 256 bit unsigned integer held as four longs, for proof of work
+ * targets, hashes and chain work. Covers the operations needed on the header
+ * verification path (compact bits conversion, comparison, multiplication and
+ * division by small values, and work from target) without allocating a
+ * {@link BigInteger}.
+ *
+ * <p>Arithmetic which overflows 256 bits wraps, as with the reference
+ * client's {@code arith_uint256}.</p>
+ */
+public final class UInt256 implements Comparable<UInt256> {
+    public static final UInt256 ZERO = new UInt256(0, 0, 0, 0);
+    public static final UInt256 ONE = new UInt256(0, 0, 0, 1);
+    public static final UInt256 MAX_VALUE = new UInt256(-1L, -1L, -1L, -1L);
+
+    /** Number of bytes in the big endian representation. */
+    public static final int BYTES = 32;
+
+    // Most significant first
+    private final long w3;
+    private final long w2;
+    private final long w1;
+    private final long w0;
+
+    private UInt256(final long w3, final long w2, final long w1, final long w0) {
+        this.w3 = w3;
+        this.w2 = w2;
+        this.w1 = w1;
+        this.w0 = w0;
+    }
+
+    /**
+     * Create a value from its four 64 bit words, most significant first.
+     */
+    public static UInt256 of(final long w3, final long w2, final long w1, final long w0) {
+        return new UInt256(w3, w2, w1, w0);
+    }
+
+    public static UInt256 valueOf(final long value) {
+        checkArgument(value >= 0, "Value must not be negative");
+        return new UInt256(0, 0, 0, value);
+    }
+
+    /**
+     * Read a value from 32 big endian bytes.
+     */
+    public static UInt256 fromBytes(final byte[] bytes, final int offset) {
+        return new UInt256(readLongBE(bytes, offset), readLongBE(bytes, offset + 8),
+            readLongBE(bytes, offset + 16), readLongBE(bytes, offset + 24));
+    }
+
+    /**
+     * Read a value from 32 little endian bytes, as hashes are held on the wire.
+     */
+    public static UInt256 fromLittleEndianBytes(final byte[] bytes, final int offset) {
+        return new UInt256(readLongLE(bytes, offset + 24), readLongLE(bytes, offset + 16),
+            readLongLE(bytes, offset + 8), readLongLE(bytes, offset));
+    }
+
+    /**
+     * Interpret a hash as a number, matching {@link Sha256Hash#toBigInteger()}.
+     */
+    public static UInt256 fromHash(final Sha256Hash hash) {
+        return fromBytes(hash.getBytes(), 0);
+    }
+
+    /**
+     * Convert a non-negative BigInteger of at most 256 bits.
+     */
+    public static UInt256 fromBigInteger(final BigInteger value) {
+        checkArgument(value.signum() >= 0 && value.bitLength() <= 256, "Value out of range: %s", value);
+        return new UInt256(value.shiftRight(192).longValue(), value.shiftRight(128).longValue(),
+            value.shiftRight(64).longValue(), value.longValue());
+    }
+
+    /**
+     * Test whether a compact ("nBits") difficulty target decodes to a
+     * non-negative value of at most 256 bits, and so can be passed to
+     * {@link #fromCompactBits(long)}.
+     */
+    public static boolean isValidCompactBits(final long compact) {
+        final int size = (int) (compact >> 24) & 0xff;
+        long mantissa = compact & 0x7fffffL;
+        if (size <= 3) {
+            mantissa >>= 8 * (3 - size);
+        }
+        if (mantissa == 0) {
+            return true;
+        }
+        return (compact & 0x00800000L) == 0
+            && (size <= 3 || 64 - Long.numberOfLeadingZeros(mantissa) + 8 * (size - 3) <= 256);
+    }
+
+    /**
+     * Decode a compact ("nBits") difficulty target, with the same result as
+     * {@code Utils.decodeCompactBits()} for every input which that method maps
+     * to a non-negative value of at most 256 bits.
+     *
+     * @throws IllegalArgumentException if the compact value is negative or
+     * does not fit in 256 bits.
+     */
+    public static UInt256 fromCompactBits(final long compact) {
+        if (!isValidCompactBits(compact)) {
+            throw new IllegalArgumentException("Compact value is negative or overflows 256 bits: "
+                + Long.toHexString(compact));
+        }
+        final int size = (int) (compact >> 24) & 0xff;
+        final long mantissa = compact & 0x7fffffL;
+        if (size <= 3) {
+            return valueOf(mantissa >> (8 * (3 - size)));
+        }
+        return valueOf(mantissa).shiftLeft(8 * (size - 3));
+    }
+
+    /**
+     * Encode as a compact ("nBits") difficulty target, with the same result as
+     * {@code Utils.encodeCompactBits()}.
+     */
+    public long toCompactBits() {
+        // Size as BigInteger.toByteArray() would report it, including the sign byte
+        int size = bitLength() / 8 + 1;
+        long result;
+        if (size <= 3) {
+            result = w0 << (8 * (3 - size));
+        } else {
+            result = shiftRight(8 * (size - 3)).w0;
+        }
+        if ((result & 0x00800000L) != 0) {
+            result >>= 8;
+            size++;
+        }
+        return result | ((long) size << 24);
+    }
+
+    public BigInteger toBigInteger() {
+        final byte[] bytes = new byte[BYTES + 1];
+        writeLongBE(w3, bytes, 1);
+        writeLongBE(w2, bytes, 9);
+        writeLongBE(w1, bytes, 17);
+        writeLongBE(w0, bytes, 25);
+        return new BigInteger(bytes);
+    }
+
+    /**
+     * Get the value as 32 big endian bytes.
+     */
+    public byte[] toBytes() {
+        final byte[] bytes = new byte[BYTES];
+        writeLongBE(w3, bytes, 0);
+        writeLongBE(w2, bytes, 8);
+        writeLongBE(w1, bytes, 16);
+        writeLongBE(w0, bytes, 24);
+        return bytes;
+    }
+
+    /**
+     * Get the number of significant bits, as {@link BigInteger#bitLength()}.
+     */
+    public int bitLength() {
+        if (w3 != 0) {
+            return 256 - Long.numberOfLeadingZeros(w3);
+        } else if (w2 != 0) {
+            return 192 - Long.numberOfLeadingZeros(w2);
+        } else if (w1 != 0) {
+            return 128 - Long.numberOfLeadingZeros(w1);
+        } else {
+            return 64 - Long.numberOfLeadingZeros(w0);
+        }
+    }
+
+    public boolean isZero() {
+        return (w3 | w2 | w1 | w0) == 0;
+    }
+
+    /**
+     * Get the least significant 64 bits.
+     */
+    public long longValue() {
+        return w0;
+    }
+
+    public UInt256 shiftLeft(final int bits) {
+        checkArgument(bits >= 0, "Shift must not be negative");
+        if (bits >= 256) {
+            return ZERO;
+        }
+        final int words = bits >>> 6;
+        final int shift = bits & 63;
+        final long[] in = {w0, w1, w2, w3};
+        final long[] out = new long[4];
+        for (int wordIdx = 3; wordIdx >= words; wordIdx--) {
+            long word = in[wordIdx - words] << shift;
+            if (shift != 0 && wordIdx - words - 1 >= 0) {
+                word |= in[wordIdx - words - 1] >>> (64 - shift);
+            }
+            out[wordIdx] = word;
+        }
+        return new UInt256(out[3], out[2], out[1], out[0]);
+    }
+
+    public UInt256 shiftRight(final int bits) {
+        checkArgument(bits >= 0, "Shift must not be negative");
+        if (bits >= 256) {
+            return ZERO;
+        }
+        final int words = bits >>> 6;
+        final int shift = bits & 63;
+        final long[] in = {w0, w1, w2, w3};
+        final long[] out = new long[4];
+        for (int wordIdx = 0; wordIdx + words < 4; wordIdx++) {
+            long word = in[wordIdx + words] >>> shift;
+            if (shift != 0 && wordIdx + words + 1 < 4) {
+                word |= in[wordIdx + words + 1] << (64 - shift);
+            }
+            out[wordIdx] = word;
+        }
+        return new UInt256(out[3], out[2], out[1], out[0]);
+    }
+
+    public UInt256 add(final UInt256 other) {
+        final long r0 = w0 + other.w0;
+        long carry = Long.compareUnsigned(r0, w0) < 0 ? 1 : 0;
+        final long s1 = w1 + other.w1;
+        final long r1 = s1 + carry;
+        carry = (Long.compareUnsigned(s1, w1) < 0 || Long.compareUnsigned(r1, s1) < 0) ? 1 : 0;
+        final long s2 = w2 + other.w2;
+        final long r2 = s2 + carry;
+        carry = (Long.compareUnsigned(s2, w2) < 0 || Long.compareUnsigned(r2, s2) < 0) ? 1 : 0;
+        final long r3 = w3 + other.w3 + carry;
+        return new UInt256(r3, r2, r1, r0);
+    }
+
+    public UInt256 subtract(final UInt256 other) {
+        final long r0 = w0 - other.w0;
+        long borrow = Long.compareUnsigned(w0, other.w0) < 0 ? 1 : 0;
+        final long s1 = w1 - other.w1;
+        final long r1 = s1 - borrow;
+        borrow = (Long.compareUnsigned(w1, other.w1) < 0 || Long.compareUnsigned(s1, borrow) < 0) ? 1 : 0;
+        final long s2 = w2 - other.w2;
+        final long r2 = s2 - borrow;
+        borrow = (Long.compareUnsigned(w2, other.w2) < 0 || Long.compareUnsigned(s2, borrow) < 0) ? 1 : 0;
+        final long r3 = w3 - other.w3 - borrow;
+        return new UInt256(r3, r2, r1, r0);
+    }
+
+    public UInt256 not() {
+        return new UInt256(~w3, ~w2, ~w1, ~w0);
+    }
+
+    public UInt256 and(final UInt256 other) {
+        return new UInt256(w3 & other.w3, w2 & other.w2, w1 & other.w1, w0 & other.w0);
+    }
+
+    /**
+     * Multiply by a value between 0 and 2^32 - 1.
+     */
+    public UInt256 multiply(final long factor) {
+        checkArgument(factor >= 0 && factor <= 0xffffffffL, "Factor out of range: %s", factor);
+        long carry = 0;
+        final long[] words = {w0, w1, w2, w3};
+        for (int wordIdx = 0; wordIdx < 4; wordIdx++) {
+            // Multiply in 32 bit halves so no intermediate exceeds 64 bits
+            final long lo = (words[wordIdx] & 0xffffffffL) * factor + carry;
+            final long hi = (words[wordIdx] >>> 32) * factor + (lo >>> 32);
+            words[wordIdx] = (hi << 32) | (lo & 0xffffffffL);
+            carry = hi >>> 32;
+        }
+        return new UInt256(words[3], words[2], words[1], words[0]);
+    }
+
+    /**
+     * Divide by a value between 1 and 2^32 - 1, rounding down.
+     */
+    public UInt256 divide(final long divisor) {
+        checkArgument(divisor > 0 && divisor <= 0xffffffffL, "Divisor out of range: %s", divisor);
+        long remainder = 0;
+        final long[] words = {w3, w2, w1, w0};
+        for (int wordIdx = 0; wordIdx < 4; wordIdx++) {
+            final long hi = (remainder << 32) | (words[wordIdx] >>> 32);
+            // Partial dividends can use all 64 bits, so divide unsigned
+            final long qHi = Long.divideUnsigned(hi, divisor);
+            remainder = Long.remainderUnsigned(hi, divisor);
+            final long lo = (remainder << 32) | (words[wordIdx] & 0xffffffffL);
+            final long qLo = Long.divideUnsigned(lo, divisor);
+            remainder = Long.remainderUnsigned(lo, divisor);
+            words[wordIdx] = (qHi << 32) | qLo;
+        }
+        return new UInt256(words[0], words[1], words[2], words[3]);
+    }
+
+    /**
+     * Divide by another 256 bit value, rounding down.
+     *
+     * @throws ArithmeticException if the divisor is zero.
+     */
+    public UInt256 divide(final UInt256 divisor) {
+        if (divisor.isZero()) {
+            throw new ArithmeticException("Division by zero");
+        }
+        if (compareTo(divisor) < 0) {
+            return ZERO;
+        }
+        if ((divisor.w3 | divisor.w2 | divisor.w1) == 0 && divisor.w0 > 0 && divisor.w0 <= 0xffffffffL) {
+            return divide(divisor.w0);
+        }
+        // Shift-subtract long division, starting from the divisor aligned
+        // with the dividend's top bit.
+        final int shift = bitLength() - divisor.bitLength();
+        UInt256 remainder = this;
+        UInt256 shifted = divisor.shiftLeft(shift);
+        UInt256 quotient = ZERO;
+        for (int bit = shift; bit >= 0; bit--) {
+            if (remainder.compareTo(shifted) >= 0) {
+                remainder = remainder.subtract(shifted);
+                quotient = quotient.setBit(bit);
+            }
+            shifted = shifted.shiftRight(1);
+        }
+        return quotient;
+    }
+
+    private UInt256 setBit(final int bit) {
+        final long mask = 1L << (bit & 63);
+        switch (bit >>> 6) {
+            case 0:
+                return new UInt256(w3, w2, w1, w0 | mask);
+            case 1:
+                return new UInt256(w3, w2, w1 | mask, w0);
+            case 2:
+                return new UInt256(w3, w2 | mask, w1, w0);
+            default:
+                return new UInt256(w3 | mask, w2, w1, w0);
+        }
+    }
+
+    /**
+     * Get the amount of work represented by a block with this value as its
+     * target, that is 2^256 / (target + 1). Matches {@code Block.getWork()}.
+     * The target must not be zero, as the work would then be 2^256, which does
+     * not fit.
+     */
+    public UInt256 getWorkForTarget() {
+        // 2^256 doesn't fit, but 2^256 / (t + 1) == (~t / (t + 1)) + 1
+        if (equals(MAX_VALUE)) {
+            return ONE;
+        }
+        return not().divide(add(ONE)).add(ONE);
+    }
+
+    /**
+     * Test whether this value is at or below the given target, as a hash must
+     * be to meet the proof of work requirement.
+     */
+    public boolean isAtOrBelow(final UInt256 target) {
+        return compareTo(target) <= 0;
+    }
+
+    @Override
+    public int compareTo(final UInt256 other) {
+        if (w3 != other.w3) {
+            return Long.compareUnsigned(w3, other.w3);
+        } else if (w2 != other.w2) {
+            return Long.compareUnsigned(w2, other.w2);
+        } else if (w1 != other.w1) {
+            return Long.compareUnsigned(w1, other.w1);
+        } else {
+            return Long.compareUnsigned(w0, other.w0);
+        }
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        final UInt256 other = (UInt256) o;
+        return w3 == other.w3 && w2 == other.w2 && w1 == other.w1 && w0 == other.w0;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 1;
+        result = 31 * result + Long.hashCode(w3);
+        result = 31 * result + Long.hashCode(w2);
+        result = 31 * result + Long.hashCode(w1);
+        result = 31 * result + Long.hashCode(w0);
+        return result;
+    }
+
+    /**
+     * Format as 64 hex digits, matching {@link Utils#formatAsHash(BigInteger)}
+     * and {@link Sha256Hash#toString()}.
+     */
+    @Override
+    public String toString() {
+        return String.format("%016x%016x%016x%016x", w3, w2, w1, w0);
+    }
+
+    private static long readLongBE(final byte[] bytes, final int offset) {
+        long value = 0;
+        for (int byteIdx = 0; byteIdx < 8; byteIdx++) {
+            value = (value << 8) | (bytes[offset + byteIdx] & 0xffL);
+        }
+        return value;
+    }
+
+    private static long readLongLE(final byte[] bytes, final int offset) {
+        long value = 0;
+        for (int byteIdx = 7; byteIdx >= 0; byteIdx--) {
+            value = (value << 8) | (bytes[offset + byteIdx] & 0xffL);
+        }
+        return value;
+    }
+
+    private static void writeLongBE(final long value, final byte[] out, final int offset) {
+        for (int byteIdx = 0; byteIdx < 8; byteIdx++) {
+            out[offset + byteIdx] = (byte) (value >>> (56 - 8 * byteIdx));
+        }
+    }
+}
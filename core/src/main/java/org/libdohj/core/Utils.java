@@ -16,7 +16,6 @@
  */
 package org.libdohj.core;
 
-import com.lambdaworks.crypto.SCrypt;
 import org.bitcoinj.core.Sha256Hash;
 
 import java.math.BigInteger;
@@ -29,9 +28,11 @@ public class Utils {
     /**
      * Calculates the Scrypt hash of the given byte range.
      * The resulting hash is in small endian form.
+     *
+     * @see ScryptEngine
      */
     public static byte[] scryptDigest(byte[] input) throws GeneralSecurityException {
-        return SCrypt.scrypt(input, input, 1024, 1, 1, 32);
+        return ScryptEngine.scrypt(input);
     }
 
     public static String formatAsHash(final BigInteger value) {
@@ -31,6 +31,10 @@ import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.utils.MonetaryFormat;
 
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.annotation.Nullable;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,6 +46,10 @@ import org.bitcoinj.core.TransactionOutput;
 import org.bitcoinj.core.Utils;
 import org.libdohj.core.AltcoinSerializer;
 import org.libdohj.core.AuxPoWNetworkParameters;
+import org.libdohj.core.DifficultyHistory;
+import org.libdohj.core.PayloadBufferPool;
+import org.libdohj.core.ScryptHashCache;
+import org.libdohj.core.UInt256;
 
 /**
  * Common parameters for Dogecoin networks.
@@ -254,8 +262,20 @@ public abstract class AbstractDogecoinParams extends NetworkParameters implement
     @Override
     public void checkDifficultyTransitions(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore)
         throws VerificationException, BlockStoreException {
+        checkDifficultyTransitions(storedPrev, nextBlock, blockStore, null);
+    }
+
+    /**
+     * Check the difficulty target of the next block, reading earlier blocks
+     * from the given history of the chain where it holds them.
+     *
+     * @see #calculateNewDifficultyTarget(StoredBlock, Block, BlockStore, DifficultyHistory)
+     */
+    public void checkDifficultyTransitions(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore,
+            @Nullable DifficultyHistory difficultyHistory) throws VerificationException, BlockStoreException {
         try {
-            final long newTargetCompact = calculateNewDifficultyTarget(storedPrev, nextBlock, blockStore);
+            final long newTargetCompact = calculateNewDifficultyTarget(storedPrev, nextBlock, blockStore,
+                difficultyHistory);
             final long receivedTargetCompact = nextBlock.getDifficultyTarget();
 
             if (newTargetCompact != receivedTargetCompact)
@@ -278,6 +298,26 @@ System.out.println("higher target value than expected");
      */
     public long calculateNewDifficultyTarget(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore)
         throws VerificationException, BlockStoreException, CheckpointEncounteredException {
+        return calculateNewDifficultyTarget(storedPrev, nextBlock, blockStore, null);
+    }
+
+    /**
+     * Get the difficulty target expected for the next block, reading earlier
+     * blocks from the given history where it holds the previous block, and
+     * so its ancestors, and from the block store otherwise. The history
+     * belongs to the caller's chain, and is only read here; it must be kept
+     * up to date with that chain's best blocks, for example by a
+     * {@link org.libdohj.core.DifficultyHistoryUpdater}.
+     *
+     * @param difficultyHistory history of the chain the block is being
+     * added to, or null to read only from the block store.
+     * @throws CheckpointEncounteredException if a checkpoint is encountered while
+     * calculating difficulty target, and therefore no conclusive answer can
+     * be provided.
+     */
+    public long calculateNewDifficultyTarget(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore,
+            @Nullable DifficultyHistory difficultyHistory)
+        throws VerificationException, BlockStoreException, CheckpointEncounteredException {
         // Dogecoin: Special rules for minimum difficulty blocks with Digishield
         if (allowDigishieldMinDifficultyForBlock(storedPrev, nextBlock))
         {
@@ -287,6 +327,24 @@ System.out.println("higher target value than expected");
             return Utils.encodeCompactBits(this.getMaxTarget());
         }
 
+        // Earlier blocks are read from the history only if it holds the
+        // previous block, and so its ancestors; side chains use the store
+        if (difficultyHistory != null) {
+            synchronized (difficultyHistory) {
+                if (difficultyHistory.contains(storedPrev.getHeight(), storedPrev.getHeader().getHash())) {
+                    return calculateNewDifficultyTargetFrom(difficultyHistory, storedPrev, nextBlock, blockStore);
+                }
+            }
+        }
+        return calculateNewDifficultyTargetFrom(null, storedPrev, nextBlock, blockStore);
+    }
+
+    /**
+     * @param difficultyHistory history holding the previous block, or null.
+     */
+    private long calculateNewDifficultyTargetFrom(@Nullable final DifficultyHistory difficultyHistory,
+            final StoredBlock storedPrev, final Block nextBlock, final BlockStore blockStore)
+        throws VerificationException, BlockStoreException, CheckpointEncounteredException {
         final Block prev = storedPrev.getHeader();
         final int previousHeight = storedPrev.getHeight();
         final boolean digishieldAlgorithm = previousHeight + 1 >= this.getDigishieldBlockHeight();
@@ -304,18 +362,7 @@ System.out.println("higher target value than expected");
                     return Utils.encodeCompactBits(maxTarget);
                 } else {
                     // Return the last non-special-min-difficulty-rules-block
-                    StoredBlock cursor = storedPrev;
-
-                    while (cursor.getHeight() % retargetInterval != 0
-                            && cursor.getHeader().getDifficultyTarget() == Utils.encodeCompactBits(this.getMaxTarget())) {
-                        StoredBlock prevCursor = cursor.getPrev(blockStore);
-                        if (prevCursor == null) {
-                            break;
-                        }
-                        cursor = prevCursor;
-                    }
-
-                    return cursor.getHeader().getDifficultyTarget();
+                    return lastNonMinDifficultyTarget(difficultyHistory, storedPrev, retargetInterval, blockStore);
                 }
             }
 
@@ -323,13 +370,65 @@ System.out.println("higher target value than expected");
             return prev.getDifficultyTarget();
         }
 
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
-        StoredBlock cursor = storedPrev;
+        // We need to find a block far back in the chain. With Digishield
+        // this is the previous block, and is held in the history.
         int goBack = retargetInterval - 1;
-        if (cursor.getHeight()+1 != retargetInterval)
+        if (storedPrev.getHeight()+1 != retargetInterval)
             goBack = retargetInterval;
 
+        final long lastRetargetTime;
+        if (difficultyHistory != null && difficultyHistory.contains(previousHeight - goBack)) {
+            lastRetargetTime = difficultyHistory.getTimeSeconds(previousHeight - goBack);
+        } else {
+            lastRetargetTime = findBlockIntervalAgo(storedPrev, goBack, blockStore).getTimeSeconds();
+        }
+        return this.calculateNewDifficultyTargetInner(previousHeight, prev.getTimeSeconds(),
+            prev.getDifficultyTarget(), lastRetargetTime,
+            nextBlock.getDifficultyTarget());
+    }
+
+    /**
+     * Find the difficulty target of the last block which did not use the
+     * minimum difficulty rules, looking back no further than the last
+     * retarget. Answered from the difficulty history's index, if given,
+     * falling back to walking the block store if the history does not reach
+     * back far enough.
+     *
+     * @param difficultyHistory history holding the previous block, or null.
+     */
+    private long lastNonMinDifficultyTarget(@Nullable final DifficultyHistory difficultyHistory,
+            final StoredBlock storedPrev, final int retargetInterval, final BlockStore blockStore)
+            throws BlockStoreException {
+        if (difficultyHistory != null) {
+            final long indexedTarget = difficultyHistory.getLastNonMinDifficultyTarget(storedPrev.getHeight(),
+                retargetInterval);
+            if (indexedTarget >= 0) {
+                return indexedTarget;
+            }
+        }
+
+        final long maxTargetCompact = Utils.encodeCompactBits(this.getMaxTarget());
+        StoredBlock cursor = storedPrev;
+        while (cursor.getHeight() % retargetInterval != 0
+                && cursor.getHeader().getDifficultyTarget() == maxTargetCompact) {
+            StoredBlock prevCursor = cursor.getPrev(blockStore);
+            if (prevCursor == null) {
+                break;
+            }
+            cursor = prevCursor;
+        }
+
+        return cursor.getHeader().getDifficultyTarget();
+    }
+
+    /**
+     * Walk back through the block store to the block the given number of
+     * blocks before the previous one. Used where the difficulty history does
+     * not reach back far enough, such as after a deep reorganisation.
+     */
+    private Block findBlockIntervalAgo(final StoredBlock storedPrev, final int goBack, final BlockStore blockStore)
+        throws VerificationException, BlockStoreException, CheckpointEncounteredException {
+        StoredBlock cursor = storedPrev;
         for (int i = 0; i < goBack; i++) {
             if (cursor == null) {
                 // This should never happen. If it does, it means we are following an incorrect or busted chain.
@@ -345,10 +444,7 @@ System.out.println("higher target value than expected");
             throw new CheckpointEncounteredException();
         }
 
-        Block blockIntervalAgo = cursor.getHeader();
-        return this.calculateNewDifficultyTargetInner(previousHeight, prev.getTimeSeconds(),
-            prev.getDifficultyTarget(), blockIntervalAgo.getTimeSeconds(),
-            nextBlock.getDifficultyTarget());
+        return cursor.getHeader();
     }
 
     /**
@@ -396,12 +492,9 @@ System.out.println("higher target value than expected");
         // Limit the adjustment step.
         if (digishieldAlgorithm)
         {
-            // Round towards zero to match the C++ implementation.
-            if (actualTime < retargetTimespan) {
-                actualTime = (int)Math.ceil(retargetTimespan + (actualTime - retargetTimespan) / 8.0);
-            } else {
-                actualTime = (int)Math.floor(retargetTimespan + (actualTime - retargetTimespan) / 8.0);
-            }
+            // Round towards zero to match the C++ implementation, which is
+            // what integer division does.
+            actualTime = retargetTimespan + (actualTime - retargetTimespan) / 8;
             minTimespan = retargetTimespan - (retargetTimespan / 4);
             maxTimespan = retargetTimespan + (retargetTimespan / 2);
         }
@@ -422,6 +515,83 @@ System.out.println("higher target value than expected");
         }
         actualTime = Math.min(maxTimespan, Math.max(minTimespan, actualTime));
 
+        return scaleDifficultyTarget(lastDifficultyTarget, actualTime, retargetTimespan, nextDifficultyTarget);
+    }
+
+    /**
+     * Scale a compact difficulty target by {@code actualTime / retargetTimespan},
+     * limit it to the maximum target, and reduce it to the precision of the
+     * next block's target.
+     *
+     * <p>Works on the mantissa and exponent of the compact form in long
+     * arithmetic, which is exact, and only falls back to {@link BigInteger}
+     * for inputs where that cannot be guaranteed: targets which may reach the
+     * maximum, exponents below 3 and other unusual encodings.</p>
+     *
+     * @param lastDifficultyTarget compact target to scale.
+     * @param actualTime the time the last interval actually took, after
+     * damping and limits; must be positive.
+     * @param retargetTimespan the time the interval should take.
+     * @param nextDifficultyTarget the compact target of the next block,
+     * which sets the precision of the result.
+     * @return new compact target.
+     */
+    protected long scaleDifficultyTarget(final long lastDifficultyTarget, final int actualTime,
+            final int retargetTimespan, final long nextDifficultyTarget) {
+        final long mantissa = lastDifficultyTarget & 0x007fffffL;
+        final int exponent = (int) (lastDifficultyTarget >>> 24) & 0xff;
+        final int accuracyBytes = (int) (nextDifficultyTarget >>> 24) - 3;
+        if (exponent < 3 || mantissa == 0 || (lastDifficultyTarget & 0x00800000L) != 0
+                || accuracyBytes < 0 || actualTime <= 0 || retargetTimespan <= 0) {
+            return scaleDifficultyTargetSlow(lastDifficultyTarget, actualTime, retargetTimespan, nextDifficultyTarget);
+        }
+
+        // New target is floor(mantissa * actualTime * 2^targetShift / retargetTimespan)
+        final long product = mantissa * actualTime;
+        final int targetShift = (exponent - 3) * 8;
+        final int productBits = Long.SIZE - Long.numberOfLeadingZeros(product);
+        final int timespanBits = Integer.SIZE - Integer.numberOfLeadingZeros(retargetTimespan);
+        if (productBits + targetShift - timespanBits + 1 >= this.getMaxTarget().bitLength()) {
+            // Might reach the maximum target
+            return scaleDifficultyTargetSlow(lastDifficultyTarget, actualTime, retargetTimespan, nextDifficultyTarget);
+        }
+
+        // Only the three bytes from accuracyShift upwards are kept, so divide
+        // straight down to them
+        final int accuracyShift = accuracyBytes * 8;
+        final int shift = targetShift - accuracyShift;
+        final long window;
+        if (shift >= 0) {
+            if (shift >= Long.numberOfLeadingZeros(product)) {
+                return scaleDifficultyTargetSlow(lastDifficultyTarget, actualTime, retargetTimespan, nextDifficultyTarget);
+            }
+            window = ((product << shift) / retargetTimespan) & 0xFFFFFFL;
+        } else if (-shift < Long.numberOfLeadingZeros(retargetTimespan)) {
+            window = (product / ((long) retargetTimespan << -shift)) & 0xFFFFFFL;
+        } else {
+            // Divisor exceeds the product
+            window = 0;
+        }
+
+        // Encode window * 2^accuracyShift as Utils.encodeCompactBits() does,
+        // whose size includes a byte for the sign bit
+        final int valueBits = window == 0 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(window) + accuracyShift;
+        int size = valueBits / 8 + 1;
+        final int mantissaShift = (size - 3) * 8 - accuracyShift;
+        long result = mantissaShift >= 0 ? window >>> mantissaShift : window << -mantissaShift;
+        if ((result & 0x00800000L) != 0) {
+            result >>= 8;
+            size++;
+        }
+        return result | ((long) size << 24);
+    }
+
+    /**
+     * Arbitrary precision equivalent of {@link #scaleDifficultyTarget(long, int, int, long)}.
+     */
+    @VisibleForTesting
+    long scaleDifficultyTargetSlow(final long lastDifficultyTarget, final int actualTime,
+            final int retargetTimespan, final long nextDifficultyTarget) {
         BigInteger newTarget = Utils.decodeCompactBits(lastDifficultyTarget);
         newTarget = newTarget.multiply(BigInteger.valueOf(actualTime));
         newTarget = newTarget.divide(BigInteger.valueOf(retargetTimespan));
@@ -459,11 +629,26 @@ System.out.println("higher target value than expected");
     public abstract boolean allowMinDifficultyBlocks();
 
     /**
-     * Get the hash to use for a block.
+     * Get the hash to use for a block. Hashes which meet the block's own
+     * difficulty target are recorded as verified in the Scrypt hash cache, so
+     * a persistent index attached to it can skip them after a restart.
      */
     @Override
     public BigInteger getBlockDifficulty(Block block) {
-        return ((AltcoinBlock) block).getScryptHash().toBigInteger();
+        return getBlockDifficultyAsUInt256(block).toBigInteger();
+    }
+
+    @Override
+    public UInt256 getBlockDifficultyAsUInt256(Block block) {
+        final Sha256Hash scryptHash = ((AltcoinBlock) block).getScryptHash();
+        final UInt256 hashVal = UInt256.fromHash(scryptHash);
+        final ScryptHashCache cache = ScryptHashCache.getDefault();
+        if (cache.getPersistentIndex() != null
+                && UInt256.isValidCompactBits(block.getDifficultyTarget())
+                && hashVal.isAtOrBelow(UInt256.fromCompactBits(block.getDifficultyTarget()))) {
+            cache.markVerified(block.getHash(), scryptHash);
+        }
+        return hashVal;
     }
 
     @Override
@@ -471,6 +656,16 @@ System.out.println("higher target value than expected");
         return new AltcoinSerializer(this, parseRetain);
     }
 
+    /**
+     * Get a serializer which, in parse-retain mode, reads block payloads into
+     * buffers from the given pool.
+     *
+     * @see AltcoinSerializer#AltcoinSerializer(NetworkParameters, boolean, boolean, PayloadBufferPool)
+     */
+    public AltcoinSerializer getSerializer(boolean parseRetain, PayloadBufferPool payloadPool) {
+        return new AltcoinSerializer(this, parseRetain, false, payloadPool);
+    }
+
     @Override
     public int getProtocolVersionNum(final ProtocolVersion version) {
         switch (version) {
@@ -509,7 +704,12 @@ System.out.println("higher target value than expected");
         return retargetTimespan / retargetInterval;
     }
 
-    private static class CheckpointEncounteredException extends Exception {
+    /**
+     * Thrown when calculating a difficulty target needs a block from before
+     * the checkpoint the block store started from, so no conclusive answer
+     * can be given.
+     */
+    public static class CheckpointEncounteredException extends Exception {
 
         private CheckpointEncounteredException() {
         }
@@ -21,7 +21,9 @@ import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.VerificationException;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
+import org.libdohj.core.DifficultyHistory;
 
+import javax.annotation.Nullable;
 import java.math.BigInteger;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -88,8 +90,8 @@ public class DogecoinRegTestParams extends DogecoinTestNet3Params {
 
     @Override
     /** the testnet rules don't work for regtest, where difficulty stays the same */
-    public long calculateNewDifficultyTarget(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore)
-            throws VerificationException, BlockStoreException {
+    public long calculateNewDifficultyTarget(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore,
+            @Nullable DifficultyHistory difficultyHistory) throws VerificationException, BlockStoreException {
         final Block prev = storedPrev.getHeader();
         return prev.getDifficultyTarget();
     }
@@ -0,0 +1,663 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.store;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.MessageSerializer;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Block store for chains with variable length (AuxPoW) headers, which the
+ * bitcoinj {@code SPVBlockStore} cannot hold as it assumes every header is 80
+ * bytes. Headers are kept in memory mapped files in a directory, so neither
+ * lookups nor the store's footprint on the heap grow with the headers' size.
+ *
+ * <p>The store is made of three parts:</p>
+ * <ul>
+ * <li>an append only data file of records, each holding a block's height,
+ * chain work, hash and serialized header (including any AuxPoW header),
+ * whether its AuxPoW header was verified, and a {@link RecordChecksum} of
+ * the whole record. Every block put is kept, whichever chain it is on;</li>
+ * <li>a height index file of fixed size entries, one per height of the best
+ * chain, holding the offset of the block's record, its chain work and its
+ * hash. It is rewritten back to the fork point whenever the chain head
+ * changes;</li>
+ * <li>an in-memory {@link HashSlotTable} from block hash to record, which
+ * holds only record offsets, and is rebuilt from the data file on open.</li>
+ * </ul>
+ *
+ * <p>Both lookup by hash and lookup by height on the best chain take constant
+ * time. Records are written in place through the mapping.</p>
+ */
+public class AuxPoWBlockStore implements BlockStore {
+    private static final Logger log = LoggerFactory.getLogger(AuxPoWBlockStore.class);
+
+    /** Name of the data file within the store's directory. */
+    public static final String DATA_FILE_NAME = "headers.dat";
+    /** Name of the height index file within the store's directory. */
+    public static final String HEIGHTS_FILE_NAME = "heights.idx";
+
+    /** Largest serialized header, including any AuxPoW header, accepted. */
+    public static final int MAX_HEADER_SIZE = 1024 * 1024;
+
+    private static final byte[] DATA_MAGIC = {'U', 'H', 'd', 'r'};
+    private static final byte[] HEIGHTS_MAGIC = {'U', 'H', 'i', 'x'};
+    private static final int FILE_VERSION = 2;
+    static final int FILE_HEADER_SIZE = 16;
+
+    /**
+     * The data file is mapped in chunks of this size, as a single mapping
+     * cannot exceed 2GB. Records never straddle chunks.
+     */
+    static final int CHUNK_SIZE = 64 * 1024 * 1024;
+    /** Marks the unused end of a chunk, in place of a record length. */
+    private static final int END_OF_CHUNK = -1;
+
+    private static final int RECORD_HEIGHT_OFFSET = 4;
+    private static final int RECORD_FLAGS_OFFSET = 8;
+    private static final int RECORD_CHAIN_WORK_OFFSET = 12;
+    private static final int RECORD_HASH_OFFSET = RECORD_CHAIN_WORK_OFFSET + StoredBlock.CHAIN_WORK_BYTES;
+    private static final int RECORD_HEADER_OFFSET = RECORD_HASH_OFFSET + Sha256Hash.LENGTH;
+    /** Record flag set if the header's AuxPoW header was verified, which compact headers rely on. */
+    private static final int FLAG_AUXPOW_VERIFIED = 1;
+    /** Records are aligned so the lookup table can hold offsets divided by this. */
+    private static final int RECORD_ALIGNMENT = 8;
+
+    private static final int ENTRY_CHAIN_WORK_OFFSET = 8;
+    private static final int ENTRY_HASH_OFFSET = ENTRY_CHAIN_WORK_OFFSET + StoredBlock.CHAIN_WORK_BYTES;
+    static final int HEIGHT_ENTRY_SIZE = ENTRY_HASH_OFFSET + Sha256Hash.LENGTH;
+    private static final int CHAIN_HEAD_HEIGHT_OFFSET = 8;
+    private static final int INITIAL_HEIGHT_CAPACITY = 65536;
+
+    private static final byte[] EMPTY_CHAIN_WORK = new byte[StoredBlock.CHAIN_WORK_BYTES];
+
+    private final NetworkParameters params;
+    private final MessageSerializer serializer;
+    private final File dataFile;
+    private final File heightsFile;
+
+    private RandomAccessFile dataRandomAccessFile;
+    private FileChannel dataChannel;
+    private final List<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+    /** Offset in the data file at which the next record is written. */
+    private long dataEnd;
+    private int recordCount;
+
+    private RandomAccessFile heightsRandomAccessFile;
+    private FileChannel heightsChannel;
+    private MappedByteBuffer heights;
+    private int heightCapacity;
+    private int chainHeadHeight;
+    @Nullable
+    private StoredBlock chainHead;
+
+    /** Record offset / alignment + 1 for each slot, or 0 for an empty slot. */
+    @Nullable private HashSlotTable table;
+    private final HashSlotTable.Records records = new HashSlotTable.Records() {
+        @Override
+        public int slotKey(final int record) {
+            final long offset = offsetOf(record);
+            return chunkFor(offset).getInt(positionFor(offset) + RECORD_HASH_OFFSET + Sha256Hash.LENGTH - 4);
+        }
+
+        @Override
+        public boolean holds(final int record, final byte[] hashBytes) {
+            return recordHashMatches(offsetOf(record), hashBytes);
+        }
+    };
+
+    private final RecordChecksum checksum = new RecordChecksum();
+    private final byte[] hashScratch = new byte[Sha256Hash.LENGTH];
+
+    /**
+     * Open the store in the given directory, creating it with just the
+     * genesis block if it does not exist.
+     *
+     * @throws BlockStoreException if the files cannot be opened, or are not
+     * store files.
+     */
+    public AuxPoWBlockStore(final NetworkParameters params, final File directory) throws BlockStoreException {
+        this.params = params;
+        this.serializer = params.getDefaultSerializer();
+        this.dataFile = new File(directory, DATA_FILE_NAME);
+        this.heightsFile = new File(directory, HEIGHTS_FILE_NAME);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new BlockStoreException("Could not create directory " + directory);
+        }
+        try {
+            openData();
+            openHeights();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+
+        if (recordCount == 0) {
+            try {
+                final Block genesis = params.getGenesisBlock().cloneAsHeader();
+                final StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+                put(storedGenesis);
+                setChainHead(storedGenesis);
+                flush();
+            } catch (VerificationException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+        } else if (chainHeadHeight < 0) {
+            close();
+            throw new BlockStoreException("No valid chain head in " + heightsFile);
+        }
+    }
+
+    private void openData() throws IOException, BlockStoreException {
+        final boolean exists = dataFile.exists() && dataFile.length() >= FILE_HEADER_SIZE;
+        dataRandomAccessFile = new RandomAccessFile(dataFile, "rw");
+        dataChannel = dataRandomAccessFile.getChannel();
+        final long chunkCount = Math.max(1, (dataRandomAccessFile.length() + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        for (int chunkIdx = 0; chunkIdx < chunkCount; chunkIdx++) {
+            mapChunk(chunkIdx);
+        }
+
+        final MappedByteBuffer first = chunks.get(0);
+        if (exists) {
+            final byte[] magic = new byte[DATA_MAGIC.length];
+            first.position(0);
+            first.get(magic);
+            if (!Arrays.equals(magic, DATA_MAGIC) || first.getInt() != FILE_VERSION) {
+                close();
+                throw new BlockStoreException("File is not a header store: " + dataFile);
+            }
+            loadRecords();
+        } else {
+            first.position(0);
+            first.put(DATA_MAGIC);
+            first.putInt(FILE_VERSION);
+            dataEnd = FILE_HEADER_SIZE;
+            recordCount = 0;
+            table = new HashSlotTable(0, records);
+        }
+    }
+
+    private void mapChunk(final int chunkIdx) throws IOException {
+        final long chunkEnd = (long) (chunkIdx + 1) * CHUNK_SIZE;
+        if (dataRandomAccessFile.length() < chunkEnd) {
+            dataRandomAccessFile.setLength(chunkEnd);
+        }
+        chunks.add(dataChannel.map(FileChannel.MapMode.READ_WRITE, (long) chunkIdx * CHUNK_SIZE, CHUNK_SIZE));
+    }
+
+    /**
+     * Scan the records in the data file, stopping at the first empty or
+     * corrupt record, and build the lookup table.
+     */
+    private void loadRecords() {
+        table = new HashSlotTable(0, records);
+        recordCount = 0;
+        long offset = FILE_HEADER_SIZE;
+        while (offset / CHUNK_SIZE < chunks.size()) {
+            final MappedByteBuffer chunk = chunks.get((int) (offset / CHUNK_SIZE));
+            final int position = (int) (offset % CHUNK_SIZE);
+            final int headerLength = chunk.getInt(position);
+            if (headerLength == END_OF_CHUNK) {
+                offset = offset - position + CHUNK_SIZE;
+                continue;
+            }
+            if (headerLength < Block.HEADER_SIZE || headerLength > MAX_HEADER_SIZE
+                    || position + recordSize(headerLength) > CHUNK_SIZE
+                    || !checksum.matches(chunk, position, RECORD_HEADER_OFFSET + headerLength)) {
+                break;
+            }
+            table.add(recordAt(offset), records.slotKey(recordAt(offset)));
+            recordCount++;
+            offset += recordSize(headerLength);
+        }
+        dataEnd = offset;
+        log.info("Loaded {} headers from {}", recordCount, dataFile);
+    }
+
+    private void openHeights() throws IOException, BlockStoreException {
+        final boolean exists = heightsFile.exists() && heightsFile.length() >= FILE_HEADER_SIZE;
+        heightsRandomAccessFile = new RandomAccessFile(heightsFile, "rw");
+        heightsChannel = heightsRandomAccessFile.getChannel();
+        if (exists) {
+            heightCapacity = Math.max(INITIAL_HEIGHT_CAPACITY,
+                (int) ((heightsRandomAccessFile.length() - FILE_HEADER_SIZE) / HEIGHT_ENTRY_SIZE));
+        } else {
+            heightCapacity = INITIAL_HEIGHT_CAPACITY;
+        }
+        mapHeights();
+
+        if (exists) {
+            final byte[] magic = new byte[HEIGHTS_MAGIC.length];
+            heights.position(0);
+            heights.get(magic);
+            if (!Arrays.equals(magic, HEIGHTS_MAGIC) || heights.getInt() != FILE_VERSION) {
+                close();
+                throw new BlockStoreException("File is not a header height index: " + heightsFile);
+            }
+            chainHeadHeight = Math.min(heights.getInt(CHAIN_HEAD_HEIGHT_OFFSET), heightCapacity - 1);
+            // Entries may have reached disk ahead of the records they point
+            // to; fall back to the highest entry whose record survived
+            while (chainHeadHeight >= 0 && !isValidEntry(chainHeadHeight)) {
+                chainHeadHeight--;
+            }
+        } else {
+            heights.position(0);
+            heights.put(HEIGHTS_MAGIC);
+            heights.putInt(FILE_VERSION);
+            chainHeadHeight = -1;
+        }
+        heights.putInt(CHAIN_HEAD_HEIGHT_OFFSET, chainHeadHeight);
+    }
+
+    private void mapHeights() throws IOException {
+        final long size = FILE_HEADER_SIZE + (long) heightCapacity * HEIGHT_ENTRY_SIZE;
+        if (heightsRandomAccessFile.length() < size) {
+            heightsRandomAccessFile.setLength(size);
+        }
+        heights = heightsChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private boolean isValidEntry(final int height) {
+        final long offset = heights.getLong(entryOffset(height));
+        if (offset < FILE_HEADER_SIZE || offset >= dataEnd || offset % RECORD_ALIGNMENT != 0) {
+            return false;
+        }
+        readBytes(heights, entryOffset(height) + ENTRY_HASH_OFFSET, hashScratch);
+        return recordHashMatches(offset, hashScratch);
+    }
+
+    @Override
+    public synchronized void put(final StoredBlock block) throws BlockStoreException {
+        checkOpen();
+        final Sha256Hash hash = block.getHeader().getHash();
+        final byte[] hashBytes = hash.getBytes();
+        if (find(hashBytes) >= 0) {
+            return;
+        }
+        final Block blockHeader = block.getHeader().cloneAsHeader();
+        final byte[] header = blockHeader.bitcoinSerialize();
+        final int flags = blockHeader instanceof AltcoinBlock && ((AltcoinBlock) blockHeader).isAuxPoWVerified()
+            ? FLAG_AUXPOW_VERIFIED : 0;
+        if (header.length > MAX_HEADER_SIZE) {
+            throw new BlockStoreException("Header of block " + hash + " is " + header.length
+                + " bytes, larger than the maximum of " + MAX_HEADER_SIZE);
+        }
+
+        final int size = recordSize(header.length);
+        long offset = dataEnd;
+        if (offset % CHUNK_SIZE + size > CHUNK_SIZE) {
+            chunks.get((int) (offset / CHUNK_SIZE)).putInt((int) (offset % CHUNK_SIZE), END_OF_CHUNK);
+            offset = offset - offset % CHUNK_SIZE + CHUNK_SIZE;
+        }
+        if (offset / RECORD_ALIGNMENT >= Integer.MAX_VALUE) {
+            throw new BlockStoreException("Header store is full: " + dataFile);
+        }
+        try {
+            while (offset / CHUNK_SIZE >= chunks.size()) {
+                mapChunk(chunks.size());
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+
+        final MappedByteBuffer chunk = chunks.get((int) (offset / CHUNK_SIZE));
+        final int position = (int) (offset % CHUNK_SIZE);
+        final ByteBuffer record = chunk.duplicate();
+        record.position(position);
+        record.putInt(header.length);
+        record.putInt(block.getHeight());
+        record.putInt(flags);
+        putChainWork(record, block.getChainWork());
+        record.put(hashBytes);
+        record.put(header);
+        checksum.put(chunk, position, RECORD_HEADER_OFFSET + header.length);
+
+        table.add(recordAt(offset), HashSlotTable.slotKey(hashBytes));
+        recordCount++;
+        dataEnd = offset + size;
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(final Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        final long offset = find(hash.getBytes());
+        return offset < 0 ? null : readRecord(offset);
+    }
+
+    /**
+     * Get the block at the given height on the best chain.
+     *
+     * @return the block, or null if the height is above the chain head, or
+     * below the block the store started from.
+     */
+    @Nullable
+    public synchronized StoredBlock get(final int height) throws BlockStoreException {
+        checkOpen();
+        final long offset = recordAtHeight(height);
+        return offset < 0 ? null : readRecord(offset);
+    }
+
+    /**
+     * Get the hash of the block at the given height on the best chain,
+     * without reading its header.
+     *
+     * @return the hash, or null if there is no block at that height.
+     */
+    @Nullable
+    public synchronized Sha256Hash getHash(final int height) throws BlockStoreException {
+        checkOpen();
+        if (recordAtHeight(height) < 0) {
+            return null;
+        }
+        final byte[] hashBytes = new byte[Sha256Hash.LENGTH];
+        readBytes(heights, entryOffset(height) + ENTRY_HASH_OFFSET, hashBytes);
+        return Sha256Hash.wrap(hashBytes);
+    }
+
+    /**
+     * Get the total work of the best chain up to the given height, without
+     * reading the block's header.
+     *
+     * @return the chain work, or null if there is no block at that height.
+     */
+    @Nullable
+    public synchronized BigInteger getChainWork(final int height) throws BlockStoreException {
+        checkOpen();
+        if (recordAtHeight(height) < 0) {
+            return null;
+        }
+        final byte[] chainWork = new byte[StoredBlock.CHAIN_WORK_BYTES];
+        readBytes(heights, entryOffset(height) + ENTRY_CHAIN_WORK_OFFSET, chainWork);
+        return new BigInteger(1, chainWork);
+    }
+
+    /**
+     * Get the height of the block with the given hash, whether or not it is
+     * on the best chain, without reading its header.
+     *
+     * @return the height, or -1 if the block is not in the store.
+     */
+    public synchronized int getHeight(final Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        final long offset = find(hash.getBytes());
+        return offset < 0 ? -1 : chunkFor(offset).getInt(positionFor(offset) + RECORD_HEIGHT_OFFSET);
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        if (chainHead == null) {
+            chainHead = get(chainHeadHeight);
+        }
+        return chainHead;
+    }
+
+    /**
+     * Set the chain head, which must already have been put in the store,
+     * and rewrite the height index back to where the new best chain meets
+     * the old one.
+     */
+    @Override
+    public synchronized void setChainHead(final StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        long offset = find(chainHead.getHeader().getHash().getBytes());
+        if (offset < 0) {
+            throw new BlockStoreException("Chain head " + chainHead.getHeader().getHash() + " is not in the store");
+        }
+        ensureHeightCapacity(chainHead.getHeight());
+        final byte[] prevHashBytes = new byte[Sha256Hash.LENGTH];
+        for (int height = chainHead.getHeight(); height >= 0; height--) {
+            final int entryOffset = entryOffset(height);
+            if (height <= chainHeadHeight && heights.getLong(entryOffset) == offset) {
+                // Joined the old best chain, which is indexed from here down
+                break;
+            }
+            final MappedByteBuffer chunk = chunkFor(offset);
+            final int position = positionFor(offset);
+            heights.putLong(entryOffset, offset);
+            copyBytes(chunk, position + RECORD_CHAIN_WORK_OFFSET, heights, entryOffset + ENTRY_CHAIN_WORK_OFFSET,
+                StoredBlock.CHAIN_WORK_BYTES + Sha256Hash.LENGTH);
+            if (height == 0) {
+                break;
+            }
+
+            // Previous block hash is held in wire (little endian) order
+            readBytes(chunk, position + RECORD_HEADER_OFFSET + 4, prevHashBytes);
+            reverse(prevHashBytes);
+            offset = find(prevHashBytes);
+            if (offset < 0) {
+                // Reached the block the store started from, such as a checkpoint
+                break;
+            }
+        }
+        this.chainHeadHeight = chainHead.getHeight();
+        heights.putInt(CHAIN_HEAD_HEIGHT_OFFSET, chainHeadHeight);
+        this.chainHead = chainHead;
+    }
+
+    /**
+     * Get the number of blocks in the store, on any chain.
+     */
+    public synchronized int size() {
+        return recordCount;
+    }
+
+    /**
+     * Force any records and index entries written to disk.
+     */
+    public synchronized void flush() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+        heights.force();
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        try {
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+            chunks.clear();
+            if (heights != null) {
+                heights.force();
+                heights = null;
+            }
+            if (dataChannel != null) {
+                dataChannel.close();
+                dataRandomAccessFile.close();
+                dataChannel = null;
+            }
+            if (heightsChannel != null) {
+                heightsChannel.close();
+                heightsRandomAccessFile.close();
+                heightsChannel = null;
+            }
+            table = null;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (table == null) {
+            throw new BlockStoreException("Store closed");
+        }
+    }
+
+    /**
+     * Get the offset of the record of the block at the given height on the
+     * best chain, or -1 if there is none.
+     */
+    private long recordAtHeight(final int height) {
+        if (height < 0 || height > chainHeadHeight) {
+            return -1;
+        }
+        final long offset = heights.getLong(entryOffset(height));
+        // Heights below a checkpoint the store started from are never written
+        return offset < FILE_HEADER_SIZE ? -1 : offset;
+    }
+
+    private StoredBlock readRecord(final long offset) throws BlockStoreException {
+        final MappedByteBuffer chunk = chunkFor(offset);
+        final int position = positionFor(offset);
+        final byte[] header = new byte[chunk.getInt(position)];
+        final byte[] chainWork = new byte[StoredBlock.CHAIN_WORK_BYTES];
+        readBytes(chunk, position + RECORD_CHAIN_WORK_OFFSET, chainWork);
+        readBytes(chunk, position + RECORD_HEADER_OFFSET, header);
+        try {
+            final Block block = serializer.makeBlock(header, 0, header.length);
+            if ((chunk.getInt(position + RECORD_FLAGS_OFFSET) & FLAG_AUXPOW_VERIFIED) != 0
+                    && block instanceof AltcoinBlock && ((AltcoinBlock) block).isCompactHeader()) {
+                ((AltcoinBlock) block).markAuxPoWVerified();
+            }
+            return new StoredBlock(block, new BigInteger(1, chainWork), chunk.getInt(position + RECORD_HEIGHT_OFFSET));
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void ensureHeightCapacity(final int height) throws BlockStoreException {
+        if (height < heightCapacity) {
+            return;
+        }
+        heights.force();
+        final int oldCapacity = heightCapacity;
+        while (heightCapacity <= height) {
+            heightCapacity *= 2;
+        }
+        try {
+            mapHeights();
+        } catch (IOException e) {
+            heightCapacity = oldCapacity;
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Find the record for the given hash.
+     *
+     * @return the record offset, or -1 if not found.
+     */
+    private long find(final byte[] hashBytes) {
+        final int record = table.find(hashBytes);
+        return record < 0 ? -1 : offsetOf(record);
+    }
+
+    private boolean recordHashMatches(final long offset, final byte[] hashBytes) {
+        final MappedByteBuffer chunk = chunkFor(offset);
+        final int hashOffset = positionFor(offset) + RECORD_HASH_OFFSET;
+        for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+            if (chunk.get(hashOffset + byteIdx) != hashBytes[byteIdx]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int recordAt(final long offset) {
+        return (int) (offset / RECORD_ALIGNMENT);
+    }
+
+    private static long offsetOf(final int record) {
+        return (long) record * RECORD_ALIGNMENT;
+    }
+
+    private static void putChainWork(final ByteBuffer buffer, final BigInteger chainWork) throws BlockStoreException {
+        final byte[] chainWorkBytes = chainWork.toByteArray();
+        if (chainWorkBytes.length > StoredBlock.CHAIN_WORK_BYTES) {
+            throw new BlockStoreException("Ran out of space to store chain work");
+        }
+        buffer.put(EMPTY_CHAIN_WORK, 0, StoredBlock.CHAIN_WORK_BYTES - chainWorkBytes.length);
+        buffer.put(chainWorkBytes);
+    }
+
+    private MappedByteBuffer chunkFor(final long offset) {
+        return chunks.get((int) (offset / CHUNK_SIZE));
+    }
+
+    private static int positionFor(final long offset) {
+        return (int) (offset % CHUNK_SIZE);
+    }
+
+    private static void readBytes(final ByteBuffer buffer, final int position, final byte[] out) {
+        final ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(out);
+    }
+
+    private static void copyBytes(final ByteBuffer from, final int fromPosition, final ByteBuffer to,
+                                  final int toPosition, final int length) {
+        final ByteBuffer source = from.duplicate();
+        source.position(fromPosition);
+        source.limit(fromPosition + length);
+        final ByteBuffer target = to.duplicate();
+        target.position(toPosition);
+        target.put(source);
+    }
+
+    private static void reverse(final byte[] bytes) {
+        for (int lo = 0, hi = bytes.length - 1; lo < hi; lo++, hi--) {
+            final byte tmp = bytes[lo];
+            bytes[lo] = bytes[hi];
+            bytes[hi] = tmp;
+        }
+    }
+
+    /**
+     * Size of a record holding a header of the given length, including
+     * padding to the record alignment.
+     */
+    private static int recordSize(final int headerLength) {
+        final int size = RECORD_HEADER_OFFSET + headerLength + RecordChecksum.SIZE;
+        return (size + RECORD_ALIGNMENT - 1) & -RECORD_ALIGNMENT;
+    }
+
+    private static int entryOffset(final int height) {
+        return FILE_HEADER_SIZE + height * HEIGHT_ENTRY_SIZE;
+    }
+
+    @Override
+    public String toString() {
+        return "Header store of " + recordCount + " headers, chain head at height " + chainHeadHeight;
+    }
+}
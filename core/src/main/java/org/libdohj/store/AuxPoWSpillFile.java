@@ -0,0 +1,278 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.store.BlockStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Append only file of the serialized AuxPoW headers dropped from compact
+ * headers, keyed by block hash, so they can still be served to peers which
+ * ask for full headers. See {@link CompactBlockStore}.
+ *
+ * <p>The file is a short header followed by records of block hash, AuxPoW
+ * length, AuxPoW bytes and a {@link RecordChecksum} of all three. Lookups
+ * use a {@link HashSlotTable} of record numbers, along with the offset and
+ * slot key of each record, so the AuxPoW headers themselves stay on
+ * disk.</p>
+ */
+public class AuxPoWSpillFile {
+    private static final Logger log = LoggerFactory.getLogger(AuxPoWSpillFile.class);
+
+    private static final byte[] FILE_MAGIC = {'U', 'A', 'u', 'x'};
+    private static final int FILE_VERSION = 1;
+    static final int FILE_HEADER_SIZE = 16;
+    private static final int RECORD_PREFIX_SIZE = Sha256Hash.LENGTH + 4;
+    /** Largest AuxPoW header accepted, which also bounds torn lengths read back. */
+    public static final int MAX_AUXPOW_SIZE = 1024 * 1024;
+
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    /** Offset at which the next record is written. */
+    private long end;
+    private int recordCount;
+
+    private final HashSlotTable table;
+    /** Offset of each record. */
+    private long[] recordOffsets;
+    /** Slot key of the hash in each record, to skip most mismatches without a read. */
+    private int[] recordKeys;
+    private final HashSlotTable.Records records = new HashSlotTable.Records() {
+        @Override
+        public int slotKey(final int recordIdx) {
+            return recordKeys[recordIdx];
+        }
+
+        @Override
+        public boolean holds(final int recordIdx, final byte[] hashBytes) {
+            if (recordKeys[recordIdx] != HashSlotTable.slotKey(hashBytes)) {
+                return false;
+            }
+            try {
+                prefix.clear();
+                readFully(prefix, recordOffsets[recordIdx]);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+                if (prefix.get(byteIdx) != hashBytes[byteIdx]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    };
+
+    private final RecordChecksum checksum = new RecordChecksum();
+    private final ByteBuffer prefix = ByteBuffer.allocate(RECORD_PREFIX_SIZE);
+
+    /**
+     * Open the spill file, creating it if it does not exist.
+     *
+     * @throws BlockStoreException if the file cannot be opened, or is not a
+     * spill file.
+     */
+    public AuxPoWSpillFile(final File file) throws BlockStoreException {
+        this.file = file;
+        this.table = new HashSlotTable(0, records);
+        this.recordOffsets = new long[1024];
+        this.recordKeys = new int[recordOffsets.length];
+        try {
+            final boolean exists = file.exists() && file.length() >= FILE_HEADER_SIZE;
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+            if (exists) {
+                final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+                readFully(header, 0);
+                final byte[] magic = new byte[FILE_MAGIC.length];
+                header.get(magic);
+                if (!Arrays.equals(magic, FILE_MAGIC) || header.getInt() != FILE_VERSION) {
+                    close();
+                    throw new BlockStoreException("File is not an AuxPoW spill file: " + file);
+                }
+                loadRecords();
+            } else {
+                final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+                header.put(FILE_MAGIC);
+                header.putInt(FILE_VERSION);
+                header.position(0);
+                channel.write(header, 0);
+                end = FILE_HEADER_SIZE;
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Scan the records in the file, stopping at the first truncated or
+     * corrupt record, and build the lookup table.
+     */
+    private void loadRecords() throws IOException {
+        final long length = channel.size();
+        long offset = FILE_HEADER_SIZE;
+        while (offset + RECORD_PREFIX_SIZE + RecordChecksum.SIZE <= length) {
+            prefix.clear();
+            readFully(prefix, offset);
+            final int auxpowLength = prefix.getInt(Sha256Hash.LENGTH);
+            if (auxpowLength <= 0 || auxpowLength > MAX_AUXPOW_SIZE
+                    || offset + recordSize(auxpowLength) > length) {
+                break;
+            }
+            final ByteBuffer record = ByteBuffer.allocate(recordSize(auxpowLength));
+            readFully(record, offset);
+            if (!checksum.matches(record, 0, RECORD_PREFIX_SIZE + auxpowLength)) {
+                break;
+            }
+            addRecord(offset, HashSlotTable.slotKey(record.array()));
+            offset += record.capacity();
+        }
+        end = offset;
+        log.info("Loaded {} AuxPoW headers from {}", recordCount, file);
+    }
+
+    /**
+     * Get the serialized AuxPoW header of the block with the given hash.
+     *
+     * @return the AuxPoW header, or null if the block is not in the file.
+     */
+    @Nullable
+    public synchronized byte[] get(final Sha256Hash blockHash) throws BlockStoreException {
+        try {
+            final int recordIdx = table.find(blockHash.getBytes());
+            if (recordIdx < 0) {
+                return null;
+            }
+            // Matching the record left its prefix in the prefix buffer
+            final ByteBuffer auxpow = ByteBuffer.allocate(prefix.getInt(Sha256Hash.LENGTH));
+            readFully(auxpow, recordOffsets[recordIdx] + RECORD_PREFIX_SIZE);
+            return auxpow.array();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (UncheckedIOException e) {
+            throw new BlockStoreException(e.getCause());
+        }
+    }
+
+    public synchronized boolean contains(final Sha256Hash blockHash) throws BlockStoreException {
+        try {
+            return table.find(blockHash.getBytes()) >= 0;
+        } catch (UncheckedIOException e) {
+            throw new BlockStoreException(e.getCause());
+        }
+    }
+
+    /**
+     * Append the serialized AuxPoW header of the block with the given hash.
+     * Does nothing if the block is already in the file. The record is not
+     * guaranteed to reach disk until {@link #flush()} is called.
+     */
+    public synchronized void put(final Sha256Hash blockHash, final byte[] auxpow) throws BlockStoreException {
+        if (auxpow.length == 0 || auxpow.length > MAX_AUXPOW_SIZE) {
+            throw new BlockStoreException("AuxPoW header of block " + blockHash + " is " + auxpow.length
+                + " bytes, outside the allowed range");
+        }
+        final byte[] hashBytes = blockHash.getBytes();
+        try {
+            if (table.find(hashBytes) >= 0) {
+                return;
+            }
+            final ByteBuffer record = ByteBuffer.allocate(recordSize(auxpow.length));
+            record.put(hashBytes);
+            record.putInt(auxpow.length);
+            record.put(auxpow);
+            checksum.put(record, 0, RECORD_PREFIX_SIZE + auxpow.length);
+            record.position(0);
+            final long offset = end;
+            while (record.hasRemaining()) {
+                channel.write(record, offset + record.position());
+            }
+            addRecord(offset, HashSlotTable.slotKey(hashBytes));
+            end = offset + record.capacity();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (UncheckedIOException e) {
+            throw new BlockStoreException(e.getCause());
+        }
+    }
+
+    /**
+     * Get the number of AuxPoW headers in the file.
+     */
+    public synchronized int size() {
+        return recordCount;
+    }
+
+    /**
+     * Force any appended records to disk.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Flush and close the file.
+     */
+    public synchronized void close() throws BlockStoreException {
+        try {
+            channel.force(false);
+            channel.close();
+            randomAccessFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void addRecord(final long offset, final int key) {
+        if (recordCount == recordOffsets.length) {
+            recordOffsets = Arrays.copyOf(recordOffsets, recordCount * 2);
+            recordKeys = Arrays.copyOf(recordKeys, recordCount * 2);
+        }
+        recordOffsets[recordCount] = offset;
+        recordKeys[recordCount] = key;
+        table.add(recordCount, key);
+        recordCount++;
+    }
+
+    private void readFully(final ByteBuffer buffer, final long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file " + file);
+            }
+        }
+        buffer.flip();
+    }
+
+    private static int recordSize(final int auxpowLength) {
+        return RECORD_PREFIX_SIZE + auxpowLength + RecordChecksum.SIZE;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.store;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.AuxPoW;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Block store which drops the AuxPoW header of every merge mined block whose
+ * proof of work has already been verified, before passing it on to another
+ * store. The stored header is just the 80 byte header, with a flag recording
+ * that the AuxPoW header was valid (see
+ * {@link AltcoinBlock#cloneAsCompactHeader()}), rather than keeping the
+ * parent coinbase, merkle branches and parent header alive in, for example,
+ * a {@code MemoryBlockStore}.
+ *
+ * <p>Dropped AuxPoW headers can optionally be spilled to an
+ * {@link AuxPoWSpillFile}, so full headers can still be served to peers with
+ * {@link #getFullHeader(Sha256Hash)}. Blocks which are not merge mined, or
+ * whose AuxPoW header has not been verified, are stored unchanged.</p>
+ */
+public class CompactBlockStore implements BlockStore {
+    private final BlockStore store;
+    @Nullable private final AuxPoWSpillFile spillFile;
+
+    /**
+     * Wrap a store, discarding verified AuxPoW headers.
+     */
+    public CompactBlockStore(final BlockStore store) {
+        this(store, null);
+    }
+
+    /**
+     * Wrap a store, spilling verified AuxPoW headers to the given file.
+     * Closing this store also closes the spill file.
+     */
+    public CompactBlockStore(final BlockStore store, @Nullable final AuxPoWSpillFile spillFile) {
+        this.store = checkNotNull(store);
+        this.spillFile = spillFile;
+    }
+
+    @Override
+    public void put(final StoredBlock block) throws BlockStoreException {
+        store.put(compact(block));
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(final Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return store.getChainHead();
+    }
+
+    @Override
+    public void setChainHead(final StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(compact(chainHead));
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        try {
+            store.close();
+        } finally {
+            if (spillFile != null) {
+                spillFile.close();
+            }
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return store.getParams();
+    }
+
+    /**
+     * Get the header of the block with the given hash, with its AuxPoW header
+     * restored from the spill file if it was dropped. The AuxPoW header of the
+     * returned block is not marked as verified.
+     *
+     * @return the header, or null if the block is not in the store.
+     * @throws BlockStoreException if the block's AuxPoW header was dropped
+     * and is not in the spill file, or no spill file is in use.
+     */
+    @Nullable
+    public Block getFullHeader(final Sha256Hash hash) throws BlockStoreException {
+        final StoredBlock stored = store.get(hash);
+        if (stored == null) {
+            return null;
+        }
+        final Block header = stored.getHeader();
+        if (!isCompact(header)) {
+            return header;
+        }
+        final byte[] auxpowBytes = spillFile == null ? null : spillFile.get(hash);
+        if (auxpowBytes == null) {
+            throw new BlockStoreException("AuxPoW header of block " + hash + " was not kept");
+        }
+        final AltcoinBlock fullHeader = (AltcoinBlock) header.cloneAsHeader();
+        try {
+            fullHeader.setAuxPoW(new AuxPoW(getParams(), auxpowBytes, 0, fullHeader,
+                getParams().getDefaultSerializer()));
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+        return fullHeader;
+    }
+
+    /**
+     * Get the spill file dropped AuxPoW headers are written to, if any.
+     */
+    @Nullable
+    public AuxPoWSpillFile getSpillFile() {
+        return spillFile;
+    }
+
+    private StoredBlock compact(final StoredBlock block) throws BlockStoreException {
+        final Block header = block.getHeader();
+        if (!(header instanceof AltcoinBlock)) {
+            return block;
+        }
+        final AltcoinBlock altcoinHeader = (AltcoinBlock) header;
+        final AuxPoW auxpow = altcoinHeader.getAuxPoW();
+        if (auxpow == null || !altcoinHeader.isAuxPoWVerified()) {
+            return block;
+        }
+        if (spillFile != null) {
+            spillFile.put(header.getHash(), auxpow.bitcoinSerialize());
+        }
+        return new StoredBlock(altcoinHeader.cloneAsCompactHeader(), block.getChainWork(), block.getHeight());
+    }
+
+    /**
+     * Whether the AuxPoW header of a stored header was dropped. This goes by
+     * the header's structure, as the verified flag is lost by stores which
+     * keep just the 80 byte header.
+     */
+    private static boolean isCompact(final Block header) {
+        return header instanceof AltcoinBlock && ((AltcoinBlock) header).isCompactHeader();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+
+/**
+ * In-memory open addressing table from block hash to the record holding it,
+ * shared by the file backed stores in this package. The table holds only a
+ * non-negative int reference to each record (a record number, or an offset
+ * scaled down by the record alignment), so the hashes themselves stay in
+ * the owner's file; the owner decides whether a probed record holds the
+ * hash being looked up. The table is kept at most half full, and rebuilt
+ * from the owner's records when it grows. Not thread safe; owners
+ * synchronize access.
+ */
+final class HashSlotTable {
+    /**
+     * The owner's records, as seen by the table.
+     */
+    interface Records {
+        /**
+         * Get the slot key of the hash in the given record, used to rebuild
+         * the table when it grows.
+         */
+        int slotKey(int record);
+
+        /**
+         * Whether the given record holds the given hash.
+         */
+        boolean holds(int record, byte[] hashBytes);
+    }
+
+    private static final int MIN_TABLE_SIZE = 1024;
+
+    private final Records records;
+    /** Record + 1 for each slot, or 0 for an empty slot. */
+    private int[] slots;
+    private int size;
+
+    /**
+     * @param capacity number of records to size the table for.
+     * @param records the owner's records.
+     */
+    HashSlotTable(final int capacity, final Records records) {
+        this.records = records;
+        this.slots = new int[tableSizeFor(capacity)];
+    }
+
+    /**
+     * Hashes are uniformly distributed, so the last four bytes (the same ones
+     * {@link Sha256Hash#hashCode()} uses) make a good slot key.
+     */
+    static int slotKey(final byte[] hashBytes, final int offset) {
+        final int keyOffset = offset + Sha256Hash.LENGTH - 4;
+        return (hashBytes[keyOffset] << 24)
+            | ((hashBytes[keyOffset + 1] & 0xff) << 16)
+            | ((hashBytes[keyOffset + 2] & 0xff) << 8)
+            | (hashBytes[keyOffset + 3] & 0xff);
+    }
+
+    static int slotKey(final byte[] hashBytes) {
+        return slotKey(hashBytes, 0);
+    }
+
+    /**
+     * Add a record with the given slot key, growing the table if it would
+     * become more than half full. The record must not already be present.
+     */
+    void add(final int record, final int key) {
+        if ((size + 1) * 2 > slots.length) {
+            grow();
+        }
+        insert(record, key);
+        size++;
+    }
+
+    /**
+     * Remove every record, leaving the table sized for the given capacity.
+     */
+    void clear(final int capacity) {
+        slots = new int[tableSizeFor(capacity)];
+        size = 0;
+    }
+
+    /**
+     * Get the number of records in the table.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Find the record holding the given hash.
+     *
+     * @return the record, or -1 if not found.
+     */
+    int find(final byte[] hashBytes) {
+        final int mask = slots.length - 1;
+        int slot = slotKey(hashBytes) & mask;
+        while (slots[slot] != 0) {
+            final int record = slots[slot] - 1;
+            if (records.holds(record, hashBytes)) {
+                return record;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void grow() {
+        final int[] oldSlots = slots;
+        slots = new int[oldSlots.length * 2];
+        for (int oldSlot : oldSlots) {
+            if (oldSlot != 0) {
+                insert(oldSlot - 1, records.slotKey(oldSlot - 1));
+            }
+        }
+    }
+
+    private void insert(final int record, final int key) {
+        final int mask = slots.length - 1;
+        int slot = key & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = record + 1;
+    }
+
+    /**
+     * Size the lookup table to keep the load factor at or below one half.
+     */
+    private static int tableSizeFor(final int capacity) {
+        return Integer.highestOneBit(Math.max(capacity, MIN_TABLE_SIZE) * 2 - 1) << 1;
+    }
+}
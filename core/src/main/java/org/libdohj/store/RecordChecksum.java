@@ -0,0 +1,60 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.store;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * CRC32 of a record's contents, stored as a big endian int straight after
+ * them, shared by the append only files in this package. Records are
+ * written in place, so a crash can at worst leave a torn final record,
+ * whose checksum does not match; it is discarded (and later overwritten)
+ * when the file is next opened. Not thread safe; owners synchronize access.
+ */
+final class RecordChecksum {
+    /** Size of the stored checksum. */
+    static final int SIZE = 4;
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Calculate the checksum of the given range of a buffer, without moving
+     * its position.
+     */
+    int calculate(final ByteBuffer buffer, final int position, final int length) {
+        final ByteBuffer contents = buffer.duplicate();
+        contents.limit(position + length);
+        contents.position(position);
+        crc.reset();
+        crc.update(contents);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Write the checksum of the given range of a buffer straight after it.
+     */
+    void put(final ByteBuffer buffer, final int position, final int length) {
+        buffer.putInt(position + length, calculate(buffer, position, length));
+    }
+
+    /**
+     * Whether the given range of a buffer is followed by its checksum.
+     */
+    boolean matches(final ByteBuffer buffer, final int position, final int length) {
+        return buffer.getInt(position + length) == calculate(buffer, position, length);
+    }
+}
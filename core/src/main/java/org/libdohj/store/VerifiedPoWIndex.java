@@ -0,0 +1,334 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.store;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.store.BlockStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Memory mapped, append only file recording the Scrypt hash of every block
+ * header whose proof of work has already been verified, keyed by the SHA256d
+ * block hash. Kept alongside the block store so that headers reloaded after
+ * a restart do not need their Scrypt hash recalculated.
+ *
+ * <p>The file is a short header followed by fixed size records of block hash,
+ * Scrypt hash and a {@link RecordChecksum} of both, written in place through
+ * the mapping. Lookups use a {@link HashSlotTable} of record numbers, so the
+ * hashes themselves are only held in the mapped file.</p>
+ *
+ * <p>Once the index is closed, or if it could not be reopened after
+ * compaction, every operation which reads or writes the file throws a
+ * {@link BlockStoreException}.</p>
+ */
+public class VerifiedPoWIndex {
+    private static final Logger log = LoggerFactory.getLogger(VerifiedPoWIndex.class);
+
+    private static final byte[] FILE_MAGIC = {'U', 'P', 'o', 'W'};
+    private static final int FILE_VERSION = 1;
+    static final int FILE_HEADER_SIZE = 16;
+    private static final int RECORD_CONTENTS_SIZE = Sha256Hash.LENGTH * 2;
+    static final int RECORD_SIZE = RECORD_CONTENTS_SIZE + RecordChecksum.SIZE;
+    private static final int INITIAL_CAPACITY = 65536;
+
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int recordCount;
+
+    private HashSlotTable table;
+    private final HashSlotTable.Records records = new HashSlotTable.Records() {
+        @Override
+        public int slotKey(final int recordIdx) {
+            return buffer.getInt(recordOffset(recordIdx) + Sha256Hash.LENGTH - 4);
+        }
+
+        @Override
+        public boolean holds(final int recordIdx, final byte[] hashBytes) {
+            final int offset = recordOffset(recordIdx);
+            for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+                if (buffer.get(offset + byteIdx) != hashBytes[byteIdx]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    };
+
+    private final RecordChecksum checksum = new RecordChecksum();
+    private final byte[] record = new byte[RECORD_SIZE];
+
+    /**
+     * Open the index stored in the given file, creating it if it does not
+     * exist.
+     *
+     * @throws BlockStoreException if the file cannot be opened, or is not an
+     * index file.
+     */
+    public VerifiedPoWIndex(final File file) throws BlockStoreException {
+        this.file = file;
+        try {
+            open();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void open() throws IOException, BlockStoreException {
+        final boolean exists = file.exists() && file.length() >= FILE_HEADER_SIZE;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        if (exists) {
+            capacity = Math.max(INITIAL_CAPACITY,
+                (int) ((randomAccessFile.length() - FILE_HEADER_SIZE) / RECORD_SIZE));
+        } else {
+            capacity = INITIAL_CAPACITY;
+        }
+        map();
+
+        if (exists) {
+            final byte[] magic = new byte[FILE_MAGIC.length];
+            buffer.position(0);
+            buffer.get(magic);
+            if (!Arrays.equals(magic, FILE_MAGIC) || buffer.getInt() != FILE_VERSION) {
+                closeFile();
+                throw new BlockStoreException("File is not a proof of work index: " + file);
+            }
+            loadRecords();
+        } else {
+            buffer.position(0);
+            buffer.put(FILE_MAGIC);
+            buffer.putInt(FILE_VERSION);
+            recordCount = 0;
+            table = new HashSlotTable(capacity, records);
+        }
+    }
+
+    private void map() throws IOException {
+        final long size = FILE_HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        if (randomAccessFile.length() < size) {
+            randomAccessFile.setLength(size);
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Scan the records in the file, stopping at the first empty or corrupt
+     * record, and build the lookup table.
+     */
+    private void loadRecords() {
+        table = new HashSlotTable(capacity, records);
+        recordCount = 0;
+        for (int recordIdx = 0; recordIdx < capacity; recordIdx++) {
+            if (!isValidRecord(recordOffset(recordIdx))) {
+                break;
+            }
+            table.add(recordIdx, records.slotKey(recordIdx));
+            recordCount++;
+        }
+        log.info("Loaded {} verified proof of work records from {}", recordCount, file);
+    }
+
+    private boolean isValidRecord(final int offset) {
+        if (!checksum.matches(buffer, offset, RECORD_CONTENTS_SIZE)) {
+            return false;
+        }
+        // An all-zero block hash is never valid, and guards against a zeroed
+        // tail that happens to checksum correctly.
+        for (int byteIdx = 0; byteIdx < Sha256Hash.LENGTH; byteIdx++) {
+            if (buffer.get(offset + byteIdx) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the previously verified Scrypt hash of the block with the given hash.
+     *
+     * @return the Scrypt hash, or null if the block is not in the index.
+     */
+    @Nullable
+    public synchronized Sha256Hash get(final Sha256Hash blockHash) throws BlockStoreException {
+        checkOpen();
+        final int recordIdx = table.find(blockHash.getBytes());
+        if (recordIdx < 0) {
+            return null;
+        }
+        final byte[] scryptHash = new byte[Sha256Hash.LENGTH];
+        buffer.position(recordOffset(recordIdx) + Sha256Hash.LENGTH);
+        buffer.get(scryptHash);
+        return Sha256Hash.wrap(scryptHash);
+    }
+
+    public synchronized boolean contains(final Sha256Hash blockHash) throws BlockStoreException {
+        checkOpen();
+        return table.find(blockHash.getBytes()) >= 0;
+    }
+
+    /**
+     * Record that the block with the given hash has a verified proof of work,
+     * with the given Scrypt hash. Does nothing if the block is already in the
+     * index. The record is not guaranteed to reach disk until {@link #flush()}
+     * is called.
+     */
+    public synchronized void put(final Sha256Hash blockHash, final Sha256Hash scryptHash)
+            throws BlockStoreException {
+        checkOpen();
+        final byte[] hashBytes = blockHash.getBytes();
+        if (table.find(hashBytes) >= 0) {
+            return;
+        }
+        if (recordCount == capacity) {
+            grow();
+        }
+
+        final int offset = recordOffset(recordCount);
+        buffer.position(offset);
+        buffer.put(hashBytes);
+        buffer.put(scryptHash.getBytes());
+        checksum.put(buffer, offset, RECORD_CONTENTS_SIZE);
+        table.add(recordCount, HashSlotTable.slotKey(hashBytes));
+        recordCount++;
+    }
+
+    /**
+     * Get the number of blocks in the index.
+     */
+    public synchronized int size() {
+        return recordCount;
+    }
+
+    /**
+     * Force any appended records to disk.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        checkOpen();
+        buffer.force();
+    }
+
+    /**
+     * Rewrite the index file so that it holds only the valid records, with no
+     * spare capacity or torn records, then reopen it. The new file is written
+     * alongside the old one and renamed over it, so a crash during compaction
+     * leaves the original file intact. If the rename fails, for example
+     * because another process has the file open on Windows, the original file
+     * is reopened and the index remains usable.
+     */
+    public synchronized void compact() throws BlockStoreException {
+        checkOpen();
+        final File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            try (RandomAccessFile out = new RandomAccessFile(tempFile, "rw")) {
+                out.setLength(0);
+                out.write(FILE_MAGIC);
+                out.writeInt(FILE_VERSION);
+                out.write(new byte[FILE_HEADER_SIZE - FILE_MAGIC.length - 4]);
+                for (int recordIdx = 0; recordIdx < recordCount; recordIdx++) {
+                    buffer.position(recordOffset(recordIdx));
+                    buffer.get(record);
+                    out.write(record);
+                }
+                out.getFD().sync();
+            }
+            closeFile();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        try {
+            replaceFile(tempFile.toPath(), file.toPath());
+        } catch (IOException e) {
+            // The original file is untouched, so carry on using it
+            if (!tempFile.delete()) {
+                log.warn("Could not delete {}", tempFile);
+            }
+            try {
+                open();
+            } catch (IOException | BlockStoreException reopenFailure) {
+                e.addSuppressed(reopenFailure);
+            }
+            throw new BlockStoreException("Could not replace " + file + " with its compacted copy", e);
+        }
+        try {
+            open();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @VisibleForTesting
+    void replaceFile(final Path source, final Path target) throws IOException {
+        Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Flush and close the index.
+     */
+    public synchronized void close() throws BlockStoreException {
+        if (table == null) {
+            return;
+        }
+        try {
+            buffer.force();
+            closeFile();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void closeFile() throws IOException {
+        table = null;
+        buffer = null;
+        channel.close();
+        randomAccessFile.close();
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (table == null) {
+            throw new BlockStoreException("Index closed");
+        }
+    }
+
+    private void grow() throws BlockStoreException {
+        buffer.force();
+        capacity *= 2;
+        try {
+            map();
+        } catch (IOException e) {
+            capacity /= 2;
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static int recordOffset(final int recordIdx) {
+        return FILE_HEADER_SIZE + recordIdx * RECORD_SIZE;
+    }
+}
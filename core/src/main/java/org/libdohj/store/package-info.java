@@ -0,0 +1,6 @@
+/**
+ * Storage for altcoin chain data which the bitcoinj block stores cannot hold,
+ * such as variable length AuxPoW headers and verified proof of work records
+ * for Scrypt chains.
+ */
+package org.libdohj.store;
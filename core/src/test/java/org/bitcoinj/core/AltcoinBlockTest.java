@@ -0,0 +1,144 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.core;
+
+import org.libdohj.core.AltcoinSerializer;
+import org.libdohj.core.ScryptEngine;
+import org.libdohj.core.ScryptHashCache;
+import org.libdohj.params.DogecoinMainNetParams;
+import org.libdohj.testing.FakeAuxPoWBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AltcoinBlockTest {
+    private static final NetworkParameters params = DogecoinMainNetParams.get();
+
+    private final Sha256Hash prevBlockHash = Sha256Hash.wrap("5a1b1d3ad5a0dbc3b6bba0d0a62f2c76d2e2d1e31e1a2a1d9e4d3c2b1a091807");
+    private byte[] payload;
+    private Sha256Hash expectedScryptHash;
+
+    @Before
+    public void setUp() throws Exception {
+        payload = FakeAuxPoWBuilder.createAuxPoWBlock(prevBlockHash, 1524200000L);
+        expectedScryptHash = Sha256Hash.wrapReversed(ScryptEngine.scrypt(payload, 0, Block.HEADER_SIZE));
+    }
+
+    @Test
+    public void shouldHashRetainedHeaderSlice() throws Exception {
+        final AltcoinBlock block = (AltcoinBlock) new AltcoinSerializer(params, true)
+            .makeBlock(payload, 0, payload.length);
+        assertNotNull(block.getAuxPoW());
+        assertTrue(block.headerBytesValid);
+        assertEquals(expectedScryptHash, calculateScryptHash(block));
+    }
+
+    @Test
+    public void shouldHashWrittenHeaderWithoutRetainedPayload() throws Exception {
+        final AltcoinBlock block = (AltcoinBlock) new AltcoinSerializer(params, false)
+            .makeBlock(payload, 0, payload.length);
+        assertNotNull(block.getAuxPoW());
+        assertFalse(block.headerBytesValid);
+        assertEquals(expectedScryptHash, calculateScryptHash(block));
+    }
+
+    @Test
+    public void shouldHashWrittenHeaderOfBlockBuiltInCode() throws Exception {
+        final AltcoinBlock parsed = (AltcoinBlock) new AltcoinSerializer(params, false)
+            .makeBlock(payload, 0, payload.length);
+        final AltcoinBlock block = new AltcoinBlock(params, parsed.getRawVersion(), parsed.getPrevBlockHash(),
+            parsed.getMerkleRoot(), parsed.getTimeSeconds(), parsed.getDifficultyTarget(), parsed.getNonce(),
+            Collections.<Transaction>emptyList());
+        block.setAuxPoW(parsed.getAuxPoW());
+        assertFalse(block.headerBytesValid);
+        assertEquals(expectedScryptHash, calculateScryptHash(block));
+    }
+
+    @Test
+    public void shouldNotHashAuxPoWHeader() throws Exception {
+        final int auxpowLength = FakeAuxPoWBuilder.getAuxPoWLength(payload);
+        final Sha256Hash withAuxPoW = Sha256Hash.wrapReversed(
+            ScryptEngine.scrypt(payload, 0, Block.HEADER_SIZE + auxpowLength));
+        for (boolean parseRetain : new boolean[] { true, false }) {
+            final AltcoinBlock block = (AltcoinBlock) new AltcoinSerializer(params, parseRetain)
+                .makeBlock(payload, 0, payload.length);
+            assertEquals(auxpowLength, block.getAuxPoW().getMessageSize());
+            assertNotEquals(withAuxPoW, calculateScryptHash(block));
+        }
+    }
+
+    @Test
+    public void shouldParseHeaderOnly() throws Exception {
+        final int headerLength = Block.HEADER_SIZE + FakeAuxPoWBuilder.getAuxPoWLength(payload);
+        // Followed by a transaction count the block does not hold
+        final byte[] bytes = Arrays.copyOf(payload, headerLength + 3);
+        bytes[headerLength] = (byte) 0xfd;
+        bytes[headerLength + 1] = (byte) 0xff;
+        bytes[headerLength + 2] = (byte) 0xff;
+        for (boolean parseRetain : new boolean[] { true, false }) {
+            final AltcoinBlock block = AltcoinBlock.parseHeader(params, bytes, 0,
+                new AltcoinSerializer(params, parseRetain));
+            assertNull(block.getTransactions());
+            assertEquals(headerLength, block.getMessageSize());
+            assertNotNull(block.getAuxPoW());
+            assertEquals(expectedScryptHash, calculateScryptHash(block));
+        }
+    }
+
+    @Test
+    public void shouldParseTransactionsAfterExplicitLength() throws Exception {
+        final int headerLength = Block.HEADER_SIZE + FakeAuxPoWBuilder.getAuxPoWLength(payload);
+        final AltcoinBlock block = new AltcoinBlock(params, payload, 0, new AltcoinSerializer(params, false),
+            headerLength);
+        assertNotNull(block.getTransactions());
+        assertTrue(block.getTransactions().isEmpty());
+        assertEquals(payload.length, block.getMessageSize());
+    }
+
+    @Test
+    public void shouldParseFilteredBlockHeaderInPlace() throws Exception {
+        final int headerLength = Block.HEADER_SIZE + FakeAuxPoWBuilder.getAuxPoWLength(payload);
+        // Partial merkle tree of one transaction, matched
+        final byte[] bytes = Arrays.copyOf(payload, headerLength + 4 + 1 + Sha256Hash.LENGTH + 2);
+        Utils.uint32ToByteArrayLE(1, bytes, headerLength);
+        bytes[headerLength + 4] = 1;
+        bytes[headerLength + 5 + Sha256Hash.LENGTH] = 1;
+        bytes[headerLength + 6 + Sha256Hash.LENGTH] = 1;
+        final FilteredBlock filteredBlock = new AltcoinSerializer(params, false).makeFilteredBlock(bytes);
+        final Block header = filteredBlock.getBlockHeader();
+        assertNull(header.getTransactions());
+        assertEquals(headerLength, header.getMessageSize());
+        assertEquals(expectedScryptHash, calculateScryptHash((AltcoinBlock) header));
+    }
+
+    /**
+     * Get the block's Scrypt hash, calculated rather than taken from the
+     * process-wide cache, which would otherwise hold it from an earlier test.
+     */
+    private static Sha256Hash calculateScryptHash(final AltcoinBlock block) {
+        ScryptHashCache.getDefault().clear();
+        return block.getScryptHash();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.bitcoinj.core;
+
+import org.libdohj.core.AltcoinSerializer;
+import org.libdohj.core.UInt256;
+import org.libdohj.params.DogecoinMainNetParams;
+import org.libdohj.testing.FakeAuxPoWBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link AuxPoW#check(Sha256Hash, UInt256)} against the rules of the
+ * reference client's {@code CAuxPow::check()}, using AuxPoW headers whose
+ * parent coinbase commits directly to the block hash.
+ */
+public class AuxPoWTest {
+    private static final NetworkParameters params = DogecoinMainNetParams.get();
+    private static final long TIME = 1524200000L;
+    private static final UInt256 EASY_TARGET = UInt256.fromCompactBits(FakeAuxPoWBuilder.EASY_DIFFICULTY_TARGET);
+    private static final byte[] PREFIX = { 0x03, 0x01, 0x02, 0x03 };
+
+    private final Sha256Hash blockHash = Sha256Hash.of("block".getBytes());
+
+    @Test
+    public void shouldAcceptValidAuxPoW() {
+        assertEquals(AuxPoW.CheckResult.VALID,
+            check(FakeAuxPoWBuilder.createCoinbaseScript(blockHash), blockHash, EASY_TARGET));
+    }
+
+    @Test
+    public void shouldRejectOtherBlock() {
+        assertEquals(AuxPoW.CheckResult.MISSING_CHAIN_MERKLE_ROOT, check(FakeAuxPoWBuilder.createCoinbaseScript(
+            blockHash), Sha256Hash.of("other block".getBytes()), EASY_TARGET));
+    }
+
+    @Test
+    public void shouldRejectParentAboveTarget() {
+        assertEquals(AuxPoW.CheckResult.HASH_ABOVE_TARGET,
+            check(FakeAuxPoWBuilder.createCoinbaseScript(blockHash), blockHash, UInt256.ONE));
+    }
+
+    @Test
+    public void shouldRejectMultipleMergedMiningHeaders() {
+        assertEquals(AuxPoW.CheckResult.MULTIPLE_MERGED_MINING_HEADERS,
+            check(script(PREFIX, AuxPoW.MERGED_MINING_HEADER, blockHash.getBytes(), sizeAndNonce(1),
+                AuxPoW.MERGED_MINING_HEADER), blockHash, EASY_TARGET));
+    }
+
+    @Test
+    public void shouldRejectHeaderNotBeforeRoot() {
+        assertEquals(AuxPoW.CheckResult.HEADER_NOT_BEFORE_ROOT,
+            check(script(PREFIX, AuxPoW.MERGED_MINING_HEADER, new byte[1], blockHash.getBytes(), sizeAndNonce(1)),
+                blockHash, EASY_TARGET));
+    }
+
+    @Test
+    public void shouldOnlyAcceptEarlyRootWithoutHeader() {
+        assertEquals(AuxPoW.CheckResult.VALID,
+            check(script(PREFIX, blockHash.getBytes(), sizeAndNonce(1)), blockHash, EASY_TARGET));
+        assertEquals(AuxPoW.CheckResult.CHAIN_MERKLE_ROOT_TOO_LATE,
+            check(script(new byte[21], blockHash.getBytes(), sizeAndNonce(1)), blockHash, EASY_TARGET));
+    }
+
+    @Test
+    public void shouldRejectMissingSizeAndNonce() {
+        assertEquals(AuxPoW.CheckResult.MISSING_SIZE_AND_NONCE,
+            check(script(PREFIX, AuxPoW.MERGED_MINING_HEADER, blockHash.getBytes(), new byte[7]),
+                blockHash, EASY_TARGET));
+    }
+
+    @Test
+    public void shouldRejectBranchSizeMismatch() {
+        assertEquals(AuxPoW.CheckResult.BRANCH_SIZE_MISMATCH,
+            check(script(PREFIX, AuxPoW.MERGED_MINING_HEADER, blockHash.getBytes(), sizeAndNonce(2)),
+                blockHash, EASY_TARGET));
+    }
+
+    @Test
+    public void shouldUseFirstChainMerkleRoot() {
+        // The reference client reads the size after the first occurrence of the root
+        assertEquals(AuxPoW.CheckResult.VALID,
+            check(script(PREFIX, AuxPoW.MERGED_MINING_HEADER, blockHash.getBytes(), sizeAndNonce(1),
+                blockHash.getBytes(), sizeAndNonce(2)), blockHash, EASY_TARGET));
+        assertEquals(AuxPoW.CheckResult.BRANCH_SIZE_MISMATCH,
+            check(script(PREFIX, AuxPoW.MERGED_MINING_HEADER, blockHash.getBytes(), sizeAndNonce(2),
+                blockHash.getBytes(), sizeAndNonce(1)), blockHash, EASY_TARGET));
+    }
+
+    private static AuxPoW.CheckResult check(final byte[] coinbaseScript, final Sha256Hash hashAuxBlock,
+                                            final UInt256 target) {
+        final byte[] bytes = FakeAuxPoWBuilder.createAuxPoW(coinbaseScript, TIME, EASY_TARGET);
+        final AuxPoW auxpow = new AuxPoW(params, bytes, null, new AltcoinSerializer(params, false));
+        assertEquals(bytes.length, auxpow.getMessageSize());
+        return auxpow.check(hashAuxBlock, target);
+    }
+
+    private static byte[] script(final byte[]... parts) {
+        final ByteArrayOutputStream script = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            script.write(part, 0, part.length);
+        }
+        return script.toByteArray();
+    }
+
+    /**
+     * Chain merkle tree size and nonce, as they follow the root in the script.
+     */
+    private static byte[] sizeAndNonce(final long size) {
+        final byte[] bytes = new byte[8];
+        Utils.uint32ToByteArrayLE(size, bytes, 0);
+        return bytes;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.listeners.BlocksDownloadedEventListener;
+import org.libdohj.params.DogecoinMainNetParams;
+import org.libdohj.testing.FakeAuxPoWBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PooledBlockReleaserTest {
+    private static final NetworkParameters params = DogecoinMainNetParams.get();
+
+    private PayloadBufferPool pool;
+    private byte[] bytes;
+    private AltcoinBlock block;
+    private Sha256Hash blockHash;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new PayloadBufferPool(PayloadBufferPool.DEFAULT_MAX_POOLED_BYTES);
+        bytes = FakeAuxPoWBuilder.createAuxPoWBlock(Sha256Hash.ZERO_HASH, 1524200000L);
+        final PayloadBufferPool.PooledBuffer payload = pool.acquire(bytes.length);
+        System.arraycopy(bytes, 0, payload.array(), 0, bytes.length);
+        block = new AltcoinBlock(params, payload, new AltcoinSerializer(params, true));
+        blockHash = block.getHash();
+    }
+
+    @Test
+    public void shouldReleaseAfterListeners() {
+        final List<String> calls = new ArrayList<>();
+        final PooledBlockReleaser releaser = new PooledBlockReleaser(Arrays.asList(
+            new RecordingListener("first", calls), new RecordingListener("second", calls)));
+        releaser.onBlocksDownloaded(null, block, null, 0);
+        assertEquals(Arrays.asList("first", "second"), calls);
+        assertEquals(0, pool.getBytesInUse());
+        assertEquals(blockHash, block.getHash());
+        // Detached from the recycled buffer, so unaffected by its reuse
+        Arrays.fill(pool.acquire(bytes.length).array(), (byte) 0);
+        final int parentHeaderOffset = Block.HEADER_SIZE + FakeAuxPoWBuilder.getAuxPoWLength(bytes)
+            - Block.HEADER_SIZE;
+        assertArrayEquals(Arrays.copyOfRange(bytes, parentHeaderOffset, parentHeaderOffset + Block.HEADER_SIZE),
+            block.getAuxPoW().getParentHeader().toByteArray());
+    }
+
+    @Test
+    public void shouldReleaseWhenListenerFails() {
+        final PooledBlockReleaser releaser = new PooledBlockReleaser(Arrays.asList(
+            new BlocksDownloadedEventListener() {
+                @Override
+                public void onBlocksDownloaded(final Peer peer, final Block block,
+                                               @Nullable final FilteredBlock filteredBlock, final int blocksLeft) {
+                    throw new IllegalStateException();
+                }
+            }));
+        try {
+            releaser.onBlocksDownloaded(null, block, null, 0);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(0, pool.getBytesInUse());
+        }
+    }
+
+    @Test
+    public void shouldKeepRetainedBlock() {
+        final PooledBlockReleaser releaser = new PooledBlockReleaser(Arrays.asList(
+            new BlocksDownloadedEventListener() {
+                @Override
+                public void onBlocksDownloaded(final Peer peer, final Block block,
+                                               @Nullable final FilteredBlock filteredBlock, final int blocksLeft) {
+                    ((AltcoinBlock) block).retain();
+                }
+            }));
+        releaser.onBlocksDownloaded(null, block, null, 0);
+        assertTrue(pool.getBytesInUse() > 0);
+        assertTrue(block.release());
+        assertEquals(0, pool.getBytesInUse());
+    }
+
+    /**
+     * Records that it was called, and checks the block is still pooled.
+     */
+    private class RecordingListener implements BlocksDownloadedEventListener {
+        private final String name;
+        private final List<String> calls;
+
+        RecordingListener(final String name, final List<String> calls) {
+            this.name = name;
+            this.calls = calls;
+        }
+
+        @Override
+        public void onBlocksDownloaded(final Peer peer, final Block block, @Nullable final FilteredBlock filteredBlock,
+                                       final int blocksLeft) {
+            assertTrue(pool.getBytesInUse() > 0);
+            assertFalse(((AltcoinBlock) block).getAuxPoW().getParentHeader().getHash().equals(Sha256Hash.ZERO_HASH));
+            calls.add(name);
+        }
+    }
+}
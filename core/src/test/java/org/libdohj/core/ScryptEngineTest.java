@@ -0,0 +1,79 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import com.google.common.io.BaseEncoding;
+import com.lambdaworks.crypto.SCrypt;
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ScryptEngineTest {
+    /**
+     * Input lengths either side of the SHA-256 block size, where the HMAC key
+     * is hashed rather than padded, and of the padding boundaries.
+     */
+    private static final int[] LENGTHS = { 1, 55, 56, 63, 64, 65, 80, 81, 119, 120, 128, 200, 1000 };
+
+    @Test
+    public void shouldHashLitecoinGenesisHeader() {
+        final byte[] header = BaseEncoding.base16().lowerCase().decode(
+            "0100000000000000000000000000000000000000000000000000000000000000000000"
+            + "00d9ced4ed1130f7b7faad9be25323ffafa33232a17c3edf6cfd97bee6bafbdd97b9aa8e4ef0ff0f1ecd513f7c");
+        assertEquals(Sha256Hash.wrap("0000050c34a64b415b6b15b37f2216634b5b1669cb9a2e38d76f7213b0671e00"),
+            Sha256Hash.wrapReversed(ScryptEngine.scrypt(header)));
+    }
+
+    @Test
+    public void shouldMatchReferenceImplementation() throws Exception {
+        final Random random = new Random(1);
+        for (int length : LENGTHS) {
+            for (int caseIdx = 0; caseIdx < 4; caseIdx++) {
+                final byte[] input = new byte[length];
+                random.nextBytes(input);
+                final byte[] expected = SCrypt.scrypt(input, input, 1024, 1, 1, ScryptEngine.DIGEST_LENGTH);
+                assertArrayEquals("Length " + length, expected, ScryptEngine.scrypt(input));
+
+                // The same bytes in the middle of a larger array
+                final byte[] padded = new byte[length + 10];
+                random.nextBytes(padded);
+                System.arraycopy(input, 0, padded, 7, length);
+                assertArrayEquals("Length " + length, expected, ScryptEngine.scrypt(padded, 7, length));
+            }
+        }
+    }
+
+    @Test
+    public void shouldWriteOnlyDigestToOutput() {
+        final byte[] input = new byte[80];
+        new Random(2).nextBytes(input);
+        final byte[] copy = input.clone();
+        final byte[] out = new byte[ScryptEngine.DIGEST_LENGTH + 8];
+        Arrays.fill(out, (byte) 0x5a);
+        ScryptEngine.scrypt(input, 0, input.length, out, 4);
+
+        assertArrayEquals(copy, input);
+        assertArrayEquals(ScryptEngine.scrypt(input), Arrays.copyOfRange(out, 4, 4 + ScryptEngine.DIGEST_LENGTH));
+        for (int byteIdx : new int[] { 0, 1, 2, 3, out.length - 4, out.length - 3, out.length - 2, out.length - 1 }) {
+            assertEquals(0x5a, out[byteIdx]);
+        }
+    }
+}
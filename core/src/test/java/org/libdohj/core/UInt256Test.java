@@ -0,0 +1,128 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.core;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link UInt256} against the {@code BigInteger} arithmetic it
+ * replaces.
+ */
+public class UInt256Test {
+    private static final BigInteger MODULUS = BigInteger.ONE.shiftLeft(256);
+    private static final int CASES = 100000;
+
+    @Test
+    public void shouldDecodeCompactBits() {
+        // Dogecoin main net maximum target
+        assertEquals("00000fffff000000000000000000000000000000000000000000000000000000",
+            UInt256.fromCompactBits(0x1e0fffffL).toString());
+        assertEquals(UInt256.valueOf(0x12), UInt256.fromCompactBits(0x01123456L));
+        assertEquals(UInt256.valueOf(0x1234), UInt256.fromCompactBits(0x02123456L));
+        assertEquals(UInt256.ZERO, UInt256.fromCompactBits(0x00123456L));
+        // Negative, and too large for 256 bits
+        assertFalse(UInt256.isValidCompactBits(0x04923456L));
+        assertFalse(UInt256.isValidCompactBits(0x21010000L));
+        // Negative zero is zero
+        assertTrue(UInt256.isValidCompactBits(0x01800000L));
+        assertEquals(0x1e0fffffL, UInt256.fromCompactBits(0x1e0fffffL).toCompactBits());
+    }
+
+    @Test
+    public void shouldMatchCompactBitsCoding() {
+        final Random random = new Random(1);
+        for (int caseIdx = 0; caseIdx < CASES; caseIdx++) {
+            final long compact = caseIdx % 3 == 0
+                ? ((long) random.nextInt(40) << 24) | random.nextInt(0x1000000)
+                : random.nextInt() & 0xffffffffL;
+            final BigInteger expected = org.bitcoinj.core.Utils.decodeCompactBits(compact);
+            final boolean valid = expected.signum() >= 0 && expected.bitLength() <= 256;
+            assertEquals(Long.toHexString(compact), valid, UInt256.isValidCompactBits(compact));
+            if (valid) {
+                final UInt256 value = UInt256.fromCompactBits(compact);
+                assertEquals(Long.toHexString(compact), expected, value.toBigInteger());
+                assertEquals(Long.toHexString(compact), org.bitcoinj.core.Utils.encodeCompactBits(expected),
+                    value.toCompactBits());
+            }
+        }
+    }
+
+    @Test
+    public void shouldMatchBigIntegerArithmetic() {
+        final Random random = new Random(2);
+        for (int caseIdx = 0; caseIdx < CASES; caseIdx++) {
+            final BigInteger x = randomValue(random);
+            final BigInteger y = randomValue(random);
+            final UInt256 ux = UInt256.fromBigInteger(x);
+            final UInt256 uy = UInt256.fromBigInteger(y);
+            final String message = x.toString(16) + ", " + y.toString(16);
+
+            assertEquals(message, x, ux.toBigInteger());
+            assertEquals(message, x.compareTo(y), Integer.signum(ux.compareTo(uy)));
+            assertEquals(message, x.add(y).mod(MODULUS), ux.add(uy).toBigInteger());
+            assertEquals(message, x.subtract(y).mod(MODULUS), ux.subtract(uy).toBigInteger());
+            final long factor = 1 + random.nextInt(Integer.MAX_VALUE) * 2L;
+            assertEquals(message, x.multiply(BigInteger.valueOf(factor)).mod(MODULUS),
+                ux.multiply(factor).toBigInteger());
+            assertEquals(message, x.divide(BigInteger.valueOf(factor)), ux.divide(factor).toBigInteger());
+            if (y.signum() > 0) {
+                assertEquals(message, x.divide(y), ux.divide(uy).toBigInteger());
+            }
+            final int shift = random.nextInt(260);
+            assertEquals(message, x.shiftLeft(shift).mod(MODULUS), ux.shiftLeft(shift).toBigInteger());
+            assertEquals(message, x.shiftRight(shift), ux.shiftRight(shift).toBigInteger());
+            assertEquals(message, x.bitLength(), ux.bitLength());
+            assertEquals(message, org.bitcoinj.core.Utils.encodeCompactBits(x), ux.toCompactBits());
+            if (x.signum() > 0) {
+                assertEquals(message, MODULUS.divide(x.add(BigInteger.ONE)), ux.getWorkForTarget().toBigInteger());
+            }
+            assertEquals(message, String.format("%064x", x), ux.toString());
+        }
+        assertEquals(UInt256.ONE, UInt256.MAX_VALUE.getWorkForTarget());
+    }
+
+    @Test
+    public void shouldReadBytesInEitherOrder() {
+        final Random random = new Random(3);
+        final byte[] bytes = new byte[UInt256.BYTES + 5];
+        random.nextBytes(bytes);
+        final UInt256 value = UInt256.fromBytes(bytes, 5);
+        assertArrayEquals(Arrays.copyOfRange(bytes, 5, bytes.length), value.toBytes());
+
+        final Sha256Hash hash = Sha256Hash.wrap(value.toBytes());
+        assertEquals(hash.toBigInteger(), value.toBigInteger());
+        assertEquals(value, UInt256.fromHash(hash));
+        assertEquals(value, UInt256.fromLittleEndianBytes(hash.getReversedBytes(), 0));
+    }
+
+    /**
+     * Pick a value of random bit length, so small and large values are both
+     * common.
+     */
+    private static BigInteger randomValue(final Random random) {
+        return new BigInteger(random.nextInt(257), random);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.params;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the long arithmetic in
+ * {@link AbstractDogecoinParams#scaleDifficultyTarget(long, int, int, long)}
+ * gives exactly the same compact target as the {@code BigInteger}
+ * implementation it replaced.
+ */
+public class AbstractDogecoinParamsTest {
+    private static final AbstractDogecoinParams[] NETWORKS = {
+        DogecoinMainNetParams.get(), DogecoinTestNet3Params.get(), DogecoinRegTestParams.get()
+    };
+    private static final int CASES_PER_NETWORK = 250000;
+
+    /**
+     * Retarget inputs and results: last target, damped and limited actual
+     * time, target timespan, next block's target, and expected new target.
+     */
+    private static final long[][] RETARGETS = {
+        // Dogecoin main net, block 240: the first retarget, limited to a sixteenth of four hours
+        { 0x1e0ffff0L, 900, 14400, 0x1e00ffffL, 0x1e00ffffL },
+        // Dogecoin main net, block 145000: the first Digishield retarget, 252s damped to 84s
+        { 0x1b499dfdL, 84, 60, 0x1b671062L, 0x1b671062L },
+        // The same, reduced to the precision of a target one byte longer
+        { 0x1b499dfdL, 84, 60, 0x1c00ffffL, 0x1b671000L },
+        // Halved
+        { 0x1c0ffff0L, 30, 60, 0x1c0ffff0L, 0x1c07fff8L },
+        // Unchanged
+        { 0x1b671062L, 300, 300, 0x1b671062L, 0x1b671062L },
+        // Limited to the main net maximum target
+        { 0x1e7fffffL, 1200, 300, 0x1e7fffffL, 0x1e7fffffL },
+    };
+
+    @Test
+    public void shouldScaleRetargets() {
+        final AbstractDogecoinParams params = DogecoinMainNetParams.get();
+        for (long[] retarget : RETARGETS) {
+            final long expected = retarget[4];
+            final long actual = params.scaleDifficultyTarget(retarget[0], (int) retarget[1], (int) retarget[2],
+                retarget[3]);
+            assertEquals(Long.toHexString(expected), Long.toHexString(actual));
+            assertEquals(Long.toHexString(expected), Long.toHexString(params.scaleDifficultyTargetSlow(
+                retarget[0], (int) retarget[1], (int) retarget[2], retarget[3])));
+        }
+    }
+
+    @Test
+    public void shouldMatchBigIntegerScaling() {
+        final Random random = new Random(20);
+        for (AbstractDogecoinParams params : NETWORKS) {
+            final int[] timespans = {
+                params.getTargetTimespan(), params.getNewTargetTimespan(), 1, 7, 16
+            };
+            for (int caseIdx = 0; caseIdx < CASES_PER_NETWORK; caseIdx++) {
+                final long lastTarget = randomTarget(random);
+                final int timespan = timespans[random.nextInt(timespans.length)];
+                final int actualTime = random.nextBoolean()
+                    ? Math.max(1, timespan / 4 + random.nextInt(timespan * 4))
+                    : 1 + random.nextInt(Integer.MAX_VALUE);
+                final long nextTarget = random.nextInt(4) == 0 ? randomTarget(random) : lastTarget;
+                final long expected = params.scaleDifficultyTargetSlow(lastTarget, actualTime, timespan, nextTarget);
+                final long actual = params.scaleDifficultyTarget(lastTarget, actualTime, timespan, nextTarget);
+                if (expected != actual) {
+                    assertEquals(String.format("%s: %08x * %d / %d to the precision of %08x",
+                            params.getId(), lastTarget, actualTime, timespan, nextTarget),
+                        Long.toHexString(expected), Long.toHexString(actual));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldDampTowardsZero() {
+        // Digishield damping once used Math.ceil()/Math.floor() on doubles;
+        // integer division must round the same way
+        for (int timespan : new int[] { 60, 300, 604800, 8, 9 }) {
+            for (int actualTime = -100000; actualTime < 2000000;
+                    actualTime += actualTime < -10 || actualTime > 1000 ? 997 : 1) {
+                final int expected = actualTime < timespan
+                    ? (int) Math.ceil(timespan + (actualTime - timespan) / 8.0)
+                    : (int) Math.floor(timespan + (actualTime - timespan) / 8.0);
+                assertEquals(expected, timespan + (actualTime - timespan) / 8);
+            }
+        }
+    }
+
+    /**
+     * Pick a compact target, mostly realistic ones, but also arbitrary bits
+     * and encodings the long arithmetic leaves to {@code BigInteger}.
+     */
+    private static long randomTarget(final Random random) {
+        switch (random.nextInt(5)) {
+            case 0:
+                return ((long) (0x1a + random.nextInt(6)) << 24) | (random.nextInt(0x7fffff) + 1);
+            case 1:
+                return random.nextLong() & 0xffffffffL;
+            case 2:
+                return ((long) random.nextInt(40) << 24) | random.nextInt(0x1000000);
+            case 3:
+                return 0x1e000000L | random.nextInt(0x800000);
+            default:
+                return 0x20000000L | random.nextInt(0x800000);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.store;
+
+import com.google.common.io.Files;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.store.BlockStoreException;
+import org.libdohj.params.DogecoinMainNetParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class AuxPoWBlockStoreTest {
+    private static final NetworkParameters params = DogecoinMainNetParams.get();
+    private static final int CHAIN_LENGTH = 20;
+    private static final int FORK_HEIGHT = 12;
+    /** Size of the record of an 80 byte header: lengths, chain work, hash, header and checksum, aligned to 8. */
+    private static final int HEADER_RECORD_SIZE = 144;
+
+    private File directory;
+    private AuxPoWBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDir();
+        store = new AuxPoWBlockStore(params, directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        new File(directory, AuxPoWBlockStore.DATA_FILE_NAME).delete();
+        new File(directory, AuxPoWBlockStore.HEIGHTS_FILE_NAME).delete();
+        directory.delete();
+    }
+
+    @Test
+    public void shouldStartWithGenesis() throws Exception {
+        assertEquals(1, store.size());
+        assertEquals(0, store.getChainHead().getHeight());
+        assertEquals(params.getGenesisBlock().getHash(), store.getChainHead().getHeader().getHash());
+        assertEquals(params.getGenesisBlock().getHash(), store.getHash(0));
+        assertNull(store.get(1));
+    }
+
+    @Test
+    public void shouldFindBlocksByHashAndHeight() throws Exception {
+        final List<StoredBlock> chain = putChain(store.getChainHead(), CHAIN_LENGTH, 0);
+        store.setChainHead(chain.get(CHAIN_LENGTH - 1));
+        assertChain(chain);
+        assertNull(store.get(Sha256Hash.ZERO_HASH));
+        assertEquals(-1, store.getHeight(Sha256Hash.ZERO_HASH));
+        assertNull(store.get(CHAIN_LENGTH + 1));
+        assertNull(store.getHash(-1));
+    }
+
+    @Test
+    public void shouldReindexHeightsOnReorganise() throws Exception {
+        final List<StoredBlock> chain = putChain(store.getChainHead(), CHAIN_LENGTH, 0);
+        store.setChainHead(chain.get(CHAIN_LENGTH - 1));
+        final List<StoredBlock> fork = putChain(chain.get(FORK_HEIGHT - 1), CHAIN_LENGTH, 1);
+        store.setChainHead(fork.get(CHAIN_LENGTH - 1));
+        assertEquals(1 + CHAIN_LENGTH * 2, store.size());
+
+        final List<StoredBlock> best = new ArrayList<StoredBlock>(chain.subList(0, FORK_HEIGHT));
+        best.addAll(fork);
+        assertChain(best);
+        // Blocks on the old chain are still found by hash
+        final StoredBlock stale = chain.get(CHAIN_LENGTH - 1);
+        assertEquals(stale.getHeight(), store.getHeight(stale.getHeader().getHash()));
+        assertEquals(stale.getChainWork(), store.get(stale.getHeader().getHash()).getChainWork());
+
+        // And back again, to a shorter chain
+        store.setChainHead(stale);
+        assertChain(chain);
+        assertNull(store.get(CHAIN_LENGTH + 1));
+    }
+
+    @Test
+    public void shouldReopen() throws Exception {
+        final List<StoredBlock> chain = putChain(store.getChainHead(), CHAIN_LENGTH, 0);
+        store.setChainHead(chain.get(CHAIN_LENGTH - 1));
+        store.close();
+
+        store = new AuxPoWBlockStore(params, directory);
+        assertEquals(1 + CHAIN_LENGTH, store.size());
+        assertChain(chain);
+    }
+
+    @Test
+    public void shouldDropTornRecord() throws Exception {
+        final List<StoredBlock> chain = putChain(store.getChainHead(), CHAIN_LENGTH, 0);
+        store.setChainHead(chain.get(CHAIN_LENGTH - 1));
+        store.close();
+
+        // Corrupt the last record, as a crash part way through writing it would
+        final RandomAccessFile data = new RandomAccessFile(new File(directory, AuxPoWBlockStore.DATA_FILE_NAME), "rw");
+        try {
+            final long lastRecord = AuxPoWBlockStore.FILE_HEADER_SIZE + (long) CHAIN_LENGTH * HEADER_RECORD_SIZE;
+            data.seek(lastRecord + HEADER_RECORD_SIZE - 8);
+            data.write(~data.read());
+        } finally {
+            data.close();
+        }
+
+        store = new AuxPoWBlockStore(params, directory);
+        assertEquals(CHAIN_LENGTH, store.size());
+        assertChain(chain.subList(0, CHAIN_LENGTH - 1));
+        assertNull(store.get(chain.get(CHAIN_LENGTH - 1).getHeader().getHash()));
+
+        // The record is overwritten when the block is put again
+        store.put(chain.get(CHAIN_LENGTH - 1));
+        store.setChainHead(chain.get(CHAIN_LENGTH - 1));
+        assertChain(chain);
+    }
+
+    @Test
+    public void shouldRejectUnknownChainHead() throws Exception {
+        final StoredBlock block = store.getChainHead().build(nextHeader(store.getChainHead().getHeader(), 0));
+        try {
+            store.setChainHead(block);
+            fail();
+        } catch (BlockStoreException expected) {
+        }
+        assertEquals(0, store.getChainHead().getHeight());
+    }
+
+    @Test
+    public void shouldReportClosed() throws Exception {
+        store.close();
+        try {
+            store.get(params.getGenesisBlock().getHash());
+            fail();
+        } catch (BlockStoreException expected) {
+        }
+        try {
+            store.getChainHead();
+            fail();
+        } catch (BlockStoreException expected) {
+        }
+    }
+
+    /**
+     * Put a chain of blocks on top of the given one, without moving the chain
+     * head. Chains with different {@code branch} values have different hashes.
+     *
+     * @return the new blocks, the first at the height above {@code prev}.
+     */
+    private List<StoredBlock> putChain(StoredBlock prev, final int length, final int branch) throws Exception {
+        final List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        for (int blockIdx = 0; blockIdx < length; blockIdx++) {
+            prev = prev.build(nextHeader(prev.getHeader(), branch));
+            store.put(prev);
+            chain.add(prev);
+        }
+        return chain;
+    }
+
+    /**
+     * Check the best chain is the genesis block followed by the given blocks.
+     */
+    private void assertChain(final List<StoredBlock> chain) throws BlockStoreException {
+        final StoredBlock head = chain.get(chain.size() - 1);
+        assertEquals(head.getHeader().getHash(), store.getChainHead().getHeader().getHash());
+        assertEquals(params.getGenesisBlock().getHash(), store.getHash(0));
+        for (StoredBlock expected : chain) {
+            final Sha256Hash hash = expected.getHeader().getHash();
+            final int height = expected.getHeight();
+            assertEquals(hash, store.get(hash).getHeader().getHash());
+            assertEquals(height, store.get(hash).getHeight());
+            assertEquals(hash, store.get(height).getHeader().getHash());
+            assertEquals(hash, store.getHash(height));
+            assertEquals(expected.getChainWork(), store.getChainWork(height));
+            assertEquals(height, store.getHeight(hash));
+        }
+        assertNull(store.get(head.getHeight() + 1));
+    }
+
+    private static Block nextHeader(final Block prev, final int branch) throws Exception {
+        final byte[] header = new byte[Block.HEADER_SIZE];
+        Utils.uint32ToByteArrayLE(1, header, 0);
+        System.arraycopy(prev.getHash().getReversedBytes(), 0, header, 4, Sha256Hash.LENGTH);
+        Utils.uint32ToByteArrayLE(branch, header, 36);
+        Utils.uint32ToByteArrayLE(prev.getTimeSeconds() + 60, header, 68);
+        Utils.uint32ToByteArrayLE(prev.getDifficultyTarget(), header, 72);
+        return params.getDefaultSerializer().makeBlock(header, 0, header.length);
+    }
+}
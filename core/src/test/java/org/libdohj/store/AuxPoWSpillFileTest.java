@@ -0,0 +1,188 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.store.BlockStoreException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AuxPoWSpillFileTest {
+    /** More than the initial record capacity, so the record arrays grow. */
+    private static final int RECORD_COUNT = 2000;
+
+    private File file;
+    private AuxPoWSpillFile spillFile;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("auxpow", ".dat");
+        // Created by the spill file
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (spillFile != null) {
+            spillFile.close();
+        }
+        file.delete();
+    }
+
+    @Test
+    public void shouldGetWhatWasPut() throws Exception {
+        spillFile = new AuxPoWSpillFile(file);
+        putRecords(0, RECORD_COUNT);
+        assertRecords(RECORD_COUNT);
+        assertFalse(spillFile.contains(blockHash(RECORD_COUNT)));
+    }
+
+    @Test
+    public void shouldKeepFirstPutOfBlock() throws Exception {
+        spillFile = new AuxPoWSpillFile(file);
+        spillFile.put(blockHash(0), auxpow(0));
+        spillFile.put(blockHash(0), auxpow(1));
+        assertEquals(1, spillFile.size());
+        assertArrayEquals(auxpow(0), spillFile.get(blockHash(0)));
+    }
+
+    @Test
+    public void shouldRejectEmptyAuxPoW() throws Exception {
+        spillFile = new AuxPoWSpillFile(file);
+        try {
+            spillFile.put(blockHash(0), new byte[0]);
+            fail();
+        } catch (BlockStoreException expected) {
+        }
+        assertEquals(0, spillFile.size());
+    }
+
+    @Test
+    public void shouldReopen() throws Exception {
+        spillFile = new AuxPoWSpillFile(file);
+        putRecords(0, RECORD_COUNT);
+        spillFile.close();
+
+        spillFile = new AuxPoWSpillFile(file);
+        assertRecords(RECORD_COUNT);
+        putRecords(RECORD_COUNT, RECORD_COUNT + 10);
+        assertRecords(RECORD_COUNT + 10);
+    }
+
+    @Test
+    public void shouldDropTornRecord() throws Exception {
+        spillFile = new AuxPoWSpillFile(file);
+        putRecords(0, 10);
+        spillFile.close();
+
+        // Cut the last record short, as a crash part way through writing it would
+        final RandomAccessFile data = new RandomAccessFile(file, "rw");
+        try {
+            data.setLength(data.length() - 1);
+        } finally {
+            data.close();
+        }
+
+        spillFile = new AuxPoWSpillFile(file);
+        assertRecords(9);
+        // The torn record is overwritten when the block is put again
+        putRecords(9, 10);
+        spillFile.close();
+        spillFile = new AuxPoWSpillFile(file);
+        assertRecords(10);
+    }
+
+    @Test
+    public void shouldDropCorruptRecord() throws Exception {
+        spillFile = new AuxPoWSpillFile(file);
+        putRecords(0, 10);
+        spillFile.close();
+
+        final RandomAccessFile data = new RandomAccessFile(file, "rw");
+        try {
+            // Last byte of the AuxPoW header of the last record, before its checksum
+            data.seek(data.length() - RecordChecksum.SIZE - 1);
+            final int last = data.read();
+            data.seek(data.length() - RecordChecksum.SIZE - 1);
+            data.write(~last);
+        } finally {
+            data.close();
+        }
+
+        spillFile = new AuxPoWSpillFile(file);
+        assertRecords(9);
+    }
+
+    @Test
+    public void shouldRejectOtherFiles() throws Exception {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            final byte[] bytes = new byte[AuxPoWSpillFile.FILE_HEADER_SIZE];
+            Arrays.fill(bytes, (byte) 'x');
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        try {
+            spillFile = new AuxPoWSpillFile(file);
+            fail();
+        } catch (BlockStoreException expected) {
+        }
+        assertTrue(file.exists());
+    }
+
+    private void putRecords(final int from, final int to) throws BlockStoreException {
+        for (int recordIdx = from; recordIdx < to; recordIdx++) {
+            spillFile.put(blockHash(recordIdx), auxpow(recordIdx));
+        }
+    }
+
+    private void assertRecords(final int count) throws BlockStoreException {
+        assertEquals(count, spillFile.size());
+        for (int recordIdx = 0; recordIdx < count; recordIdx++) {
+            assertTrue(spillFile.contains(blockHash(recordIdx)));
+            assertArrayEquals(auxpow(recordIdx), spillFile.get(blockHash(recordIdx)));
+        }
+        assertNull(spillFile.get(blockHash(count)));
+    }
+
+    private static Sha256Hash blockHash(final int recordIdx) {
+        return Sha256Hash.of(("block " + recordIdx).getBytes());
+    }
+
+    /**
+     * AuxPoW header bytes of varying length, unique to the record.
+     */
+    private static byte[] auxpow(final int recordIdx) {
+        final byte[] auxpow = new byte[1 + recordIdx % 300];
+        Arrays.fill(auxpow, (byte) recordIdx);
+        auxpow[0] = (byte) (recordIdx >> 8);
+        return auxpow;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.store.BlockStoreException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class VerifiedPoWIndexTest {
+    private static final int RECORD_COUNT = 100;
+
+    private File file;
+    private File tempFile;
+    private VerifiedPoWIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("verified-pow", ".idx");
+        tempFile = new File(file.getPath() + ".tmp");
+        // Created by the index
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (index != null) {
+            index.close();
+        }
+        file.delete();
+        tempFile.delete();
+    }
+
+    @Test
+    public void shouldCompact() throws Exception {
+        index = new VerifiedPoWIndex(file);
+        putRecords(0, RECORD_COUNT);
+        index.compact();
+        assertFalse(tempFile.exists());
+        assertRecords(RECORD_COUNT);
+        putRecords(RECORD_COUNT, RECORD_COUNT * 2);
+        assertRecords(RECORD_COUNT * 2);
+    }
+
+    @Test
+    public void shouldReopenWhenReplaceFails() throws Exception {
+        index = new VerifiedPoWIndex(file) {
+            @Override
+            void replaceFile(final Path source, final Path target) throws IOException {
+                throw new AccessDeniedException(target.toString());
+            }
+        };
+        putRecords(0, RECORD_COUNT);
+        index.flush();
+        try {
+            index.compact();
+            fail();
+        } catch (BlockStoreException e) {
+            assertEquals(AccessDeniedException.class, e.getCause().getClass());
+        }
+        assertFalse(tempFile.exists());
+        assertRecords(RECORD_COUNT);
+        putRecords(RECORD_COUNT, RECORD_COUNT * 2);
+        index.flush();
+        assertRecords(RECORD_COUNT * 2);
+    }
+
+    @Test
+    public void shouldReportClosed() throws Exception {
+        index = new VerifiedPoWIndex(file);
+        putRecords(0, RECORD_COUNT);
+        index.close();
+        try {
+            index.get(blockHash(0));
+            fail();
+        } catch (BlockStoreException expected) {
+        }
+        try {
+            index.put(blockHash(RECORD_COUNT), scryptHash(RECORD_COUNT));
+            fail();
+        } catch (BlockStoreException expected) {
+        }
+        try {
+            index.flush();
+            fail();
+        } catch (BlockStoreException expected) {
+        }
+        // Closing again does nothing
+        index.close();
+
+        index = new VerifiedPoWIndex(file);
+        assertRecords(RECORD_COUNT);
+    }
+
+    private void putRecords(final int from, final int to) throws BlockStoreException {
+        for (int recordIdx = from; recordIdx < to; recordIdx++) {
+            index.put(blockHash(recordIdx), scryptHash(recordIdx));
+        }
+    }
+
+    private void assertRecords(final int count) throws BlockStoreException {
+        assertEquals(count, index.size());
+        for (int recordIdx = 0; recordIdx < count; recordIdx++) {
+            assertEquals(scryptHash(recordIdx), index.get(blockHash(recordIdx)));
+        }
+        assertNull(index.get(blockHash(count)));
+    }
+
+    private static Sha256Hash blockHash(final int recordIdx) {
+        return Sha256Hash.of(("block " + recordIdx).getBytes());
+    }
+
+    private static Sha256Hash scryptHash(final int recordIdx) {
+        return Sha256Hash.of(("scrypt " + recordIdx).getBytes());
+    }
+}
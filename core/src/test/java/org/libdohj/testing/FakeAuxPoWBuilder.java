@@ -0,0 +1,168 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.libdohj.testing;
+
+import org.bitcoinj.core.AuxPoW;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.libdohj.core.ScryptEngine;
+import org.libdohj.core.UInt256;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Builds the wire form of merge mined blocks for tests. The AuxPoW header is
+ * the simplest valid one: the parent block holds only its coinbase, whose
+ * script commits directly to the block's hash, and the parent nonce is
+ * ground until the parent's Scrypt hash meets the given target.
+ */
+public class FakeAuxPoWBuilder {
+    /** Version of a merge mined block: Dogecoin chain ID, AuxPoW flag and base version 4. */
+    public static final long AUXPOW_BLOCK_VERSION = 0x20000104L;
+    /** Version of the parent block, which has no chain ID. */
+    public static final long PARENT_BLOCK_VERSION = 2;
+    /** Parent block difficulty target, met by about half of all hashes. */
+    public static final long EASY_DIFFICULTY_TARGET = 0x207fffffL;
+
+    private static final byte[] COINBASE_SCRIPT_PREFIX = { 0x03, 0x01, 0x02, 0x03 };
+
+    /**
+     * Build a merge mined block with no transactions, whose AuxPoW header is
+     * valid for any target at or above {@code parentTarget}.
+     *
+     * @return the block, followed by a zero transaction count.
+     */
+    public static byte[] createAuxPoWBlock(final Sha256Hash prevBlockHash, final long time,
+                                           final long difficultyTarget, final UInt256 parentTarget) {
+        final byte[] header = new byte[Block.HEADER_SIZE];
+        writeHeader(header, AUXPOW_BLOCK_VERSION, prevBlockHash, Sha256Hash.ZERO_HASH, time, difficultyTarget, 0);
+        final Sha256Hash blockHash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(header));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            out.write(header);
+            out.write(createAuxPoW(createCoinbaseScript(blockHash), time, parentTarget));
+            // No transactions
+            out.write(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Build the wire form of an AuxPoW header whose parent coinbase has the
+     * given script, with a parent block meeting {@code parentTarget}.
+     */
+    public static byte[] createAuxPoW(final byte[] coinbaseScript, final long time, final UInt256 parentTarget) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            final byte[] coinbase = createCoinbase(coinbaseScript);
+            out.write(coinbase);
+            // Parent block hash (unchecked), then empty coinbase and chain merkle branches
+            out.write(new byte[Sha256Hash.LENGTH]);
+            out.write(0);
+            Utils.uint32ToByteStreamLE(0, out);
+            out.write(0);
+            Utils.uint32ToByteStreamLE(0, out);
+            out.write(createParentHeader(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(coinbase)), time,
+                parentTarget));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Build a parent coinbase script committing to the given block hash as
+     * the root of a single leaf chain merkle tree.
+     */
+    public static byte[] createCoinbaseScript(final Sha256Hash blockHash) {
+        final ByteArrayOutputStream script = new ByteArrayOutputStream();
+        try {
+            script.write(COINBASE_SCRIPT_PREFIX);
+            script.write(AuxPoW.MERGED_MINING_HEADER);
+            script.write(blockHash.getBytes());
+            Utils.uint32ToByteStreamLE(1, script);
+            Utils.uint32ToByteStreamLE(0, script);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return script.toByteArray();
+    }
+
+    /**
+     * Build a merge mined block as {@link #createAuxPoWBlock(Sha256Hash, long, long, UInt256)}
+     * does, with a parent block meeting {@link #EASY_DIFFICULTY_TARGET}.
+     */
+    public static byte[] createAuxPoWBlock(final Sha256Hash prevBlockHash, final long time) {
+        return createAuxPoWBlock(prevBlockHash, time, EASY_DIFFICULTY_TARGET,
+            UInt256.fromCompactBits(EASY_DIFFICULTY_TARGET));
+    }
+
+    /**
+     * Get the length of the AuxPoW header in a block built by this class.
+     */
+    public static int getAuxPoWLength(final byte[] block) {
+        return block.length - Block.HEADER_SIZE - 1;
+    }
+
+    private static byte[] createCoinbase(final byte[] script) throws IOException {
+        final ByteArrayOutputStream tx = new ByteArrayOutputStream();
+        Utils.uint32ToByteStreamLE(1, tx);
+        tx.write(1);
+        tx.write(new byte[Sha256Hash.LENGTH]);
+        Utils.uint32ToByteStreamLE(0xffffffffL, tx);
+        tx.write(script.length);
+        tx.write(script);
+        Utils.uint32ToByteStreamLE(0xffffffffL, tx);
+        tx.write(1);
+        tx.write(new byte[8]);
+        tx.write(1);
+        tx.write(0x51); // OP_TRUE
+        Utils.uint32ToByteStreamLE(0, tx);
+        return tx.toByteArray();
+    }
+
+    private static byte[] createParentHeader(final Sha256Hash merkleRoot, final long time,
+                                             final UInt256 parentTarget) {
+        final byte[] header = new byte[Block.HEADER_SIZE];
+        final byte[] digest = new byte[ScryptEngine.DIGEST_LENGTH];
+        for (long nonce = 0; nonce <= 0xffffffffL; nonce++) {
+            writeHeader(header, PARENT_BLOCK_VERSION, Sha256Hash.ZERO_HASH, merkleRoot, time,
+                EASY_DIFFICULTY_TARGET, nonce);
+            ScryptEngine.scrypt(header, 0, header.length, digest, 0);
+            if (UInt256.fromLittleEndianBytes(digest, 0).isAtOrBelow(parentTarget)) {
+                return header;
+            }
+        }
+        throw new IllegalArgumentException("No parent nonce meets target " + parentTarget);
+    }
+
+    private static void writeHeader(final byte[] out, final long version, final Sha256Hash prevBlockHash,
+                                    final Sha256Hash merkleRoot, final long time, final long difficultyTarget,
+                                    final long nonce) {
+        Utils.uint32ToByteArrayLE(version, out, 0);
+        System.arraycopy(prevBlockHash.getReversedBytes(), 0, out, 4, Sha256Hash.LENGTH);
+        System.arraycopy(merkleRoot.getReversedBytes(), 0, out, 36, Sha256Hash.LENGTH);
+        Utils.uint32ToByteArrayLE(time, out, 68);
+        Utils.uint32ToByteArrayLE(difficultyTarget, out, 72);
+        Utils.uint32ToByteArrayLE(nonce, out, 76);
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.tools;
+
+import org.bitcoinj.core.AltcoinBlock;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.HeadersMessage;
+import org.bitcoinj.core.MessageSerializer;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.libdohj.core.DifficultyHistory;
+import org.libdohj.core.HeaderBatch;
+import org.libdohj.core.ScryptBatchHasher;
+import org.libdohj.core.StreamingBlockParser;
+import org.libdohj.params.AbstractDogecoinParams;
+import org.libdohj.params.DogecoinMainNetParams;
+import org.libdohj.params.DogecoinRegTestParams;
+import org.libdohj.params.DogecoinTestNet3Params;
+import com.google.common.io.Resources;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Verifies a header chain from local files, without connecting to any peers. The chain is split into segments at
+ * retarget and checkpoint boundaries, and the linkage, checkpoints and proof of work (Scrypt, or AuxPoW for merge
+ * mined blocks) of every segment are checked in parallel. A sequential pass then checks the difficulty transitions,
+ * which is cheap once proof of work is out of the way. Timings for each phase are printed, so the tool doubles as
+ * a benchmark of verification throughput.
+ */
+public class VerifyHeaderChain {
+    private static NetworkParameters params;
+
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.initWithSilentBitcoinJ();
+
+        OptionParser parser = new OptionParser();
+        parser.accepts("help");
+        OptionSpec<NetworkEnum> netFlag = parser.accepts("net").withRequiredArg().ofType(NetworkEnum.class).defaultsTo(NetworkEnum.MAIN);
+        OptionSpec<File> headersFlag = parser.accepts("headers").withRequiredArg().ofType(File.class);
+        OptionSpec<File> blocksFlag = parser.accepts("blocks").withRequiredArg().ofType(File.class);
+        OptionSpec<Integer> threadsFlag = parser.accepts("threads").withRequiredArg().ofType(Integer.class)
+                .defaultsTo(Runtime.getRuntime().availableProcessors());
+        OptionSet options = parser.parse(args);
+
+        if (options.has("help") || options.has(headersFlag) == options.has(blocksFlag)) {
+            System.out.println(Resources.toString(VerifyHeaderChain.class.getResource("verify-header-chain-help.txt"), StandardCharsets.UTF_8));
+            return;
+        }
+
+        switch (netFlag.value(options)) {
+            case MAIN:
+            case PROD:
+                params = DogecoinMainNetParams.get();
+                break;
+            case TEST:
+                params = DogecoinTestNet3Params.get();
+                break;
+            case REGTEST:
+                params = DogecoinRegTestParams.get();
+                break;
+            default:
+                throw new RuntimeException("Unreachable.");
+        }
+        new Context(params);
+        final int threads = threadsFlag.value(options);
+        if (threads < 1) {
+            System.err.println("--threads must be at least 1");
+            System.exit(1);
+            return;
+        }
+
+        long started = System.nanoTime();
+        final List<byte[]> headers;
+        if (options.has(headersFlag)) {
+            headers = readHeadersFile(headersFlag.value(options));
+        } else {
+            headers = readBlockFiles(blocksFlag.value(options));
+        }
+        final List<Segment> segments = split(headers);
+        headers.clear();
+        final int chainLength = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).endHeight() - 1;
+        report("Read", chainLength, System.nanoTime() - started, 1);
+        if (segments.isEmpty()) {
+            System.out.println("No headers after the genesis block.");
+            return;
+        }
+
+        // Proof of work, linkage within each segment and checkpoints, in parallel
+        started = System.nanoTime();
+        int failedHeight = verifySegments(segments, threads);
+        report("Proof of work", chainLength, System.nanoTime() - started, threads);
+
+        // Linkage between segments, and difficulty transitions, in order
+        if (failedHeight < 0) {
+            started = System.nanoTime();
+            failedHeight = verifyDifficulty(segments);
+            report("Difficulty", chainLength, System.nanoTime() - started, 1);
+        }
+
+        if (failedHeight >= 0) {
+            System.exit(1);
+        }
+        final Segment last = segments.get(segments.size() - 1);
+        System.out.println("Verified " + chainLength + " headers, tip " + last.batch.getHash(last.batch.size() - 1)
+                + " at height " + chainLength);
+    }
+
+    /**
+     * Read a file of headers in the format they take in a {@code headers} message, each one (with any AuxPoW header)
+     * followed by a zero transaction count, starting with the block after the genesis block or with the genesis
+     * block itself.
+     */
+    private static List<byte[]> readHeadersFile(File file) throws IOException {
+        final List<byte[]> headers = new ArrayList<byte[]>();
+        final InputStream stream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            final StreamingBlockParser parser = new StreamingBlockParser(params, params.getDefaultSerializer(), stream);
+            final HeaderCollector collector = new HeaderCollector();
+            AltcoinBlock header;
+            while ((header = parser.parseBlock(collector)) != null) {
+                if (header.getHash().equals(params.getGenesisBlock().getHash())) {
+                    continue;
+                }
+                headers.add(collector.bytes);
+            }
+        } finally {
+            stream.close();
+        }
+        return headers;
+    }
+
+    /**
+     * Read every block file ({@code blkNNNNN.dat}) in the given directory, and return the headers of the longest
+     * chain from the genesis block. Block files hold blocks in the order they were received, which need not be
+     * chain order, and may include stale blocks.
+     */
+    private static List<byte[]> readBlockFiles(File dir) throws IOException {
+        final File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("blk") && name.endsWith(".dat");
+            }
+        });
+        if (files == null) {
+            throw new IOException("Not a directory: " + dir);
+        }
+        Arrays.sort(files);
+
+        final Sha256Hash genesisHash = params.getGenesisBlock().getHash();
+        final Map<Sha256Hash, byte[]> headerBytes = new HashMap<Sha256Hash, byte[]>();
+        final Map<Sha256Hash, Sha256Hash> parents = new HashMap<Sha256Hash, Sha256Hash>();
+        final Map<Sha256Hash, Integer> heights = new HashMap<Sha256Hash, Integer>();
+        // Blocks whose parent has not been seen yet, by parent hash
+        final Map<Sha256Hash, List<Sha256Hash>> orphans = new HashMap<Sha256Hash, List<Sha256Hash>>();
+        heights.put(genesisHash, 0);
+        Sha256Hash bestHash = genesisHash;
+        int bestHeight = 0;
+
+        final HeaderCollector collector = new HeaderCollector();
+        for (File file : files) {
+            final InputStream stream = new BufferedInputStream(new FileInputStream(file));
+            try {
+                final StreamingBlockParser parser = new StreamingBlockParser(params, params.getDefaultSerializer(), stream);
+                AltcoinBlock header;
+                while ((header = parser.parseBlockFileEntry(collector)) != null) {
+                    final Sha256Hash hash = header.getHash();
+                    if (heights.containsKey(hash) || headerBytes.containsKey(hash)) {
+                        continue;
+                    }
+                    headerBytes.put(hash, collector.bytes);
+                    parents.put(hash, header.getPrevBlockHash());
+
+                    // Assign heights to this block and any descendants which were waiting for it
+                    final Deque<Sha256Hash> connected = new ArrayDeque<Sha256Hash>();
+                    if (heights.containsKey(header.getPrevBlockHash())) {
+                        connected.add(hash);
+                    } else {
+                        List<Sha256Hash> waiting = orphans.get(header.getPrevBlockHash());
+                        if (waiting == null) {
+                            waiting = new ArrayList<Sha256Hash>();
+                            orphans.put(header.getPrevBlockHash(), waiting);
+                        }
+                        waiting.add(hash);
+                    }
+                    while (!connected.isEmpty()) {
+                        final Sha256Hash next = connected.poll();
+                        final int height = heights.get(parents.get(next)) + 1;
+                        heights.put(next, height);
+                        if (height > bestHeight) {
+                            bestHeight = height;
+                            bestHash = next;
+                        }
+                        final List<Sha256Hash> children = orphans.remove(next);
+                        if (children != null) {
+                            connected.addAll(children);
+                        }
+                    }
+                }
+            } finally {
+                stream.close();
+            }
+            System.out.println("Read " + file.getName() + ", best height so far " + bestHeight);
+        }
+
+        final byte[][] chain = new byte[bestHeight][];
+        Sha256Hash cursor = bestHash;
+        for (int height = bestHeight; height > 0; height--) {
+            chain[height - 1] = headerBytes.get(cursor);
+            cursor = parents.get(cursor);
+        }
+        return new ArrayList<byte[]>(Arrays.asList(chain));
+    }
+
+    /**
+     * Split the headers, starting at height 1, into segments which each fit in a {@link HeaderBatch}. Segments
+     * end at retarget boundaries where possible, and always before a checkpoint, so a checkpoint starts a segment.
+     */
+    private static List<Segment> split(List<byte[]> headers) throws ProtocolException {
+        final int interval = params.getInterval();
+        final int segmentLength = interval >= HeadersMessage.MAX_HEADERS
+                ? HeadersMessage.MAX_HEADERS
+                : HeadersMessage.MAX_HEADERS - HeadersMessage.MAX_HEADERS % interval;
+        final MessageSerializer serializer = params.getDefaultSerializer();
+        final List<Segment> segments = new ArrayList<Segment>();
+        int startHeight = 1;
+        while (startHeight <= headers.size()) {
+            int endHeight = Math.min(headers.size() + 1, startHeight - startHeight % segmentLength + segmentLength);
+            for (int height = startHeight + 1; height < endHeight; height++) {
+                if (params.isCheckpoint(height)) {
+                    endHeight = height;
+                    break;
+                }
+            }
+
+            final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            final byte[] count = new VarInt(endHeight - startHeight).encode();
+            payload.write(count, 0, count.length);
+            for (int height = startHeight; height < endHeight; height++) {
+                final byte[] header = headers.get(height - 1);
+                payload.write(header, 0, header.length);
+            }
+            segments.add(new Segment(startHeight, HeaderBatch.decode(params, serializer, payload.toByteArray())));
+            startHeight = endHeight;
+        }
+        return segments;
+    }
+
+    /**
+     * Check linkage within each segment, checkpoints and proof of work, spreading segments across the given number
+     * of threads.
+     *
+     * @return the height of the first header which failed, or -1 if none did.
+     */
+    private static int verifySegments(List<Segment> segments, int threads) throws Exception {
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        final ScryptBatchHasher hasher = new ScryptBatchHasher(pool);
+        try {
+            final List<Future<Integer>> results = new ArrayList<Future<Integer>>(segments.size());
+            for (final Segment segment : segments) {
+                results.add(pool.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return segment.verify(hasher);
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                final int failedHeight = result.get();
+                if (failedHeight >= 0) {
+                    return failedHeight;
+                }
+            }
+            return -1;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Connect the headers in order, checking each segment follows on from the one before and that each header's
+     * difficulty target is the one expected.
+     *
+     * @return the height of the first header which failed, or -1 if none did.
+     */
+    private static int verifyDifficulty(List<Segment> segments) throws BlockStoreException, ProtocolException {
+        final BlockStore store = new MemoryBlockStore(params);
+        try {
+            StoredBlock storedPrev = store.getChainHead();
+            // Headers are connected along a single chain, so each becomes the chain head in turn
+            final DifficultyHistory difficultyHistory = new DifficultyHistory(
+                    Utils.encodeCompactBits(params.getMaxTarget()));
+            difficultyHistory.connect(storedPrev);
+            for (Segment segment : segments) {
+                final HeaderBatch batch = segment.batch;
+                if (!batch.getPrevBlockHash(0).equals(storedPrev.getHeader().getHash())) {
+                    System.err.println("Header at height " + segment.startHeight + " does not follow on from "
+                            + storedPrev.getHeader().getHash());
+                    return segment.startHeight;
+                }
+                for (int headerIdx = 0; headerIdx < batch.size(); headerIdx++) {
+                    final int height = segment.startHeight + headerIdx;
+                    final Block header = batch.toBlock(headerIdx);
+                    try {
+                        if (params instanceof AbstractDogecoinParams) {
+                            final long expected = ((AbstractDogecoinParams) params).calculateNewDifficultyTarget(storedPrev, header, store,
+                                    difficultyHistory);
+                            if (expected != header.getDifficultyTarget()) {
+                                System.err.println("Header at height " + height + " has difficulty target "
+                                        + Long.toHexString(header.getDifficultyTarget()) + ", expected "
+                                        + Long.toHexString(expected));
+                                return height;
+                            }
+                        } else {
+                            params.checkDifficultyTransitions(storedPrev, header, store);
+                        }
+                    } catch (VerificationException e) {
+                        System.err.println("Header at height " + height + " failed difficulty check: " + e.getMessage());
+                        return height;
+                    } catch (AbstractDogecoinParams.CheckpointEncounteredException e) {
+                        // Looked back past the start of the store; nothing conclusive to check against
+                    }
+                    storedPrev = storedPrev.build(header);
+                    store.put(storedPrev);
+                    difficultyHistory.connect(storedPrev);
+                }
+            }
+            return -1;
+        } finally {
+            store.close();
+        }
+    }
+
+    private static void report(String phase, int headerCount, long nanos, int threads) {
+        final double seconds = nanos / 1e9;
+        final double rate = seconds > 0 ? headerCount / seconds : 0;
+        System.out.println(String.format("%s: %d headers in %.2fs, %.0f headers/s, %.0f headers/s per thread (%d threads)",
+                phase, headerCount, seconds, rate, rate / threads, threads));
+    }
+
+    /**
+     * Keeps the serialized header, with any AuxPoW header and a zero transaction count, of each block parsed.
+     */
+    private static class HeaderCollector implements StreamingBlockParser.Listener {
+        byte[] bytes;
+
+        @Override
+        public void onHeader(AltcoinBlock header, int transactionCount) {
+            final byte[] serialized = header.bitcoinSerialize();
+            bytes = Arrays.copyOf(serialized, serialized.length + 1);
+        }
+
+        @Override
+        public void onTransaction(AltcoinBlock header, int txIndex, Transaction tx) {
+        }
+
+        @Override
+        public void onBlockComplete(AltcoinBlock header) {
+        }
+    }
+
+    private static class Segment {
+        final int startHeight;
+        final HeaderBatch batch;
+
+        Segment(int startHeight, HeaderBatch batch) {
+            this.startHeight = startHeight;
+            this.batch = batch;
+        }
+
+        int endHeight() {
+            return startHeight + batch.size();
+        }
+
+        /**
+         * @return the height of the first header which failed, or -1 if none did.
+         */
+        int verify(ScryptBatchHasher hasher) {
+            final int unlinked = batch.findUnlinked(null);
+            if (unlinked >= 0) {
+                System.err.println("Header at height " + (startHeight + unlinked) + " does not follow on from the one before");
+                return startHeight + unlinked;
+            }
+            for (int headerIdx = 0; headerIdx < batch.size(); headerIdx++) {
+                if (!params.passesCheckpoint(startHeight + headerIdx, batch.getHash(headerIdx))) {
+                    System.err.println("Header at height " + (startHeight + headerIdx) + " does not match checkpoint");
+                    return startHeight + headerIdx;
+                }
+            }
+            final int invalid = batch.findInvalidProofOfWork(hasher);
+            if (invalid >= 0) {
+                System.err.println("Header at height " + (startHeight + invalid) + " has invalid proof of work");
+                return startHeight + invalid;
+            }
+            return -1;
+        }
+    }
+}